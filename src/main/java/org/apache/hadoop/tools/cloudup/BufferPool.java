@@ -0,0 +1,101 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.apache.hadoop.tools.cloudup;
+
+import java.nio.ByteBuffer;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Pool of direct buffers for reading files, each with a small heap array
+ * through which the data can be passed on to an output stream.
+ * <p>
+ * Buffers are only created when the pool is empty, so the number created
+ * is that of the most uploads ever in progress at once; none are
+ * allocated per file.
+ * Thread safe.
+ */
+final class BufferPool {
+
+  /** Size of the array used to write to streams. */
+  static final int ARRAY_SIZE = 64 * 1024;
+
+  private final int bufferSize;
+
+  private final Queue<Buffer> pool = new ConcurrentLinkedQueue<>();
+
+  private final AtomicInteger created = new AtomicInteger(0);
+
+  /**
+   * Create a pool.
+   * @param bufferSize size of the direct buffers
+   */
+  BufferPool(int bufferSize) {
+    this.bufferSize = bufferSize;
+  }
+
+  /**
+   * Take a buffer from the pool, creating one if it is empty.
+   * @return a buffer, cleared
+   */
+  Buffer acquire() {
+    Buffer buffer = pool.poll();
+    if (buffer == null) {
+      created.incrementAndGet();
+      buffer = new Buffer(ByteBuffer.allocateDirect(bufferSize),
+          new byte[Math.min(ARRAY_SIZE, bufferSize)]);
+    }
+    buffer.direct.clear();
+    return buffer;
+  }
+
+  /**
+   * Return a buffer to the pool.
+   * @param buffer buffer from {@link #acquire()}
+   */
+  void release(Buffer buffer) {
+    pool.offer(buffer);
+  }
+
+  int getCreated() {
+    return created.get();
+  }
+
+  @Override
+  public String toString() {
+    return String.format("BufferPool{buffer size=%,d; buffers created=%d}",
+        bufferSize, created.get());
+  }
+
+  /**
+   * A direct buffer and its transfer array.
+   */
+  static final class Buffer {
+
+    final ByteBuffer direct;
+
+    final byte[] array;
+
+    private Buffer(ByteBuffer direct, byte[] array) {
+      this.direct = direct;
+      this.array = array;
+    }
+  }
+}
@@ -0,0 +1,381 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package org.apache.hadoop.tools.cloudup;
+
+import java.nio.ByteBuffer;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Locale;
+import java.util.zip.CRC32;
+import java.util.zip.Checksum;
+
+import com.google.common.base.Preconditions;
+
+import org.apache.hadoop.util.PureJavaCrc32C;
+
+/**
+ * The checksums to compute of every file uploaded, from the data as it
+ * is uploaded, so that the source is only read once.
+ * <p>
+ * CRC32C uses {@code java.util.zip.CRC32C} where the JVM has it (Java 9+),
+ * which is an intrinsic using the CPU's CRC32C instructions; otherwise
+ * Hadoop's table-driven {@link PureJavaCrc32C}.
+ * <p>
+ * The parts of a multipart upload are each checksummed as they are
+ * uploaded, in any order. The CRCs of the parts are combined into the
+ * CRC of the whole file; MD5 cannot be combined, so for a file uploaded
+ * in parts the MD5 of the MD5s of the parts is reported instead, as
+ * {@code md5-of-parts=<hex>-<parts>}, in the style of an S3 multipart
+ * ETag.
+ */
+final class Checksums {
+
+  /**
+   * Supported algorithms.
+   */
+  enum Algorithm {
+    md5,
+    crc32,
+    crc32c
+  }
+
+  /** Reflected CRC32 polynomial. */
+  private static final int CRC32_POLY = 0xEDB88320;
+
+  /** Reflected CRC32C (Castagnoli) polynomial. */
+  private static final int CRC32C_POLY = 0x82F63B78;
+
+  private static final String JAVA_CRC32C = "java.util.zip.CRC32C";
+
+  private static final Class<?> CRC32C_CLASS = findCrc32c();
+
+  private static final char[] HEX = "0123456789abcdef".toCharArray();
+
+  private final Algorithm[] algorithms;
+
+  private Checksums(Algorithm[] algorithms) {
+    this.algorithms = algorithms;
+  }
+
+  /**
+   * Parse a comma separated list of algorithms.
+   * @param spec list of algorithms, such as "md5,crc32c"
+   * @return the checksums to compute
+   * @throws IllegalArgumentException unknown or no algorithms
+   */
+  static Checksums parse(String spec) {
+    List<Algorithm> list = new ArrayList<>();
+    for (String name : spec.split(",")) {
+      String n = name.trim().toLowerCase(Locale.ENGLISH);
+      if (n.isEmpty()) {
+        continue;
+      }
+      try {
+        Algorithm algorithm = Algorithm.valueOf(n);
+        if (!list.contains(algorithm)) {
+          list.add(algorithm);
+        }
+      } catch (IllegalArgumentException e) {
+        throw new IllegalArgumentException(String.format(
+            "Unknown checksum \"%s\"; valid checksums are %s",
+            name, Arrays.toString(Algorithm.values())), e);
+      }
+    }
+    Preconditions.checkArgument(!list.isEmpty(), "No checksums in \"%s\"",
+        spec);
+    return new Checksums(list.toArray(new Algorithm[list.size()]));
+  }
+
+  /**
+   * Start the checksums of a file or part.
+   * @return a new digest
+   */
+  Digest start() {
+    return new Digest(algorithms);
+  }
+
+  /**
+   * Combine the digests of the parts of a file, in order, into the
+   * digest of the whole file.
+   * @param parts digests of every part
+   * @return a string for the whole file
+   */
+  String combine(Digest[] parts) {
+    StringBuilder sb = new StringBuilder();
+    for (int i = 0; i < algorithms.length; i++) {
+      Algorithm algorithm = algorithms[i];
+      if (sb.length() > 0) {
+        sb.append(' ');
+      }
+      if (algorithm == Algorithm.md5) {
+        MessageDigest md5 = newMd5();
+        for (Digest part : parts) {
+          md5.update(((MessageDigest) part.state[i]).digest());
+        }
+        sb.append("md5-of-parts=").append(hex(md5.digest()))
+            .append('-').append(parts.length);
+      } else {
+        int poly = algorithm == Algorithm.crc32 ? CRC32_POLY : CRC32C_POLY;
+        int crc = 0;
+        for (Digest part : parts) {
+          crc = combineCrc(crc,
+              (int) ((Checksum) part.state[i]).getValue(),
+              part.length, poly);
+        }
+        sb.append(algorithm).append('=').append(hex(crc));
+      }
+    }
+    return sb.toString();
+  }
+
+  /**
+   * Combine two CRCs: given the CRCs of two blocks of data, calculate
+   * that of the two blocks concatenated. This is the algorithm of zlib's
+   * {@code crc32_combine()}, which works for any reflected CRC32
+   * polynomial: it applies the operator for appending {@code len2} zero
+   * bytes to {@code crc1}, using repeated squaring.
+   * @param crc1 CRC of the first block
+   * @param crc2 CRC of the second block
+   * @param len2 length of the second block
+   * @param poly reflected polynomial
+   * @return the CRC of both blocks
+   */
+  static int combineCrc(int crc1, int crc2, long len2, int poly) {
+    if (len2 <= 0) {
+      return crc1;
+    }
+    int[] even = new int[32];
+    int[] odd = new int[32];
+    // operator for one zero bit
+    odd[0] = poly;
+    int row = 1;
+    for (int n = 1; n < 32; n++) {
+      odd[n] = row;
+      row <<= 1;
+    }
+    // two zero bits, then four
+    gf2Square(even, odd);
+    gf2Square(odd, even);
+    long len = len2;
+    do {
+      // apply zeros operator for this bit of len2
+      gf2Square(even, odd);
+      if ((len & 1) != 0) {
+        crc1 = gf2Times(even, crc1);
+      }
+      len >>>= 1;
+      if (len == 0) {
+        break;
+      }
+      gf2Square(odd, even);
+      if ((len & 1) != 0) {
+        crc1 = gf2Times(odd, crc1);
+      }
+      len >>>= 1;
+    } while (len != 0);
+    return crc1 ^ crc2;
+  }
+
+  private static int gf2Times(int[] mat, int vec) {
+    int sum = 0;
+    int i = 0;
+    while (vec != 0) {
+      if ((vec & 1) != 0) {
+        sum ^= mat[i];
+      }
+      vec >>>= 1;
+      i++;
+    }
+    return sum;
+  }
+
+  private static void gf2Square(int[] square, int[] mat) {
+    for (int n = 0; n < 32; n++) {
+      square[n] = gf2Times(mat, mat[n]);
+    }
+  }
+
+  /**
+   * Find the JVM's CRC32C class.
+   * @return the class, or null if this JVM has none.
+   */
+  private static Class<?> findCrc32c() {
+    try {
+      return Class.forName(JAVA_CRC32C);
+    } catch (ClassNotFoundException e) {
+      return null;
+    }
+  }
+
+  /**
+   * Create a CRC32C checksum.
+   * @return the fastest implementation available
+   */
+  static Checksum newCrc32c() {
+    if (CRC32C_CLASS != null) {
+      try {
+        return (Checksum) CRC32C_CLASS.newInstance();
+      } catch (ReflectiveOperationException e) {
+        throw new IllegalStateException("Cannot create " + JAVA_CRC32C, e);
+      }
+    }
+    return new PureJavaCrc32C();
+  }
+
+  private static MessageDigest newMd5() {
+    try {
+      return MessageDigest.getInstance("MD5");
+    } catch (NoSuchAlgorithmException e) {
+      // every JVM has MD5
+      throw new IllegalStateException(e);
+    }
+  }
+
+  static String hex(byte[] bytes) {
+    char[] chars = new char[bytes.length * 2];
+    for (int i = 0; i < bytes.length; i++) {
+      chars[2 * i] = HEX[(bytes[i] >> 4) & 0xf];
+      chars[2 * i + 1] = HEX[bytes[i] & 0xf];
+    }
+    return new String(chars);
+  }
+
+  static String hex(int crc) {
+    return String.format("%08x", crc);
+  }
+
+  @Override
+  public String toString() {
+    return Arrays.toString(algorithms) + "; CRC32C: "
+        + (CRC32C_CLASS != null ? JAVA_CRC32C
+            : PureJavaCrc32C.class.getName());
+  }
+
+  /**
+   * The checksums of one file or part, updated as it is uploaded.
+   * Not thread safe.
+   */
+  static final class Digest {
+
+    /** Size of the array used to digest direct buffers. */
+    private static final int SCRATCH_SIZE = 64 * 1024;
+
+    private final Algorithm[] algorithms;
+
+    /** A MessageDigest or Checksum for each algorithm. */
+    private final Object[] state;
+
+    private long length;
+
+    private byte[] scratch;
+
+    private Digest(Algorithm[] algorithms) {
+      this.algorithms = algorithms;
+      this.state = new Object[algorithms.length];
+      for (int i = 0; i < algorithms.length; i++) {
+        switch (algorithms[i]) {
+        case md5:
+          state[i] = newMd5();
+          break;
+        case crc32:
+          state[i] = new CRC32();
+          break;
+        default:
+          state[i] = newCrc32c();
+          break;
+        }
+      }
+    }
+
+    /**
+     * Add data to the checksums.
+     * @param bytes data
+     * @param offset offset of the data
+     * @param len length of the data
+     */
+    void update(byte[] bytes, int offset, int len) {
+      for (Object s : state) {
+        if (s instanceof MessageDigest) {
+          ((MessageDigest) s).update(bytes, offset, len);
+        } else {
+          ((Checksum) s).update(bytes, offset, len);
+        }
+      }
+      length += len;
+    }
+
+    /**
+     * Add the remaining data of a buffer to the checksums, without
+     * changing the position of the buffer.
+     * @param buffer buffer
+     */
+    void update(ByteBuffer buffer) {
+      if (buffer.hasArray()) {
+        update(buffer.array(), buffer.arrayOffset() + buffer.position(),
+            buffer.remaining());
+        return;
+      }
+      if (scratch == null) {
+        scratch = new byte[SCRATCH_SIZE];
+      }
+      ByteBuffer data = buffer.duplicate();
+      while (data.hasRemaining()) {
+        int n = Math.min(data.remaining(), scratch.length);
+        data.get(scratch, 0, n);
+        update(scratch, 0, n);
+      }
+    }
+
+    long getLength() {
+      return length;
+    }
+
+    /**
+     * Get the checksums; only valid once all the data has been added.
+     * @return the checksums, as space separated name=hex pairs.
+     */
+    @Override
+    public String toString() {
+      StringBuilder sb = new StringBuilder();
+      for (int i = 0; i < algorithms.length; i++) {
+        if (sb.length() > 0) {
+          sb.append(' ');
+        }
+        sb.append(algorithms[i]).append('=');
+        if (state[i] instanceof MessageDigest) {
+          // clone, as digest() resets the state
+          try {
+            sb.append(hex(
+                ((MessageDigest) ((MessageDigest) state[i]).clone())
+                    .digest()));
+          } catch (CloneNotSupportedException e) {
+            throw new IllegalStateException(e);
+          }
+        } else {
+          sb.append(hex((int) ((Checksum) state[i]).getValue()));
+        }
+      }
+      return sb.toString();
+    }
+  }
+}
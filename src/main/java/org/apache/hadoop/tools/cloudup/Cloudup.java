@@ -18,23 +18,27 @@
 
 package org.apache.hadoop.tools.cloudup;
 
+import java.io.File;
 import java.io.FileNotFoundException;
 import java.io.IOException;
+import java.io.InterruptedIOException;
 import java.net.URI;
 import java.util.ArrayList;
 import java.util.Arrays;
-import java.util.Collections;
 import java.util.List;
+import java.util.Random;
+import java.util.concurrent.BlockingQueue;
 import java.util.concurrent.Callable;
-import java.util.concurrent.CompletionService;
 import java.util.concurrent.ExecutionException;
-import java.util.concurrent.ExecutorCompletionService;
 import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 import java.util.concurrent.Future;
 import java.util.concurrent.LinkedBlockingQueue;
 import java.util.concurrent.ThreadPoolExecutor;
 import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 
 import com.google.common.base.Preconditions;
 import org.slf4j.Logger;
@@ -45,13 +49,13 @@ import org.apache.commons.cli.CommandLineParser;
 import org.apache.commons.cli.GnuParser;
 import org.apache.commons.cli.Options;
 import org.apache.commons.cli.ParseException;
-import org.apache.commons.collections.comparators.ReverseComparator;
 import org.apache.hadoop.conf.Configured;
 import org.apache.hadoop.fs.FileStatus;
 import org.apache.hadoop.fs.FileSystem;
 import org.apache.hadoop.fs.LocatedFileStatus;
 import org.apache.hadoop.fs.Path;
 import org.apache.hadoop.fs.RemoteIterator;
+import org.apache.hadoop.io.IOUtils;
 import org.apache.hadoop.util.Tool;
 import org.apache.hadoop.util.ToolRunner;
 
@@ -65,7 +69,46 @@ public class Cloudup extends Configured implements Tool {
   private static final Logger LOG = LoggerFactory.getLogger(Cloudup.class);
   private static final int DEFAULT_LARGEST = 4;
   private static final int DEFAULT_THREADS = 16;
+  private static final int DEFAULT_WINDOW = 1000;
+  private static final long STREAM_POLL_MILLIS = 100;
+  private static final int WINDOW_PAGE_SIZE = 64 * 1024;
+  private static final int DEFAULT_INFLIGHT_FILES = 1000;
+  private static final long DEFAULT_INFLIGHT_BYTES = 0;
+  private static final int DEFAULT_PREFIX_DEPTH = 1;
+  private static final long ADAPT_INTERVAL_MILLIS = 10000;
+  private static final long METRICS_INTERVAL_MILLIS = 10000;
+  private static final long DEFAULT_BLOCK_SIZE = 128 * 1024 * 1024;
+
+  private static final long DEFAULT_PACK_SIZE = 64 * 1024 * 1024;
+
+  private static final int DEFAULT_RETRIES = 3;
+
+  /**
+   * Number of files read from one directory before the locality policy
+   * moves on to another destination prefix.
+   */
+  static final int LOCALITY_RUN_LENGTH = 64;
+
+  /** Files smaller than this are not worth deduplicating. */
+  private static final long DEDUP_MIN_SIZE = 64 * 1024;
+
+  private static final int DEFAULT_RETRY_BUDGET = 100;
+
+  /** Ceiling of the delay before the first retry of an operation. */
+  private static final long RETRY_BASE_DELAY_MILLIS = 500;
+
+  private static final long RETRY_MAX_DELAY_MILLIS = 30000;
+
+  private static final String ENGINE_HADOOP = "hadoop";
+
+  private static final String ENGINE_NIO = "nio";
   ExecutorService workers;
+  /**
+   * Threads for the listing and other preparation; kept apart from
+   * the workers so that a listing blocked on a full stream queue
+   * can never hold up the uploads which would drain it.
+   */
+  ExecutorService preparation;
   FileSystem sourceFS;
   Path sourcePath;
   FileSystem destFS;
@@ -75,12 +118,166 @@ public class Cloudup extends Configured implements Tool {
   boolean ignoreFailures = true;
   // single element exception with sync access.
   final Exception[] firstException = new Exception[1];
-  private CompletionService<Long> completion;
+
+  /** Bound on the uploads queued or in progress. */
+  private InflightWindow inflight;
+
+  /** Bytes uploaded by completed uploads. */
+  private final AtomicLong uploadedBytes = new AtomicLong(0);
+
+  /** Number of uploads which failed. */
+  private final AtomicInteger failedUploads = new AtomicInteger(0);
 
   private FileStatus sourcePathStatus;
 
   private FileStatus destPathStatus;
 
+  /** Threads to use in the parallel listing; 0 means serial. */
+  private int walkers;
+
+  /** Optional manifest of files to upload. */
+  private File manifest;
+
+  /** Skip files which are already at the destination? */
+  private boolean update;
+
+  /** When updating, also compare modification times? */
+  private boolean updateMtime;
+
+  /** Files skipped as they are already at the destination. */
+  private final AtomicLong skippedFiles = new AtomicLong(0);
+
+  /** Bytes skipped as they are already at the destination. */
+  private final AtomicLong skippedBytes = new AtomicLong(0);
+
+  /** Journal to write; null for none. */
+  private File journalFile;
+
+  /** Journal to resume from; null for none. */
+  private File resumeFile;
+
+  /** Journal of uploads; null if not journalling. */
+  private UploadJournal journal;
+
+  /** Report to write; null for none. */
+  private File reportFile;
+
+  /** Format of the report. */
+  private UploadReport.Format reportFormat;
+
+  /** Report of the uploads; null if not reporting. */
+  private UploadReport report;
+
+  /** State of an earlier upload being resumed; null if not resuming. */
+  private UploadJournal.Replay replay;
+
+  /** Files skipped as they were uploaded before the resume. */
+  private final AtomicLong resumedFiles = new AtomicLong(0);
+
+  /** Bytes skipped as they were uploaded before the resume. */
+  private final AtomicLong resumedBytes = new AtomicLong(0);
+
+  /** Submit uploads while the listing is in progress? */
+  private boolean streaming;
+
+  /** Maximum number of entries in a streaming window. */
+  private int window;
+
+  private final Random random = new Random();
+
+  /** Policy for the order of submission. */
+  private SchedulingPolicy policy;
+
+  /** Model of upload times, fitted from the completed uploads. */
+  private final CostModel costModel = new CostModel();
+
+  /** Resize the worker pool during the upload? */
+  private boolean adaptive;
+
+  /** Minimum number of worker threads when adapting. */
+  private int minThreads;
+
+  /** Maximum number of worker threads when adapting. */
+  private int maxThreads;
+
+  /** Controller of the worker pool size; null if not adapting. */
+  private ConcurrencyController controller;
+
+  /** Engine performing the uploads. */
+  private Uploader uploader;
+
+  /** Size of the parts of a multipart upload. */
+  private long blockSize;
+
+  /** Size at which files are uploaded in parts; 0 for never. */
+  private long splitThreshold;
+
+  /** Number of files uploaded in parts. */
+  private final AtomicInteger multipartUploads = new AtomicInteger(0);
+
+  /** Maximum retries of one operation. */
+  private int maxRetries;
+
+  /** Global retry budget, in retries. */
+  private int retryBudget;
+
+  /** Schedules the retries of failed operations. */
+  private RetryScheduler retryScheduler;
+
+  /** Checksums to calculate of every file; null for none. */
+  private Checksums checksums;
+
+  /** Compression of the files uploaded; null for none. */
+  private Compression compression;
+
+  /** Finds duplicate files; null if not deduplicating. */
+  private Deduplicator deduplicator;
+
+  /** Memory for reading files ahead of their upload; 0 for none. */
+  private long readAheadSize;
+
+  /** Reads files ahead of their upload; null if not reading ahead. */
+  private ReadAhead readAhead;
+
+  /** Limits reads from each source device; null for no limit. */
+  private DeviceLimiter deviceLimiter;
+
+  /** Progress of the upload. */
+  private final Progress progress = new Progress();
+
+  /** Seconds between progress reports; 0 for none. */
+  private int progressInterval;
+
+  /** Statistics of the source and destination filesystems. */
+  private final FileSystemStatistics statistics = new FileSystemStatistics();
+
+  /** Seconds between logging the filesystem statistics; 0 for never. */
+  private int statisticsInterval;
+
+  /** File to write metrics to for Prometheus; null for none. */
+  private File metricsFile;
+
+  /** Latencies of uploads, by file size. */
+  private final UploadLatencies latencies = new UploadLatencies();
+
+  /** File to export the latency histograms to; null for none. */
+  private File histogramFile;
+
+  /** Files smaller than this are packed into containers; 0 for never. */
+  private long packThreshold;
+
+  /** Packs small files into containers; null if not packing. */
+  private Packer packer;
+
+  /** Tracks and limits the uploads under each destination prefix. */
+  private PrefixLimiter prefixLimiter;
+
+  /** Number of files submitted; only updated in the submitting thread. */
+  private int submittedFiles;
+
+  /** Number of bytes submitted; only updated in the submitting thread. */
+  private long submittedBytes;
+
 
   public Cloudup() {
   }
@@ -111,6 +308,100 @@ public class Cloudup extends Configured implements Tool {
     }
     final int largest = OptionSwitch.LARGEST.eval(command, DEFAULT_LARGEST);
     final int threads = OptionSwitch.THREADS.eval(command, DEFAULT_THREADS);
+    walkers = OptionSwitch.WALKERS.eval(command, threads);
+    adaptive = OptionSwitch.ADAPTIVE.hasOption(command);
+    minThreads = OptionSwitch.MIN_THREADS.eval(command, 1);
+    maxThreads = OptionSwitch.MAX_THREADS.eval(command, 4 * threads);
+    Preconditions.checkArgument(0 < minThreads && minThreads <= maxThreads,
+        "Invalid thread range %s-%s", minThreads, maxThreads);
+    String manifestName = OptionSwitch.MANIFEST.eval(command, null);
+    manifest = manifestName != null ? new File(manifestName) : null;
+    streaming = OptionSwitch.STREAM.hasOption(command);
+    String journalName = OptionSwitch.JOURNAL.eval(command, null);
+    journalFile = journalName != null ? new File(journalName) : null;
+    String resumeName = OptionSwitch.RESUME.eval(command, null);
+    resumeFile = resumeName != null ? new File(resumeName) : null;
+    String reportName = OptionSwitch.REPORT.eval(command, null);
+    reportFile = reportName != null ? new File(reportName) : null;
+    reportFormat = UploadReport.Format.parse(
+        OptionSwitch.REPORT_FORMAT.eval(command,
+            UploadReport.Format.csv.name()));
+    update = OptionSwitch.UPDATE.hasOption(command);
+    updateMtime = OptionSwitch.UPDATE_MTIME.hasOption(command);
+    window = OptionSwitch.WINDOW.eval(command, DEFAULT_WINDOW);
+    Preconditions.checkArgument(window > 0, "Invalid window size: %s", window);
+    final int inflightFiles = OptionSwitch.INFLIGHT_FILES.eval(command,
+        DEFAULT_INFLIGHT_FILES);
+    Preconditions.checkArgument(inflightFiles > 0,
+        "Invalid in-flight file count: %s", inflightFiles);
+    final long inflightBytes = OptionSwitch.INFLIGHT_BYTES.evalBytes(command,
+        DEFAULT_INFLIGHT_BYTES);
+    inflight = new InflightWindow(inflightFiles, inflightBytes);
+    policy = SchedulingPolicy.parse(OptionSwitch.POLICY.eval(command,
+        SchedulingPolicy.largest.name()));
+    final int prefixDepth = OptionSwitch.PREFIX_DEPTH.eval(command,
+        DEFAULT_PREFIX_DEPTH);
+    final int prefixLimit = OptionSwitch.PREFIX_LIMIT.eval(command, 0);
+    Preconditions.checkArgument(prefixDepth >= 0 && prefixLimit >= 0,
+        "Invalid prefix depth %s or limit %s", prefixDepth, prefixLimit);
+    blockSize = OptionSwitch.BLOCK_SIZE.evalBytes(command, DEFAULT_BLOCK_SIZE);
+    splitThreshold = OptionSwitch.SPLIT_THRESHOLD.evalBytes(command, 0);
+    Preconditions.checkArgument(blockSize > 0 && splitThreshold >= 0,
+        "Invalid block size %s or split threshold %s",
+        blockSize, splitThreshold);
+    maxRetries = OptionSwitch.RETRIES.eval(command, DEFAULT_RETRIES);
+    retryBudget = OptionSwitch.RETRY_BUDGET.eval(command,
+        DEFAULT_RETRY_BUDGET);
+    Preconditions.checkArgument(maxRetries >= 0 && retryBudget >= 0,
+        "Invalid retries %s or retry budget %s", maxRetries, retryBudget);
+    final String checksumSpec = OptionSwitch.CHECKSUMS.eval(command, "");
+    checksums = checksumSpec.isEmpty() ? null
+        : Checksums.parse(checksumSpec);
+    final String codec = OptionSwitch.COMPRESS.eval(command, "");
+    if (!codec.isEmpty()) {
+      compression = Compression.create(codec, getConf());
+      Preconditions.checkArgument(!update,
+          "Cannot compress files in an update: their sizes will differ");
+      Preconditions.checkArgument(!OptionSwitch.ENGINE.hasOption(command),
+          "Compression uses its own upload engine");
+      if (!compression.isConcatenable()) {
+        if (splitThreshold > 0) {
+          LOG.warn("Not uploading files in parts: {} streams cannot"
+              + " be concatenated", codec);
+        }
+        splitThreshold = 0;
+      }
+    }
+    packThreshold = OptionSwitch.PACK_THRESHOLD.evalBytes(command, 0);
+    final boolean dedup = OptionSwitch.DEDUP.hasOption(command);
+    readAheadSize = OptionSwitch.READ_AHEAD.evalBytes(command, 0);
+    String histogramName = OptionSwitch.HISTOGRAMS.eval(command, null);
+    histogramFile = histogramName != null ? new File(histogramName) : null;
+    progressInterval = OptionSwitch.PROGRESS.eval(command, 0);
+    Preconditions.checkArgument(progressInterval >= 0,
+        "Invalid progress interval %s", progressInterval);
+    statisticsInterval = OptionSwitch.STATISTICS_INTERVAL.eval(command, 0);
+    String metricsName = OptionSwitch.METRICS.eval(command, null);
+    metricsFile = metricsName != null ? new File(metricsName) : null;
+    Preconditions.checkArgument(statisticsInterval >= 0,
+        "Invalid statistics interval %s", statisticsInterval);
+    final int deviceLimit = OptionSwitch.DEVICE_LIMIT.eval(command, 0);
+    Preconditions.checkArgument(deviceLimit >= 0,
+        "Invalid device limit %s", deviceLimit);
+    if (deviceLimit > 0) {
+      deviceLimiter = new DeviceLimiter(deviceLimit);
+    }
+    Preconditions.checkArgument(readAheadSize >= 0,
+        "Invalid read-ahead size %s", readAheadSize);
+    final long packSize = OptionSwitch.PACK_SIZE.evalBytes(command,
+        DEFAULT_PACK_SIZE);
+    Preconditions.checkArgument(packThreshold >= 0 && packSize > 0,
+        "Invalid pack threshold %s or pack size %s",
+        packThreshold, packSize);
+    // packed files are read into the heap whole
+    Preconditions.checkArgument(packThreshold <= Packer.MAX_PACK_THRESHOLD,
+        "Pack threshold %s is above the limit of %s",
+        packThreshold, Packer.MAX_PACK_THRESHOLD);
 
     overwrite = OptionSwitch.OVERWRITE.hasOption(command);
     ignoreFailures = OptionSwitch.IGNORE_FAILURES.hasOption(command);
@@ -119,12 +410,61 @@ public class Cloudup extends Configured implements Tool {
         OptionSwitch.SOURCE.required(command)));
     destPath = new Path(OptionSwitch.DEST.required(command));
     destFS = destPath.getFileSystem(getConf());
+    if (!HadoopUploader.canJoinInPlace(destFS)) {
+      // joining the parts would read them back and write them again,
+      // which is more traffic than a single stream
+      if (splitThreshold > 0) {
+        LOG.warn("Not uploading files in parts: the parts of a file"
+            + " cannot be joined in place on {}", destFS.getUri());
+        splitThreshold = 0;
+      } else if (compression != null && compression.isConcatenable()) {
+        LOG.info("Compressing each file in a single stream: the parts"
+            + " of a file cannot be joined in place on {}", destFS.getUri());
+      }
+    } else if (compression != null && compression.isConcatenable()
+        && splitThreshold == 0) {
+      // compress large files in parallel blocks
+      splitThreshold = 2 * blockSize;
+    }
+    prefixLimiter = new PrefixLimiter(destPath, prefixDepth, prefixLimit);
+    final String engine = OptionSwitch.ENGINE.eval(command, ENGINE_HADOOP);
+    switch (engine) {
+    case ENGINE_HADOOP:
+      uploader = new HadoopUploader(sourceFS, destFS, overwrite,
+          compression);
+      break;
+    case ENGINE_NIO:
+      uploader = new NioUploader(destFS, overwrite);
+      break;
+    default:
+      throw new IllegalArgumentException("Unknown upload engine: " + engine);
+    }
 
     LOG.info("Uploading from {} to {};"
-            + " threads={}; large files={}"
+            + " threads={}; adaptive={} ({}-{}); listing threads={};"
+            + " policy={}; large files={}"
+            + " streaming={}; manifest={}; update={}; update mtime={};"
+            + " journal={}; resume={}; report={} ({});"
+            + " in-flight files={}; in-flight bytes={};"
+            + " prefix depth={}; prefix limit={}; device limit={};"
+            + " block size={}; split threshold={}; engine={};"
+            + " pack threshold={}; pack size={};"
+            + " retries={}; retry budget={}; checksums={};"
+            + " compression={}; dedup={}; read-ahead={};"
+            + " progress interval={}s; statistics interval={}s;"
+            + " histograms={}; metrics={};"
             + " overwrite={}, ignore failures={}",
         sourcePath, destPath,
-        threads, largest,
+        threads, adaptive, minThreads, maxThreads, walkers,
+        policy, largest, streaming, manifest, update, updateMtime,
+        journalFile, resumeFile, reportFile, reportFormat,
+        inflightFiles, inflightBytes,
+        prefixDepth, prefixLimit, deviceLimit,
+        blockSize, splitThreshold, engine,
+        packThreshold, packSize,
+        maxRetries, retryBudget, checksums,
+        compression != null ? codec : "none", dedup, readAheadSize,
+        progressInterval, statisticsInterval, histogramFile, metricsFile,
         overwrite, ignoreFailures);
 
     // log S3A=specific details if this is an S3A connection.
@@ -160,106 +500,256 @@ public class Cloudup extends Configured implements Tool {
           d, s);
     }
 
-    // worker pool
-    workers = new ThreadPoolExecutor(threads, threads,
+    if (dedup) {
+      if (HadoopUploader.canCopy(destFS)) {
+        // packed files are not deduplicated
+        deduplicator = new Deduplicator(sourceFS,
+            Math.max(DEDUP_MIN_SIZE, packThreshold));
+      } else {
+        // every duplicate would be uploaded anyway, after hashing it
+        LOG.warn("Not deduplicating files: they cannot be copied within {}",
+            destFS.getUri());
+      }
+    }
+    if (packThreshold > 0) {
+      if (sourcePathStatus.isDirectory()) {
+        packer = new Packer(sourceFS, destFS, destPath, packThreshold,
+            packSize, checksums, compression);
+      } else {
+        LOG.info("Source is a file: not packing");
+      }
+    }
+    if (resumeFile != null) {
+      // rebuild the state of the earlier upload, then continue its journal
+      replay = UploadJournal.replay(resumeFile);
+      if (journalFile == null) {
+        journalFile = resumeFile;
+      }
+    }
+    if (journalFile != null) {
+      journal = new UploadJournal(journalFile);
+    }
+    if (reportFile != null) {
+      report = new UploadReport(reportFile, reportFormat, sourcePath,
+          destFS.makeQualified(destPath));
+    }
+    try {
+      int result = upload(largest, threads);
+      if (journal != null) {
+        // raises any failure to write the journal
+        journal.close();
+      }
+      if (report != null) {
+        report.close();
+      }
+      return result;
+    } finally {
+      IOUtils.closeStream(journal);
+      IOUtils.closeStream(report);
+    }
+  }
+
+  /**
+   * Execute the upload.
+   * @param largest number of largest files to upload first
+   * @param threads number of worker threads
+   * @return the exit code
+   * @throws Exception failure
+   */
+  private int upload(int largest, int threads) throws Exception {
+    // worker pool; the queue is unbounded, but the in-flight window
+    // limits how many uploads are ever in it.
+    ThreadPoolExecutor pool = new ThreadPoolExecutor(threads, threads,
         0L, TimeUnit.MILLISECONDS,
         new LinkedBlockingQueue<Runnable>());
+    workers = pool;
+    preparation = Executors.newCachedThreadPool();
+    retryScheduler = new RetryScheduler(pool, maxRetries, retryBudget,
+        RETRY_BASE_DELAY_MILLIS, RETRY_MAX_DELAY_MILLIS, random);
+    UploadMetrics metrics = new UploadMetrics(progress, inflight, pool,
+        retryScheduler);
+    metrics.register();
+    if (metricsFile != null) {
+      metrics.start(metricsFile, METRICS_INTERVAL_MILLIS);
+    }
+    if (readAheadSize > 0) {
+      readAhead = new ReadAhead(sourceFS, readAheadSize,
+          ReadAhead.DEFAULT_READERS);
+    }
+    if (adaptive) {
+      controller = new ConcurrencyController(pool, minThreads, maxThreads,
+          costModel);
+      controller.start(ADAPT_INTERVAL_MILLIS);
+    }
+    if (progressInterval > 0) {
+      progress.start(TimeUnit.SECONDS.toMillis(progressInterval));
+    }
+    statistics.add("Source", sourceFS);
+    if (!sourceFS.equals(destFS)) {
+      statistics.add("Dest", destFS);
+    }
+    if (statisticsInterval > 0) {
+      statistics.start(TimeUnit.SECONDS.toMillis(statisticsInterval));
+    }
+    try {
+      return upload(largest);
+    } finally {
+      try {
+        metrics.stop();
+      } catch (IOException e) {
+        LOG.warn("Failed to write metrics to {}: {}", metricsFile,
+            e.toString());
+      }
+      progress.stop();
+      statistics.stop();
+      if (controller != null) {
+        controller.stop();
+        LOG.info("Adaptive upload threads: {}", controller);
+      }
+      retryScheduler.close();
+      if (readAhead != null) {
+        readAhead.close();
+      }
+      workers.shutdown();
+      preparation.shutdownNow();
+    }
+  }
+
+  /**
+   * Get the current number of worker threads.
+   * @return the size of the worker pool
+   */
+  private int workerThreads() {
+    return ((ThreadPoolExecutor) workers).getCorePoolSize();
+  }
 
+  /**
+   * Execute the upload once the thread pools are created.
+   * @param largest number of largest files to upload first
+   * @return the exit code
+   * @throws Exception failure
+   */
+  private int upload(int largest) throws Exception {
     final Duration preparationDuration = new Duration();
+
     // list the files
-    Future<List<UploadEntry>> listFilesOperation =
-        workers.submit(buildUploads());
+    final BlockingQueue<UploadEntry> streamQueue;
+    final UploadTable uploadTable;
+    UploadSink sink;
+    if (streaming) {
+      // bounded so that the listing cannot run too far ahead of submission
+      streamQueue = new LinkedBlockingQueue<>(2 * window);
+      uploadTable = null;
+      sink = new QueueSink(streamQueue);
+    } else {
+      streamQueue = null;
+      uploadTable = new UploadTable();
+      sink = new TableSink(uploadTable);
+    }
+    if (update) {
+      // list the destination while the source is listed; the source
+      // entries are filtered against it once it is complete.
+      sink = new UpdateSink(preparation.submit(buildDestinationIndex()),
+          sink);
+    }
+    if (replay != null) {
+      sink = new ResumeSink(sink);
+    }
+    Future<Long> listFilesOperation = preparation.submit(buildUploads(sink));
 
     // prepare the destination
 
-    final Future<String> prepareDestResult = workers.submit(prepareDest());
+    final Future<String> prepareDestResult = preparation.submit(prepareDest());
     String info = await(prepareDestResult);
     LOG.info("Destination prepared: {}", info);
 
-    List<UploadEntry> uploadList = await(listFilesOperation);
-    final int uploadCount = uploadList.size();
-
-    preparationDuration.finished();
-    LOG.info("Files to upload = {}; preparation duration = {}",
-        uploadCount, preparationDuration);
-
-
     // full upload operation
-    final Duration uploadDuration = new Duration();
-    final NanoTimer uploadTimer = new NanoTimer();
-
-    // now completion service for all outstanding workers
-    completion = new ExecutorCompletionService<>(workers);
-
-    // upload initial sorted entries.
-
-    // reverse sort to get largest first
-    Collections.sort(uploadList,
-        new ReverseComparator(new UploadEntry.SizeComparator()));
-
-    // select the largest few of them
-    final int sortUploadCount = Math.min(largest, uploadCount);
-    long sortUploadSize = 0;
-    int submittedFiles = 0;
-    for (int i = 0; i < sortUploadCount; i++) {
-      UploadEntry upload = uploadList.get(i);
-      LOG.info("Large file {}: size = {}: {}",
-          i + 1, upload.getSize(),
-          upload.getSource());
-      long submitSize = submit(upload);
-      if (submitSize >= 0) {
-        submittedFiles++;
-        sortUploadSize += submitSize;
-      }
+    final Duration uploadDuration;
+    final NanoTimer uploadTimer;
+    final ResourceUsage uploadUsage;
+
+    if (streaming) {
+      // uploads start as soon as the first files are listed
+      preparationDuration.finished();
+      LOG.info("Streaming uploads in windows of up to {} files;"
+              + " preparation duration = {}",
+          window, preparationDuration);
+      uploadDuration = new Duration();
+      uploadTimer = new NanoTimer();
+      uploadUsage = ResourceUsage.snapshot();
+      streamUploads(listFilesOperation, streamQueue, largest);
+    } else {
+      await(listFilesOperation);
+      progress.listed();
+      preparationDuration.finished();
+      LOG.info("Files to upload = {}; preparation duration = {}",
+          uploadTable.size(), preparationDuration);
+      LOG.info("Upload table: {}", uploadTable);
+      uploadDuration = new Duration();
+      uploadTimer = new NanoTimer();
+      uploadUsage = ResourceUsage.snapshot();
+      submitBatch(uploadTable, largest);
     }
-    LOG.info("Largest {} uploads commenced, total size = {}",
-        uploadCount, sortUploadSize);
-
-
-    // shuffle and submit remainder
-    int shuffledUploadCount = 0;
-    long shuffledUploadSize = 0;
-
-    if (uploadCount > sortUploadCount) {
-      Collections.shuffle(uploadList);
-      for (UploadEntry entry : uploadList) {
-        long size = submit(entry);
-        if (size >= 0) {
-          // file was submitted for upload
-          shuffledUploadCount++;
-          shuffledUploadSize += size;
-        }
+    if (packer != null) {
+      // write out the last pack, however small
+      Packer.Pack pack = packer.flush();
+      if (pack != null) {
+        submitPack(pack);
       }
-      LOG.info("Shuffled uploads commenced: {}, total size = {}",
-          shuffledUploadCount, shuffledUploadSize);
     }
-    submittedFiles += shuffledUploadCount;
 
-    if (submittedFiles == 0) {
+    final int uploadCount = submittedFiles;
+    final long uploadSize = submittedBytes;
+    if (update) {
+      LOG.info("Skipped {} files already at the destination,"
+              + " saving the upload of {} bytes",
+          skippedFiles.get(), skippedBytes.get());
+    }
+    if (replay != null) {
+      LOG.info("Skipped {} files uploaded before the upload was resumed,"
+              + " total size {}",
+          resumedFiles.get(), resumedBytes.get());
+    }
+    if (uploadCount == 0) {
       LOG.info("No files submitted");
       return 0;
     }
 
-    final long uploadSize = sortUploadSize + shuffledUploadSize;
-
-
     // now await all outcomes to complete
     LOG.info("Awaiting completion of {} operations", uploadCount);
-    List<Future<Long>> outcomes = new ArrayList<>(uploadCount);
-    for (int i = 0; i < uploadCount; i++) {
-      Future<Long> outcome = completion.take();
-      LOG.debug("Operation {} completed", i + 1);
-      outcomes.add(outcome);
+    inflight.awaitEmpty();
+    if (progressInterval > 0) {
+      LOG.info("Progress: {}", progress.report(System.currentTimeMillis()));
+    }
+    LOG.info("Upload window: {}", inflight);
+    LOG.info("Fitted upload cost model: {}", costModel);
+    LOG.info("Destination prefixes: {}", prefixLimiter);
+    if (deviceLimiter != null) {
+      LOG.info("Source devices: {}", deviceLimiter);
+    }
+    LOG.info("Retries: {}", retryScheduler);
+    if (deduplicator != null) {
+      LOG.info("Deduplication: {}", deduplicator);
+    }
+    if (readAhead != null) {
+      LOG.info("Read-ahead: {}", readAhead);
+    }
+    if (compression != null) {
+      LOG.info("Compression: {}", compression);
+    }
+    if (packer != null) {
+      LOG.info("Packed small files: {}", packer);
+    }
+    if (splitThreshold > 0) {
+      LOG.info("Files uploaded in parts: {}", multipartUploads.get());
     }
 
     uploadDuration.finished();
     uploadTimer.end();
-
-
-    dumpStats(sourceFS, "Source statistics");
-    if (!sourceFS.equals(destFS)) {
-      dumpStats(destFS, "Dest statistics");
-    }
+    LOG.info("Uploader: {}", uploader);
+    LOG.info("Resource usage of uploads: {}",
+        ResourceUsage.snapshot().describeSince(uploadUsage));
+    statistics.logTotals();
 
     LOG.info("\n\nUploads attempted: {}, size {}, duration:  {}",
         uploadCount, uploadSize, uploadDuration);
@@ -267,29 +757,17 @@ public class Cloudup extends Configured implements Tool {
         uploadTimer.bandwidthDescription(uploadSize));
     LOG.info(String.format("Seconds per file %.3fs",
         ((double) uploadDuration.value()) / uploadCount));
-
-    // run through the outcomes and process errors
-    // at this point, all the uploads have been executed.
-    long finalUploadedSize = 0;
-    int errors = 0;
-    Exception exception = firstException[0];
-
-    for (Future<Long> outcome : outcomes) {
-      try {
-        finalUploadedSize += naturalize(await(outcome));
-      } catch (IOException e) {
-        errors++;
-        if (exception == null) {
-          exception = e;
-        }
-      } catch (InterruptedException ignored) {
-        // ignored
-      }
+    LOG.info("Upload latencies by file size:{}", latencies);
+    if (histogramFile != null) {
+      latencies.export(histogramFile);
+      LOG.info("Upload latencies written to {}", histogramFile);
     }
 
+    // results were aggregated as each upload completed
+    Exception exception = firstException[0];
     if (exception != null) {
       LOG.info("Number of errors: {} actual bytes uploaded = {}",
-          errors, finalUploadedSize);
+          failedUploads.get(), uploadedBytes.get());
       if (!ignoreFailures) {
         throw exception;
       }
@@ -307,6 +785,150 @@ public class Cloudup extends Configured implements Tool {
     return input > 0 ? input : 9;
   }
 
+  /**
+   * Submit a batch of uploads in the order chosen by the scheduling policy.
+   * Entries are only materialized as they are submitted.
+   * The makespan of the batch as predicted by the cost model is logged,
+   * whatever the policy, so that policies can be compared.
+   * @param uploads uploads to submit
+   * @param largest number of largest files to submit first
+   * @throws InterruptedIOException interrupted while waiting for space
+   * in the in-flight window
+   */
+  private void submitBatch(UploadTable uploads, int largest)
+      throws InterruptedIOException {
+    int[] order;
+    switch (policy) {
+    case makespan:
+      // with the cost rising with size, longest first is largest first
+      order = uploads.sortedBySize();
+      break;
+    case prefix:
+      order = prefixLimiter.interleave(uploads, uploads.sortedBySize());
+      break;
+    case locality:
+      order = prefixLimiter.interleaveRuns(uploads,
+          uploads.sortedBySourceDirectory(), LOCALITY_RUN_LENGTH);
+      break;
+    default:
+      order = largestThenShuffled(uploads, largest);
+      break;
+    }
+    if (deviceLimiter != null) {
+      order = deviceLimiter.interleave(uploads, order);
+    }
+    if (deduplicator != null) {
+      try {
+        order = deduplicator.find(uploads, order, workers);
+      } catch (IOException e) {
+        // the files will fail again when uploaded
+        LOG.warn("Failed to look for duplicate files: {}", e.toString());
+        LOG.debug("Deduplication failure", e);
+      }
+    }
+    LOG.info("Submitting {} uploads, policy {}: predicted makespan {}"
+            + " with {} threads; {}",
+        order.length, policy,
+        Duration.humanTime(
+            costModel.predictMakespan(uploads, order, workerThreads())),
+        workerThreads(), costModel);
+
+    long readyFiles = 0;
+    long readyBytes = 0;
+    for (int index : order) {
+      if (uploads.inState(index, UploadEntry.State.ready)) {
+        readyFiles++;
+        readyBytes += uploads.getSize(index);
+      }
+    }
+    progress.expect(readyFiles, readyBytes);
+
+    int uploadCount = 0;
+    long uploadSize = 0;
+    for (int index : order) {
+      // skip those already submitted without materializing them
+      if (uploads.inState(index, UploadEntry.State.ready)) {
+        long size = submit(uploads.get(index));
+        if (size >= 0) {
+          // file was submitted for upload
+          uploadCount++;
+          uploadSize += size;
+        }
+      }
+    }
+    LOG.info("Uploads commenced: {}, total size = {}",
+        uploadCount, uploadSize);
+  }
+
+  /**
+   * Order a batch of uploads: the largest few first, then the
+   * remainder in a random order.
+   * @param uploads uploads to order
+   * @param largest number of largest files to put first
+   * @return the indices of the uploads in the order to submit them
+   */
+  private int[] largestThenShuffled(UploadTable uploads, int largest) {
+    final int[] sorted = uploads.largest(largest);
+    final boolean[] chosen = new boolean[uploads.size()];
+    final int[] order = new int[uploads.size()];
+    int n = 0;
+    for (int index : sorted) {
+      LOG.info("Large file {}: size = {}: {}",
+          n + 1, uploads.getSize(index), uploads.getSource(index));
+      chosen[index] = true;
+      order[n++] = index;
+    }
+    for (int index : uploads.shuffled(random)) {
+      if (!chosen[index]) {
+        order[n++] = index;
+      }
+    }
+    return order;
+  }
+
+  /**
+   * Submit uploads as they are listed.
+   * Whatever has been listed since the last pass, up to the window size,
+   * is submitted as a batch, so the largest-first and shuffle policies
+   * work on a rolling window rather than the whole source tree.
+   * @param listing listing operation
+   * @param queue queue into which the listing is adding entries
+   * @param largest number of largest files to submit first in each window
+   * @throws IOException failure of the listing
+   * @throws InterruptedException interrupted while waiting for entries
+   */
+  private void streamUploads(Future<Long> listing,
+      BlockingQueue<UploadEntry> queue,
+      int largest) throws IOException, InterruptedException {
+    List<UploadEntry> batch = new ArrayList<>(window);
+    int windows = 0;
+    while (!exit.get()) {
+      UploadEntry head = queue.poll(STREAM_POLL_MILLIS, TimeUnit.MILLISECONDS);
+      if (head != null) {
+        batch.add(head);
+        queue.drainTo(batch, window - 1);
+        windows++;
+        LOG.debug("Window {}: {} files", windows, batch.size());
+        UploadTable table = new UploadTable(WINDOW_PAGE_SIZE);
+        for (UploadEntry entry : batch) {
+          table.add(entry);
+        }
+        batch.clear();
+        submitBatch(table, largest);
+      } else if (listing.isDone()) {
+        // raise any listing failure
+        long listed = await(listing);
+        // everything added by the listing is now visible.
+        if (queue.isEmpty()) {
+          progress.listed();
+          LOG.info("Listing of {} files complete; submitted in {} windows",
+              listed, windows);
+          break;
+        }
+      }
+    }
+  }
+
   /**
    * Await a future completing; uprate failures.
    * @param future future to exec
@@ -342,37 +964,425 @@ public class Cloudup extends Configured implements Tool {
   }
 
   /**
-   * Create an upload.
+   * Create an upload. Its outcome is added to the totals on completion,
+   * and its space in the in-flight window released, so nothing needs
+   * to be retained to collect the result.
+   * If the file is to be uploaded in parts, that happens asynchronously,
+   * and the upload completes when its last part does.
+   * A failed upload may be retried later, in which case it is still
+   * in flight until the retry completes.
    * @param upload upload entry
-   * @return length of upload; -1 for "none"
+   * @param prefix destination prefix of the upload
+   * @return the operation
    */
-  private Callable<Long> createUploadOperation(final UploadEntry upload) {
-    return new Callable<Long>() {
+  private Runnable createUploadOperation(final UploadEntry upload,
+      final String prefix) {
+    return new Runnable() {
+
+      /** Retries made so far. */
+      private int retries;
+
       @Override
-      public Long call() throws Exception {
-        return uploadOneFile(upload);
+      public void run() {
+        boolean pending = false;
+        try {
+          if (isToBeSplit(upload)) {
+            new MultipartOperation(upload, prefix).start();
+            pending = true;
+          } else if (uploadOneFile(upload) >= 0) {
+            sampleUpload(upload.getSize(), upload.getDuration());
+          }
+        } catch (IOException e) {
+          // failure of the upload, or to initiate a multipart upload
+          pending = retryLater(this, retries, upload.getSource(), e);
+          if (pending) {
+            retries++;
+          } else {
+            uploadFailed(upload, upload.getDest(), e);
+          }
+        } catch (RuntimeException e) {
+          upload.setState(UploadEntry.State.failed);
+          noteException(e);
+        } finally {
+          if (!pending) {
+            uploadFinished(upload, prefix);
+          }
+        }
       }
     };
   }
 
+  /**
+   * Schedule the retry of a failed operation, unless the failure cannot
+   * be retried, the operation has had all its retries, the retry budget
+   * is spent, or the upload is being abandoned.
+   * @param operation operation to retry
+   * @param attempt number of retries made already
+   * @param target what the operation was uploading, for logging
+   * @param e failure
+   * @return true if a retry is scheduled
+   */
+  private boolean retryLater(Runnable operation, int attempt, Object target,
+      IOException e) {
+    noteThrottling(e);
+    if (exit.get()) {
+      return false;
+    }
+    long delay = retryScheduler.retry(operation, attempt, e);
+    if (delay < 0) {
+      return false;
+    }
+    LOG.info("Retry {} of {} in {}: {}", attempt + 1, target,
+        Duration.humanTime(delay), e.toString());
+    return true;
+  }
+
+  /**
+   * Feed the time of a single stream upload to the cost model
+   * and any concurrency controller.
+   * @param size bytes uploaded
+   * @param duration time taken in millis
+   */
+  private void sampleUpload(long size, long duration) {
+    if (controller != null) {
+      // before the model learns from this upload
+      controller.completed(size, duration);
+    }
+    costModel.add(size, duration);
+    retryScheduler.succeeded();
+    progress.transferred(size);
+  }
+
+  /**
+   * Add the outcome of an upload to the totals, and release its space
+   * in the in-flight window; any upload held back under the same
+   * destination prefix is executed.
+   * @param upload upload which has finished
+   * @param prefix destination prefix of the upload
+   */
+  private void uploadFinished(UploadEntry upload, String prefix) {
+    if (upload.inState(UploadEntry.State.succeeded)) {
+      uploadedBytes.addAndGet(upload.getSize());
+    } else if (upload.inState(UploadEntry.State.failed)) {
+      failedUploads.incrementAndGet();
+    }
+    progress.finished(upload.getSize(),
+        upload.inState(UploadEntry.State.failed));
+    Runnable next = prefixLimiter.release(prefix);
+    if (next != null) {
+      workers.execute(next);
+    }
+    if (deviceLimiter != null) {
+      Runnable nextRead = deviceLimiter.release(
+          deviceLimiter.deviceOf(upload.getSource()));
+      if (nextRead != null) {
+        workers.execute(nextRead);
+      }
+    }
+    if (readAhead != null) {
+      // if it was uploaded in parts, or not at all
+      readAhead.discard(upload.getSource());
+    }
+    if (deduplicator != null) {
+      // run the copies of this file which were waiting for it
+      for (Runnable admit : deduplicator.finished(upload.getSource(),
+          upload.inState(UploadEntry.State.succeeded)
+              ? destFS.makeQualified(upload.getDest()) : null)) {
+        admit.run();
+      }
+    }
+    inflight.release(upload.getSize());
+    LOG.debug("Operation completed: {}", upload);
+  }
+
+  /**
+   * Execute an operation, unless its destination prefix is at its limit,
+   * in which case it runs when another operation under the prefix
+   * completes.
+   * @param prefix destination prefix of the operation
+   * @param operation operation
+   */
+  private void execute(String prefix, Runnable operation) {
+    if (prefixLimiter.admit(prefix, operation)) {
+      workers.execute(operation);
+    }
+  }
+
+  /**
+   * Wrap an operation so that, once executed, it only runs if the
+   * device of its source is not at its limit of uploads; otherwise
+   * it runs when another upload from the device completes.
+   * @param upload upload entry
+   * @param operation operation to wrap
+   * @return the operation to execute
+   */
+  private Runnable limitDeviceReads(UploadEntry upload,
+      final Runnable operation) {
+    if (deviceLimiter == null) {
+      return operation;
+    }
+    final String device = deviceLimiter.deviceOf(upload.getSource());
+    return new Runnable() {
+      @Override
+      public void run() {
+        if (deviceLimiter.admit(device, operation)) {
+          operation.run();
+        }
+      }
+    };
+  }
+
+  /**
+   * Create the operation for a duplicate of a file: once the original
+   * has been uploaded, copy it at the destination. If the original
+   * failed, or the destination cannot copy files, the duplicate is
+   * uploaded instead.
+   * @param upload upload entry of the duplicate
+   * @param prefix destination prefix of the upload
+   * @param original source of the original
+   * @return the operation
+   */
+  private Runnable createCopyOperation(final UploadEntry upload,
+      final String prefix, final Path original) {
+    final Runnable uploadOperation = createUploadOperation(upload, prefix);
+    return new Runnable() {
+      @Override
+      public void run() {
+        Path from = deduplicator.uploadedAs(original);
+        if (from != null && !exit.get()) {
+          Path dest = destFS.makeQualified(upload.getDest());
+          try {
+            upload.setStartTime(now());
+            if (uploader.copy(from, dest)) {
+              LOG.debug("Copied {} to {}", from, dest);
+              uploadSucceeded(upload, dest);
+              deduplicator.copied(upload.getSize());
+              uploadFinished(upload, prefix);
+              return;
+            }
+          } catch (IOException e) {
+            LOG.warn("Failed to copy {} to {}; uploading it: {}",
+                from, dest, e.toString());
+          } catch (RuntimeException e) {
+            upload.setState(UploadEntry.State.failed);
+            noteException(e);
+            uploadFinished(upload, prefix);
+            return;
+          }
+        }
+        uploadOperation.run();
+      }
+    };
+  }
+
+  /**
+   * Should a file be uploaded in parts?
+   * Files at or above the split threshold are; so are smaller files of
+   * at least two blocks if, when they come to be uploaded, there is no
+   * other work queued for idle workers, which is to say near the end of
+   * the upload, when a single stream would leave them idle.
+   * @param upload upload
+   * @return true if the upload is to be split
+   */
+  private boolean isToBeSplit(UploadEntry upload) {
+    if (splitThreshold <= 0 || exit.get()
+        || !upload.inState(UploadEntry.State.queued)) {
+      return false;
+    }
+    long size = upload.getSize();
+    if (size >= splitThreshold) {
+      return true;
+    }
+    ThreadPoolExecutor pool = (ThreadPoolExecutor) workers;
+    return size >= 2 * blockSize
+        && pool.getQueue().isEmpty()
+        && pool.getActiveCount() < pool.getCorePoolSize();
+  }
+
   /**
    *
    * Submit an upload; does nothing if the upload is already queued.
+   * Blocks while the in-flight window is full; an upload whose
+   * destination prefix is at its limit is held back until another
+   * upload under that prefix completes.
    * @param upload upload to submit
    * @return size to upload; -1 for no upload
+   * @throws InterruptedIOException interrupted while waiting for space
+   * in the in-flight window
    */
-  private long submit(final UploadEntry upload) {
+  private long submit(final UploadEntry upload) throws InterruptedIOException {
     LOG.debug("Submit {}", upload);
     if (upload.inState(UploadEntry.State.ready)) {
-      Callable<Long> operation = createUploadOperation(upload);
+      progress.submitted(upload.getSize());
+      if (packer != null && packer.accepts(upload)) {
+        return pack(upload);
+      }
+      final String prefix = prefixLimiter.prefixOf(upload.getDest());
+      Path original = deduplicator != null
+          ? deduplicator.originalOf(upload.getSource()) : null;
+      final Runnable operation = limitDeviceReads(upload, original != null
+          ? createCopyOperation(upload, prefix, original)
+          : createUploadOperation(upload, prefix));
+      try {
+        inflight.acquire(upload.getSize());
+      } catch (InterruptedException e) {
+        throw (InterruptedIOException)
+            new InterruptedIOException("Interrupted").initCause(e);
+      }
       upload.setState(UploadEntry.State.queued);
+      if (journal != null) {
+        journal.record(upload, UploadEntry.State.queued);
+      }
       LOG.debug("Queued {}", upload);
-      completion.submit(operation);
+      if (readAhead != null && original == null
+          && (splitThreshold <= 0 || upload.getSize() < splitThreshold)) {
+        readAhead.prefetch(upload.getSource(), upload.getSize());
+      }
+      Runnable admit = new Runnable() {
+        @Override
+        public void run() {
+          execute(prefix, operation);
+        }
+      };
+      if (original == null || !deduplicator.defer(original, admit)) {
+        admit.run();
+      }
+      submittedFiles++;
+      submittedBytes += upload.getSize();
       return upload.getSize();
     }
     return -1;
   }
 
+  /**
+   * Add an upload to the pending pack of small files, submitting
+   * the pack if that fills it.
+   * @param upload upload to pack
+   * @return size to upload
+   * @throws InterruptedIOException interrupted while waiting for space
+   * in the in-flight window
+   */
+  private long pack(UploadEntry upload) throws InterruptedIOException {
+    upload.setState(UploadEntry.State.queued);
+    if (journal != null) {
+      journal.record(upload, UploadEntry.State.queued);
+    }
+    Packer.Pack pack = packer.add(upload);
+    if (pack != null) {
+      submitPack(pack);
+    }
+    submittedFiles++;
+    submittedBytes += upload.getSize();
+    return upload.getSize();
+  }
+
+  /**
+   * Submit a pack of small files, which takes one place in the
+   * in-flight window and under its destination prefix.
+   * @param pack pack to write
+   * @throws InterruptedIOException interrupted while waiting for space
+   * in the in-flight window
+   */
+  private void submitPack(final Packer.Pack pack)
+      throws InterruptedIOException {
+    final String prefix = prefixLimiter.prefixOf(pack.getContainer());
+    Runnable operation = new Runnable() {
+
+      /** Retries made so far. */
+      private int retries;
+
+      @Override
+      public void run() {
+        boolean pending = false;
+        Path container = destFS.makeQualified(pack.getContainer());
+        try {
+          writePack(pack, container);
+        } catch (IOException e) {
+          pending = retryLater(this, retries, container, e);
+          if (pending) {
+            retries++;
+          } else {
+            for (UploadEntry upload : pack.getEntries()) {
+              uploadFailed(upload, container, e);
+            }
+          }
+        } catch (RuntimeException e) {
+          for (UploadEntry upload : pack.getEntries()) {
+            upload.setState(UploadEntry.State.failed);
+          }
+          noteException(e);
+        } finally {
+          if (!pending) {
+            packFinished(pack, prefix);
+          }
+        }
+      }
+    };
+    try {
+      inflight.acquire(pack.getSize());
+    } catch (InterruptedException e) {
+      throw (InterruptedIOException)
+          new InterruptedIOException("Interrupted").initCause(e);
+    }
+    LOG.debug("Queued pack of {} files: {}", pack.getEntries().size(),
+        pack.getContainer());
+    execute(prefix, operation);
+  }
+
+  /**
+   * Write a pack to its container, and record the outcome of
+   * every upload in it if the container was written.
+   * @param pack pack to write
+   * @param container qualified path of the container
+   * @throws IOException failure to write the container
+   */
+  private void writePack(Packer.Pack pack, Path container)
+      throws IOException {
+    if (exit.get()) {
+      return;
+    }
+    long started = now();
+    for (UploadEntry upload : pack.getEntries()) {
+      upload.setStartTime(started);
+    }
+    long startedNanos = System.nanoTime();
+    packer.write(pack);
+    latencies.record(pack.getSize(), System.nanoTime() - startedNanos);
+    sampleUpload(pack.getSize(), now() - started);
+    for (UploadEntry upload : pack.getEntries()) {
+      // only the files which could not be read have failed
+      if (upload.getException() == null) {
+        uploadSucceeded(upload, container);
+      } else {
+        uploadFailed(upload, upload.getDest(), upload.getException());
+      }
+    }
+  }
+
+  /**
+   * Add the outcome of the uploads in a pack to the totals, and
+   * release the space of the pack.
+   * @param pack pack which has finished
+   * @param prefix destination prefix of the pack
+   */
+  private void packFinished(Packer.Pack pack, String prefix) {
+    for (UploadEntry upload : pack.getEntries()) {
+      if (upload.inState(UploadEntry.State.succeeded)) {
+        uploadedBytes.addAndGet(upload.getSize());
+      } else if (upload.inState(UploadEntry.State.failed)) {
+        failedUploads.incrementAndGet();
+      }
+      progress.finished(upload.getSize(),
+          upload.inState(UploadEntry.State.failed));
+    }
+    Runnable next = prefixLimiter.release(prefix);
+    if (next != null) {
+      workers.execute(next);
+    }
+    inflight.release(pack.getSize());
+    LOG.debug("Pack completed: {}", pack.getContainer());
+  }
+
   /**
    * Callable to prepare destination;
    * @return a string for logging.
@@ -391,31 +1401,148 @@ public class Cloudup extends Configured implements Tool {
     };
   }
 
-  private Callable<List<UploadEntry>> buildUploads() {
-    return new Callable<List<UploadEntry>>() {
+  /**
+   * Callable to list the source into a sink.
+   * @param sink destination of listed entries
+   * @return the number of files listed
+   */
+  private Callable<Long> buildUploads(final UploadSink sink) {
+    return new Callable<Long>() {
       @Override
-      public List<UploadEntry> call() throws Exception {
+      public Long call() throws Exception {
+        if (manifest != null) {
+          LOG.info("Reading files to upload from {}", manifest);
+          return readManifest(sink);
+        }
         LOG.info("Listing source files under {}", sourcePath);
-        return createUploadList();
+        return createUploadList(sink);
       }
     };
   }
 
   /**
-   * List the source files and build the list
-   * @return list of uploads
+   * List the source files, adding an entry for each one to the sink.
+   * If listing threads are enabled the tree is walked in parallel,
+   * otherwise {@code listFiles(path, true)} is used.
+   * Either way, the listing throughput is logged.
+   * @param sink destination of listed entries
+   * @return number of files listed
    * @throws IOException failure to list
    */
-  private List<UploadEntry> createUploadList() throws IOException {
-    List<UploadEntry> uploads = new ArrayList<>();
-    RemoteIterator<LocatedFileStatus> ri = sourceFS.listFiles(sourcePath, true);
-    while (ri.hasNext()) {
-      LocatedFileStatus status = ri.next();
-      UploadEntry entry = new UploadEntry(status);
-      entry.setDest(getFinalPath(status.getPath()));
-      uploads.add(entry);
+  private long createUploadList(final UploadSink sink) throws IOException {
+    if (walkers > 0) {
+      TreeWalker walker = new TreeWalker(sourceFS, walkers);
+      walker.walk(sourcePath, new TreeWalker.Listener() {
+        @Override
+        public void found(FileStatus status) throws IOException {
+          sink.add(createUploadEntry(status));
+        }
+      });
+      LOG.info("Parallel listing of {} with {} threads: {}",
+          sourcePath, walkers, walker.throughput());
+      return walker.getFiles();
+    } else {
+      NanoTimer timer = new NanoTimer();
+      long count = 0;
+      RemoteIterator<LocatedFileStatus> ri
+          = sourceFS.listFiles(sourcePath, true);
+      while (ri.hasNext()) {
+        sink.add(createUploadEntry(ri.next()));
+        count++;
+      }
+      timer.end();
+      LOG.info("Serial listing of {}: {}",
+          sourcePath,
+          TreeWalker.describeThroughput(-1, count, timer.duration()));
+      return count;
+    }
+  }
+
+  /**
+   * Callable to build the index of files at the destination.
+   * @return the index
+   */
+  private Callable<DestinationIndex> buildDestinationIndex() {
+    return new Callable<DestinationIndex>() {
+      @Override
+      public DestinationIndex call() throws Exception {
+        LOG.info("Listing destination files under {}", destPath);
+        return DestinationIndex.build(destFS, destPath, walkers);
+      }
+    };
+  }
+
+  /**
+   * Read the manifest, adding an entry for each line to the sink.
+   * Relative source paths are resolved against the source path,
+   * relative destinations against the destination path.
+   * The source file is only probed for its length if the manifest
+   * entry does not include a size.
+   * @param sink destination of entries
+   * @return the number of entries read
+   * @throws IOException failure to read or parse the manifest, or to
+   * get the status of any file without a size.
+   */
+  private long readManifest(UploadSink sink) throws IOException {
+    NanoTimer timer = new NanoTimer();
+    long count = 0;
+    long probes = 0;
+    try (ManifestReader reader = new ManifestReader(manifest,
+        ManifestReader.DEFAULT_BUFFER_SIZE)) {
+      List<String> fields;
+      while ((fields = reader.next()) != null) {
+        Path source = sourceFS.makeQualified(
+            resolve(sourcePath, fields.get(0)));
+        String size = fields.size() > 1 ? fields.get(1) : "";
+        UploadEntry entry;
+        if (size.isEmpty()) {
+          entry = new UploadEntry(sourceFS.getFileStatus(source));
+          probes++;
+        } else {
+          try {
+            entry = new UploadEntry(source, Long.parseLong(size));
+          } catch (NumberFormatException e) {
+            throw new IOException(String.format("Invalid size \"%s\" at %s:%d",
+                size, manifest, reader.getLineNumber()), e);
+          }
+        }
+        String dest = fields.size() > 2 ? fields.get(2) : "";
+        entry.setDest(dest.isEmpty()
+            ? getFinalPath(source)
+            : resolve(destPath, dest));
+        sink.add(entry);
+        count++;
+      }
     }
-    return uploads;
+    timer.end();
+    LOG.info("Read manifest {}: {}; status probes: {}",
+        manifest,
+        TreeWalker.describeThroughput(-1, count, timer.duration()),
+        probes);
+    return count;
+  }
+
+  /**
+   * Resolve a path against a base path, unless it is already absolute.
+   * @param base base path
+   * @param path path string
+   * @return the resolved path
+   */
+  private static Path resolve(Path base, String path) {
+    Path p = new Path(path);
+    return p.isAbsolute() ? p : new Path(base, path);
+  }
+
+  /**
+   * Create the upload entry for a source file.
+   * @param status source file status
+   * @return an entry with the final destination path set.
+   * @throws IOException failure to determine the destination
+   */
+  private UploadEntry createUploadEntry(FileStatus status) throws IOException {
+    UploadEntry entry = new UploadEntry(status);
+    entry.setDest(getFinalPath(status.getPath()));
+    return entry;
   }
 
   /**
@@ -444,43 +1571,118 @@ public class Cloudup extends Configured implements Tool {
     upload.setStartTime(now());
     final Path source = upload.getSource();
     final Path dest = destFS.makeQualified(upload.getDest());
-    try {
-      LOG.info("Uploading {} to {} (size: {}",
-          source, dest, upload.getSize());
+    LOG.info("Uploading {} to {} (size: {}",
+        source, dest, upload.getSize());
 /*
-      try {
-        final FileStatus status = destFS.getFileStatus(dest);
-        if (status.isDirectory()) {
-          throw new FileAlreadyExistsException(
-              String.format("Directory found at %s", dest));
-        }
-        if (!overwrite) {
-          throw new FileAlreadyExistsException(
-              String.format("File found at %s and overwrite=false",
-                  dest));
-        }
-      } catch (FileNotFoundException ignored) {
-        // no file at the destination.
+    try {
+      final FileStatus status = destFS.getFileStatus(dest);
+      if (status.isDirectory()) {
+        throw new FileAlreadyExistsException(
+            String.format("Directory found at %s", dest));
+      }
+      if (!overwrite) {
+        throw new FileAlreadyExistsException(
+            String.format("File found at %s and overwrite=false",
+                dest));
       }
+    } catch (FileNotFoundException ignored) {
+      // no file at the destination.
+    }
 */
-      destFS.copyFromLocalFile(false, overwrite, source, dest);
-      upload.setState(UploadEntry.State.succeeded);
-      upload.setEndTime(now());
-      LOG.info("Successful upload of {} tpo {} in {} s",
-          source,
-          dest,
-          Duration.humanTime(upload.getDuration()));
-    } catch (IOException e) {
-      upload.setState(UploadEntry.State.failed);
-      upload.setException(e);
-      upload.setEndTime(now());
-      LOG.warn("Failed to  upload {} : {}", source, e.toString());
-      LOG.debug("Upload to {} failed", dest, e);
-      noteException(e);
-    }
-    return upload.inState(UploadEntry.State.succeeded) ?
-        upload.getSize()
-        : 0;
+    Checksums.Digest digest = checksums != null ? checksums.start() : null;
+    long started = System.nanoTime();
+    byte[] data = readAhead(source);
+    if (data != null) {
+      try {
+        uploader.upload(data, dest, digest);
+      } finally {
+        readAhead.release(data);
+      }
+    } else {
+      uploader.upload(source, dest, digest);
+    }
+    latencies.record(upload.getSize(), System.nanoTime() - started);
+    if (digest != null) {
+      upload.setDigest(digest.toString());
+    }
+    uploadSucceeded(upload, dest);
+    return upload.getSize();
+  }
+
+  /**
+   * Take the contents of a file from the read-ahead stage.
+   * @param source source file
+   * @return the contents, or null if they have not been read ahead
+   * @throws InterruptedIOException interrupted while waiting for a read
+   */
+  private byte[] readAhead(Path source) throws InterruptedIOException {
+    if (readAhead == null) {
+      return null;
+    }
+    try {
+      return readAhead.take(source);
+    } catch (InterruptedException e) {
+      throw (InterruptedIOException)
+          new InterruptedIOException("Interrupted").initCause(e);
+    }
+  }
+
+  /**
+   * Record the success of an upload.
+   * @param upload upload
+   * @param dest qualified destination
+   */
+  private void uploadSucceeded(UploadEntry upload, Path dest) {
+    upload.setState(UploadEntry.State.succeeded);
+    upload.setEndTime(now());
+    if (journal != null) {
+      journal.record(upload, UploadEntry.State.succeeded);
+    }
+    if (report != null) {
+      report.record(upload, dest);
+    }
+    LOG.info("Successful upload of {} tpo {} in {} s",
+        upload.getSource(),
+        dest,
+        Duration.humanTime(upload.getDuration()));
+    if (upload.getDigest() != null) {
+      LOG.info("Checksums of {}: {}", upload.getSource(), upload.getDigest());
+    }
+  }
+
+  /**
+   * Record the failure of an upload.
+   * @param upload upload
+   * @param dest qualified destination
+   * @param e failure
+   */
+  private void uploadFailed(UploadEntry upload, Path dest, IOException e) {
+    upload.setState(UploadEntry.State.failed);
+    upload.setException(e);
+    upload.setEndTime(now());
+    if (journal != null) {
+      journal.record(upload, UploadEntry.State.failed);
+    }
+    if (report != null) {
+      report.record(upload, dest);
+    }
+    LOG.warn("Failed to  upload {} : {}", upload.getSource(), e.toString());
+    LOG.debug("Upload to {} failed", dest, e);
+    noteException(e);
+  }
+
+  /**
+   * Count a failure due to throttling, and tell any concurrency
+   * controller of it.
+   * @param e failure
+   */
+  private void noteThrottling(IOException e) {
+    if (ConcurrencyController.isThrottling(e)) {
+      progress.throttled();
+      if (controller != null) {
+        controller.throttled();
+      }
+    }
   }
 
   /**
@@ -489,11 +1691,13 @@ public class Cloudup extends Configured implements Tool {
    * if ignoreFailures == false, triggers the end of the upload
    * @param ex exception.
    */
-  private synchronized void noteException(IOException ex) {
+  private synchronized void noteException(Exception ex) {
     if (firstException[0] == null) {
       firstException[0] = ex;
       if (!ignoreFailures) {
         exit.set(true);
+        // let operations waiting to retry complete
+        retryScheduler.expedite();
       }
     }
   }
@@ -513,39 +1717,282 @@ public class Cloudup extends Configured implements Tool {
           + " base = " + sourcePath + " child = " + srcFile);
     }
     if (!relativePath.getPath().isEmpty()) {
-      return new Path(destPath, relativePath.getPath());
+      return compressedName(new Path(destPath, relativePath.getPath()));
     } else {
       // relative path is none.
       if (destPathStatus != null && destPathStatus.isFile()) {
         return destPath;
       } else {
         // source is a file, dest is a dir
-        return new Path(destPath, srcFile.getName());
+        return compressedName(new Path(destPath, srcFile.getName()));
       }
     }
   }
 
   /**
-   * Extracts the stats of a filesystem and dump it.
-   * @param fs filesystem.
+   * Add the suffix of the compression codec, if compressing, to
+   * a destination path.
+   * @param dest destination
+   * @return the path to upload to
+   */
+  private Path compressedName(Path dest) {
+    return compression != null ? dest.suffix(compression.getExtension())
+        : dest;
+  }
+
+  /**
+   * An upload of a file in parts.
+   * The first part is uploaded in the thread which starts the upload;
+   * the others are queued for the workers. Whichever part finishes last
+   * commits the upload, or aborts it if any part failed.
    */
-  private void dumpStats(FileSystem fs, String header) {
- /*  // Not supported on Hadoop 2.7
-    LOG.info("\n" + header +": " + fs.getUri());
-    Iterator<org.apache.hadoop.fs.StorageStatistics.LongStatistic> iterator
-        = fs.getStorageStatistics().getLongStatistics();
-    // convert to a (sorted) treemap
-    TreeMap<String, Long> results = new TreeMap<>();
-    while (iterator.hasNext()) {
-      StorageStatistics.LongStatistic stat = iterator.next();
-      results.put(stat.getName(), stat.getValue());
+  private final class MultipartOperation {
+
+    private final UploadEntry upload;
+
+    private final String prefix;
+
+    private final Path dest;
+
+    private final int parts;
+
+    private final AtomicInteger remaining;
+
+    private Uploader.MultipartUpload multipart;
+
+    /** Checksums of the parts; null if not checksumming. */
+    private final Checksums.Digest[] digests;
+
+    /** First failure of a part; guarded by this. */
+    private IOException failure;
+
+    /** Time the upload started, from {@link System#nanoTime()}. */
+    private long startedNanos;
+
+    private MultipartOperation(UploadEntry upload, String prefix)
+        throws IOException {
+      this.upload = upload;
+      this.prefix = prefix;
+      this.dest = destFS.makeQualified(upload.getDest());
+      this.parts = (int) Math.max(1,
+          (upload.getSize() + blockSize - 1) / blockSize);
+      this.remaining = new AtomicInteger(parts);
+      this.digests = checksums != null ? new Checksums.Digest[parts] : null;
     }
-    // log the results
-    for (Map.Entry<String, Long> entry : results.entrySet()) {
-      LOG.info("{}={}", entry.getKey(), entry.getValue());
+
+    /**
+     * Start the upload: initiate it, queue all parts but the first,
+     * then upload that.
+     * @throws IOException failure to initiate the upload; if this is
+     * raised, no parts have been started
+     */
+    private void start() throws IOException {
+      upload.setStartTime(now());
+      startedNanos = System.nanoTime();
+      LOG.info("Uploading {} to {} (size: {}) in {} parts",
+          upload.getSource(), dest, upload.getSize(), parts);
+      multipart = uploader.initiate(upload.getSource(), dest, parts);
+      multipartUploads.incrementAndGet();
+      for (int i = 1; i < parts; i++) {
+        workers.execute(createPart(i));
+      }
+      createPart(0).run();
     }
-*/
 
+    /**
+     * Create the operation to upload one part.
+     * @param part part number
+     * @return the operation
+     */
+    private Runnable createPart(final int part) {
+      return new Runnable() {
+
+        /** Retries made so far. */
+        private int retries;
+
+        @Override
+        public void run() {
+          boolean pending = false;
+          try {
+            if (!exit.get() && getFailure() == null) {
+              long offset = part * blockSize;
+              long length = Math.min(blockSize, upload.getSize() - offset);
+              long started = now();
+              Checksums.Digest digest = digests != null
+                  ? checksums.start() : null;
+              multipart.uploadPart(part, offset, length, digest);
+              if (digests != null) {
+                digests[part] = digest;
+              }
+              sampleUpload(length, now() - started);
+              LOG.debug("Uploaded part {} of {}", part, dest);
+            }
+          } catch (IOException e) {
+            pending = retryLater(this, retries,
+                "part " + part + " of " + dest, e);
+            if (pending) {
+              retries++;
+            } else {
+              setFailure(e);
+            }
+          } catch (RuntimeException e) {
+            setFailure(new IOException(e.toString(), e));
+          } finally {
+            if (!pending && remaining.decrementAndGet() == 0) {
+              finish();
+            }
+          }
+        }
+      };
+    }
+
+    private synchronized IOException getFailure() {
+      return failure;
+    }
+
+    private synchronized void setFailure(IOException e) {
+      if (failure == null) {
+        failure = e;
+      }
+    }
+
+    /**
+     * Commit or abort the upload once all parts are done.
+     */
+    private void finish() {
+      try {
+        IOException e = getFailure();
+        if (e == null && !exit.get()) {
+          multipart.complete();
+          latencies.record(upload.getSize(), System.nanoTime() - startedNanos);
+          if (digests != null) {
+            upload.setDigest(checksums.combine(digests));
+          }
+          uploadSucceeded(upload, dest);
+        } else {
+          multipart.abort();
+          if (e != null) {
+            uploadFailed(upload, dest, e);
+          }
+        }
+      } catch (IOException e) {
+        multipart.abort();
+        noteThrottling(e);
+        uploadFailed(upload, dest, e);
+      } catch (RuntimeException e) {
+        multipart.abort();
+        upload.setState(UploadEntry.State.failed);
+        noteException(e);
+      } finally {
+        uploadFinished(upload, prefix);
+      }
+    }
+  }
+
+  /**
+   * Sink which adds entries to an upload table.
+   */
+  private static final class TableSink implements UploadSink {
+
+    private final UploadTable uploads;
+
+    private TableSink(UploadTable uploads) {
+      this.uploads = uploads;
+    }
+
+    @Override
+    public void add(UploadEntry entry) {
+      synchronized (uploads) {
+        uploads.add(entry);
+      }
+    }
+  }
+
+  /**
+   * Sink which skips entries which are already at the destination,
+   * passing the others on.
+   */
+  private final class UpdateSink implements UploadSink {
+
+    private final Future<DestinationIndex> index;
+
+    private final UploadSink sink;
+
+    private UpdateSink(Future<DestinationIndex> index, UploadSink sink) {
+      this.index = index;
+      this.sink = sink;
+    }
+
+    @Override
+    public void add(UploadEntry entry) throws IOException {
+      DestinationIndex destination;
+      try {
+        destination = await(index);
+      } catch (InterruptedException e) {
+        throw (InterruptedIOException)
+            new InterruptedIOException("Interrupted").initCause(e);
+      }
+      if (destination.isUpToDate(destFS.makeQualified(entry.getDest()),
+          entry.getSize(), entry.getModificationTime(), updateMtime)) {
+        LOG.debug("Skipping {}: already at the destination", entry);
+        skippedFiles.incrementAndGet();
+        skippedBytes.addAndGet(entry.getSize());
+      } else {
+        sink.add(entry);
+      }
+    }
+  }
+
+  /**
+   * Sink which skips entries recorded as uploaded in the journal
+   * being resumed, passing the others on.
+   */
+  private final class ResumeSink implements UploadSink {
+
+    private final UploadSink sink;
+
+    private ResumeSink(UploadSink sink) {
+      this.sink = sink;
+    }
+
+    @Override
+    public void add(UploadEntry entry) throws IOException {
+      if (replay.isCompleted(entry.getSource())) {
+        LOG.debug("Skipping {}: uploaded before resume", entry);
+        resumedFiles.incrementAndGet();
+        resumedBytes.addAndGet(entry.getSize());
+      } else {
+        sink.add(entry);
+      }
+    }
+  }
+
+  /**
+   * Sink which queues entries for streaming submission.
+   * Blocks while the queue is full, failing if the upload is
+   * being abandoned.
+   */
+  private final class QueueSink implements UploadSink {
+
+    private final BlockingQueue<UploadEntry> queue;
+
+    private QueueSink(BlockingQueue<UploadEntry> queue) {
+      this.queue = queue;
+    }
+
+    @Override
+    public void add(UploadEntry entry) throws IOException {
+      try {
+        while (!queue.offer(entry, STREAM_POLL_MILLIS, TimeUnit.MILLISECONDS)) {
+          if (exit.get()) {
+            throw new InterruptedIOException("Upload abandoned");
+          }
+        }
+      } catch (InterruptedException e) {
+        throw (InterruptedIOException)
+            new InterruptedIOException("Interrupted").initCause(e);
+      }
+    }
   }
 
   /**
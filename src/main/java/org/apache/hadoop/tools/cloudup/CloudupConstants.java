@@ -27,5 +27,5 @@ public class CloudupConstants {
   public static final int E_NOT_FOUND = 44;
   public static final int E_NO_ACCESS = 41;
 
-  public static final String USAGE = "Usage: cloudup -s source -d dest [-o] [-i] [-l <largest>] [-t threads] ";
+  public static final String USAGE = "Usage: cloudup -s source -d dest [-o] [-i] [-p interval] [-Z interval] [-M metrics] [-H histograms] [-l <largest>] [-t threads] [-a [-n min-threads] [-N max-threads]] [-w walkers] [-S [-W window]] [-m manifest] [-u [-U]] [-j journal] [-r journal] [-F report [-E format]] [-f inflight-files] [-b inflight-bytes] [-P policy] [-x prefix-depth] [-X prefix-limit] [-v device-limit] [-T split-threshold [-B block-size]] [-e engine] [-R retries] [-g retry-budget] [-C checksums] [-z codec] [-G] [-A read-ahead] [-k pack-threshold [-K pack-size]]";
 }
@@ -0,0 +1,194 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package org.apache.hadoop.tools.cloudup;
+
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.io.compress.BZip2Codec;
+import org.apache.hadoop.io.compress.CodecPool;
+import org.apache.hadoop.io.compress.CompressionCodec;
+import org.apache.hadoop.io.compress.CompressionCodecFactory;
+import org.apache.hadoop.io.compress.CompressionOutputStream;
+import org.apache.hadoop.io.compress.Compressor;
+import org.apache.hadoop.io.compress.GzipCodec;
+
+/**
+ * Compression of files as they are uploaded, with any Hadoop
+ * {@link CompressionCodec}, and statistics of the compression.
+ * <p>
+ * For gzip and bzip2, the concatenation of compressed streams is itself
+ * a valid compressed stream, decompressing to the concatenation of the
+ * data. A large file can then be split into blocks which are compressed
+ * in parallel, as the parts of a multipart upload, and joined.
+ * Other codecs must compress a file in a single stream.
+ * <p>
+ * The CPU time measured is that of the uploading threads while
+ * compressing, which includes reading the source and writing the
+ * compressed data. Thread safe.
+ */
+final class Compression {
+
+  private static final ThreadMXBean THREADS =
+      ManagementFactory.getThreadMXBean();
+
+  private final CompressionCodec codec;
+
+  private final AtomicLong bytesIn = new AtomicLong(0);
+
+  private final AtomicLong bytesOut = new AtomicLong(0);
+
+  private final AtomicLong cpuNanos = new AtomicLong(0);
+
+  private final AtomicLong streams = new AtomicLong(0);
+
+  private Compression(CompressionCodec codec) {
+    this.codec = codec;
+  }
+
+  /**
+   * Find a codec by name.
+   * @param name codec alias, such as "gzip", or class name
+   * @param conf configuration listing the codecs
+   * @return the compression
+   * @throws IllegalArgumentException if there is no such codec
+   */
+  static Compression create(String name, Configuration conf) {
+    CompressionCodecFactory factory = new CompressionCodecFactory(conf);
+    CompressionCodec codec = factory.getCodecByName(name);
+    if (codec == null) {
+      throw new IllegalArgumentException(String.format(
+          "Unknown compression codec \"%s\"; valid codecs are %s",
+          name, CompressionCodecFactory.getCodecClasses(conf)));
+    }
+    return new Compression(codec);
+  }
+
+  /**
+   * Get the suffix of compressed files, such as ".gz".
+   * @return the suffix
+   */
+  String getExtension() {
+    return codec.getDefaultExtension();
+  }
+
+  /**
+   * Can compressed blocks of a file be concatenated?
+   * @return true if a file can be compressed in parallel blocks
+   */
+  boolean isConcatenable() {
+    return codec instanceof GzipCodec || codec instanceof BZip2Codec;
+  }
+
+  /**
+   * Compress data from one stream to another.
+   * The destination stream is not closed.
+   * @param in source
+   * @param length number of bytes to compress
+   * @param out destination
+   * @param digest digest to update with the uncompressed data;
+   * may be null
+   * @throws IOException failure
+   */
+  void compress(InputStream in, long length, OutputStream out,
+      Checksums.Digest digest) throws IOException {
+    long cpu = cpuTime();
+    CountingStream counting = new CountingStream(out);
+    Compressor compressor = CodecPool.getCompressor(codec);
+    try {
+      CompressionOutputStream compressed =
+          codec.createOutputStream(counting, compressor);
+      try {
+        HadoopUploader.copy(in, compressed, length, digest);
+        compressed.finish();
+        compressed.flush();
+      } finally {
+        // frees any deflater of the stream's own, as the pure Java gzip
+        // stream has; closing the counting stream only flushes it
+        compressed.close();
+      }
+    } finally {
+      CodecPool.returnCompressor(compressor);
+    }
+    streams.incrementAndGet();
+    bytesIn.addAndGet(length);
+    bytesOut.addAndGet(counting.count);
+    if (cpu >= 0) {
+      cpuNanos.addAndGet(cpuTime() - cpu);
+    }
+  }
+
+  /**
+   * Get the CPU time of this thread.
+   * @return the time in nanos; -1 if unknown
+   */
+  private static long cpuTime() {
+    return THREADS.isCurrentThreadCpuTimeSupported()
+        ? THREADS.getCurrentThreadCpuTime()
+        : -1;
+  }
+
+  @Override
+  public String toString() {
+    long in = bytesIn.get();
+    long out = bytesOut.get();
+    return String.format("%s: %,d streams; %,d bytes compressed to %,d;"
+            + " ratio %.2f; CPU %.2f ns/byte",
+        codec.getClass().getSimpleName(), streams.get(), in, out,
+        in / (double) Math.max(1, out),
+        cpuNanos.get() / (double) Math.max(1, in));
+  }
+
+  /**
+   * Stream which counts the bytes written through it; does not close
+   * the wrapped stream.
+   */
+  private static final class CountingStream extends FilterOutputStream {
+
+    private long count;
+
+    private CountingStream(OutputStream out) {
+      super(out);
+    }
+
+    @Override
+    public void write(int b) throws IOException {
+      out.write(b);
+      count++;
+    }
+
+    @Override
+    public void write(byte[] b, int off, int len) throws IOException {
+      out.write(b, off, len);
+      count += len;
+    }
+
+    @Override
+    public void close() throws IOException {
+      flush();
+    }
+  }
+}
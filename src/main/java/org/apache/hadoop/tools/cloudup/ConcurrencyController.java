@@ -0,0 +1,324 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.apache.hadoop.tools.cloudup;
+
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.regex.Pattern;
+
+import com.google.common.base.Preconditions;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Resizes the upload thread pool while an upload is in progress,
+ * additive increase, multiplicative decrease (AIMD).
+ * <p>
+ * At every interval the throughput of the uploads completed in that
+ * interval is compared with that of the previous one.
+ * <ul>
+ *   <li>If any upload was throttled, or uploads took much longer than
+ *   the cost model predicted, the pool is shrunk by a fraction.</li>
+ *   <li>If the throughput improved, the pool is grown by a few
+ *   threads.</li>
+ *   <li>If it did not improve after the pool was grown, that growth
+ *   is undone, and the pool is held at its size for a few intervals
+ *   before probing again.</li>
+ * </ul>
+ * The size always stays within the configured bounds, and the pool is
+ * not grown while it has idle threads. Every decision is logged.
+ */
+final class ConcurrencyController implements Runnable {
+
+  private static final Logger LOG =
+      LoggerFactory.getLogger(ConcurrencyController.class);
+
+  /**
+   * Throttling in an exception message: the error code of a store, or a
+   * 503 or 429 status after "status code", "HTTP/1.1" or "HTTP" and
+   * not followed by further digits.
+   */
+  private static final Pattern THROTTLING = Pattern.compile(
+      "SlowDown|ServerBusy|TooManyRequests|Throttl"
+      + "|(?i:status\\s*code|HTTP(/[0-9.]+)?)\\s*[:=]?\\s*(503|429)\\b"
+      + "|\\b(503|429) (Service Unavailable|Too Many Requests|Slow Down)");
+
+  /** Threads added on an increase. */
+  static final int INCREASE = 2;
+
+  /** Factor to shrink the pool by on a decrease. */
+  static final double DECREASE = 0.75;
+
+  /** Minimum relative throughput gain to count as an improvement. */
+  static final double MIN_GAIN = 0.05;
+
+  /**
+   * Ratio of actual to estimated upload time above which latency is
+   * taken to be rising.
+   */
+  static final double LATENCY_LIMIT = 2.0;
+
+  /** Intervals to hold after a fruitless increase. */
+  static final int HOLD_INTERVALS = 3;
+
+  private final ThreadPoolExecutor pool;
+
+  private final int minThreads;
+
+  private final int maxThreads;
+
+  private final CostModel costModel;
+
+  private ScheduledExecutorService scheduler;
+
+  private long lastRun;
+
+  // samples of the current interval, guarded by this
+
+  private long bytes;
+
+  private long files;
+
+  private double durations;
+
+  private double estimates;
+
+  private long throttles;
+
+  // state of the controller; only used in the scheduler thread
+
+  private double lastThroughput = -1;
+
+  private boolean lastIncreased;
+
+  private int holding;
+
+  private int decisions;
+
+  private int lowest;
+
+  private int highest;
+
+  /**
+   * Create a controller.
+   * @param pool pool to resize
+   * @param minThreads minimum pool size
+   * @param maxThreads maximum pool size
+   * @param costModel model used to predict upload times
+   */
+  ConcurrencyController(ThreadPoolExecutor pool, int minThreads,
+      int maxThreads, CostModel costModel) {
+    Preconditions.checkArgument(0 < minThreads && minThreads <= maxThreads,
+        "Invalid thread range %s-%s", minThreads, maxThreads);
+    this.pool = pool;
+    this.minThreads = minThreads;
+    this.maxThreads = maxThreads;
+    this.costModel = costModel;
+    int initial = Math.min(maxThreads,
+        Math.max(minThreads, pool.getCorePoolSize()));
+    resize(initial);
+    lowest = initial;
+    highest = initial;
+  }
+
+  /**
+   * Start adjusting the pool at a fixed interval.
+   * @param intervalMillis interval between adjustments
+   */
+  void start(long intervalMillis) {
+    scheduler = Executors.newSingleThreadScheduledExecutor(
+        new ThreadFactory() {
+          @Override
+          public Thread newThread(Runnable r) {
+            Thread t = new Thread(r, "concurrency-controller");
+            t.setDaemon(true);
+            return t;
+          }
+        });
+    lastRun = System.nanoTime();
+    scheduler.scheduleAtFixedRate(this, intervalMillis, intervalMillis,
+        TimeUnit.MILLISECONDS);
+  }
+
+  /**
+   * Stop adjusting the pool.
+   */
+  void stop() {
+    if (scheduler != null) {
+      scheduler.shutdownNow();
+    }
+  }
+
+  /**
+   * Note the completion of an upload.
+   * @param size bytes uploaded
+   * @param durationMillis time taken
+   */
+  void completed(long size, long durationMillis) {
+    double estimate = costModel.estimate(size);
+    synchronized (this) {
+      bytes += size;
+      files++;
+      durations += durationMillis;
+      estimates += estimate;
+    }
+  }
+
+  /**
+   * Note that an upload was throttled by the store.
+   */
+  synchronized void throttled() {
+    throttles++;
+  }
+
+  @Override
+  public void run() {
+    long now = System.nanoTime();
+    long elapsed = TimeUnit.NANOSECONDS.toMillis(now - lastRun);
+    lastRun = now;
+    try {
+      adjust(elapsed);
+    } catch (RuntimeException e) {
+      // do not let a failure cancel the schedule
+      LOG.warn("Failed to adjust the upload threads", e);
+    }
+  }
+
+  /**
+   * Make a decision from the samples of the last interval.
+   * @param elapsedMillis duration of the interval
+   * @return the new pool size
+   */
+  int adjust(long elapsedMillis) {
+    long intervalBytes;
+    long intervalFiles;
+    double latency;
+    long intervalThrottles;
+    synchronized (this) {
+      intervalBytes = bytes;
+      intervalFiles = files;
+      latency = estimates > 0 ? durations / estimates : 0;
+      intervalThrottles = throttles;
+      bytes = 0;
+      files = 0;
+      durations = 0;
+      estimates = 0;
+      throttles = 0;
+    }
+    int current = pool.getCorePoolSize();
+    if (intervalFiles == 0 && intervalThrottles == 0) {
+      LOG.debug("No uploads completed; {} threads", current);
+      return current;
+    }
+    double throughput = intervalBytes * 1000.0 / Math.max(1, elapsedMillis);
+    int target = current;
+    String reason;
+    if (intervalThrottles > 0) {
+      target = (int) (current * DECREASE);
+      reason = String.format("%d uploads throttled", intervalThrottles);
+    } else if (latency > LATENCY_LIMIT) {
+      target = (int) (current * DECREASE);
+      reason = String.format("uploads took %.1f times the estimated time",
+          latency);
+    } else if (holding > 0) {
+      holding--;
+      reason = "holding after an increase which did not help";
+    } else if (lastThroughput < 0
+        || throughput > lastThroughput * (1 + MIN_GAIN)) {
+      if (pool.getActiveCount() < current) {
+        reason = "threads are idle";
+      } else {
+        target = current + INCREASE;
+        reason = "throughput is improving";
+      }
+    } else if (lastIncreased) {
+      target = current - INCREASE;
+      holding = HOLD_INTERVALS;
+      reason = "the last increase did not improve throughput";
+    } else {
+      reason = "throughput is steady";
+    }
+    target = Math.min(maxThreads, Math.max(minThreads, target));
+    LOG.info("Upload threads {} -> {}: {};"
+            + " throughput {} MB/s (was {} MB/s); {} files;"
+            + " latency {} of estimate",
+        current, target, reason,
+        String.format("%.3f", throughput / (1024 * 1024)),
+        String.format("%.3f", Math.max(0, lastThroughput) / (1024 * 1024)),
+        intervalFiles, String.format("%.2f", latency));
+    lastIncreased = target > current;
+    lastThroughput = throughput;
+    if (target != current) {
+      resize(target);
+      decisions++;
+      lowest = Math.min(lowest, target);
+      highest = Math.max(highest, target);
+    }
+    return target;
+  }
+
+  /**
+   * Resize the pool. When growing, the maximum has to be raised first;
+   * when shrinking, the core size is lowered first, and the surplus
+   * threads exit as they become idle.
+   * @param threads new size
+   */
+  private void resize(int threads) {
+    if (threads > pool.getMaximumPoolSize()) {
+      pool.setMaximumPoolSize(threads);
+      pool.setCorePoolSize(threads);
+    } else {
+      pool.setCorePoolSize(threads);
+      pool.setMaximumPoolSize(threads);
+    }
+  }
+
+  /**
+   * Does an exception indicate that the store is throttling requests?
+   * S3 returns 503 "SlowDown", Azure 503 "ServerBusy"; other stores
+   * use 429 "TooManyRequests". A status code only counts as such, not
+   * as digits anywhere in the message, which may hold paths and sizes.
+   * @param e exception
+   * @return true if this or any cause looks like throttling
+   */
+  static boolean isThrottling(Throwable e) {
+    for (Throwable t = e; t != null; t = t.getCause()) {
+      String message = t.getMessage();
+      if (message != null && THROTTLING.matcher(message).find()) {
+        return true;
+      }
+    }
+    return false;
+  }
+
+  int getThreads() {
+    return pool.getCorePoolSize();
+  }
+
+  @Override
+  public String toString() {
+    return String.format("ConcurrencyController{threads=%d (%d-%d);"
+            + " range used %d-%d; %d resizes}",
+        pool.getCorePoolSize(), minThreads, maxThreads, lowest, highest,
+        decisions);
+  }
+}
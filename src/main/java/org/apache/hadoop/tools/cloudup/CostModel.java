@@ -0,0 +1,153 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.apache.hadoop.tools.cloudup;
+
+/**
+ * Model of the time to upload a file:
+ * <pre>
+ *   duration = overhead + size / bandwidth
+ * </pre>
+ * where the overhead is the fixed cost of the requests made for each
+ * file, and the bandwidth that of a single upload.
+ * <p>
+ * The coefficients are fitted online, by least squares regression over
+ * the uploads completed so far; until there are enough of those of
+ * different sizes, default values are used.
+ * The co-moments are updated incrementally, so the fit is numerically
+ * stable however large the sizes are.
+ * <p>
+ * Thread safe.
+ */
+final class CostModel {
+
+  /** Overhead to assume before any uploads have completed. */
+  static final double DEFAULT_OVERHEAD_MILLIS = 50;
+
+  /** Bandwidth of one upload to assume before any have completed. */
+  static final double DEFAULT_BYTES_PER_MILLI = 10 * 1024 * 1024 / 1000.0;
+
+  /** Minimum number of samples before the fitted model is used. */
+  private static final int MIN_SAMPLES = 8;
+
+  private long samples;
+
+  private double meanSize;
+
+  private double meanDuration;
+
+  /** Sum of squares of the size deviations. */
+  private double sizeVariance;
+
+  /** Sum of products of the size and duration deviations. */
+  private double covariance;
+
+  private double overheadMillis = DEFAULT_OVERHEAD_MILLIS;
+
+  private double millisPerByte = 1 / DEFAULT_BYTES_PER_MILLI;
+
+  /** Have the coefficients been fitted from the samples? */
+  private boolean fitted;
+
+  /**
+   * Add the duration of a completed upload.
+   * @param size size of the file
+   * @param durationMillis time taken to upload it
+   */
+  synchronized void add(long size, long durationMillis) {
+    samples++;
+    double dx = size - meanSize;
+    meanSize += dx / samples;
+    meanDuration += (durationMillis - meanDuration) / samples;
+    sizeVariance += dx * (size - meanSize);
+    covariance += dx * (durationMillis - meanDuration);
+    if (samples >= MIN_SAMPLES && sizeVariance > 0) {
+      double slope = covariance / sizeVariance;
+      if (slope > 0) {
+        millisPerByte = slope;
+        overheadMillis = Math.max(0, meanDuration - slope * meanSize);
+        fitted = true;
+      }
+    }
+  }
+
+  /**
+   * Estimate the time to upload a file.
+   * @param size size of the file
+   * @return the estimated duration in milliseconds
+   */
+  synchronized double estimate(long size) {
+    return overheadMillis + size * millisPerByte;
+  }
+
+  /**
+   * Predict the makespan of a list of uploads, submitted in order to a
+   * number of workers which each take the next upload when they become
+   * free.
+   * @param uploads table of uploads
+   * @param order indices of the uploads in the order of submission
+   * @param workers number of worker threads
+   * @return the estimated time until the last upload completes, in millis
+   */
+  long predictMakespan(UploadTable uploads, int[] order, int workers) {
+    double overhead;
+    double perByte;
+    synchronized (this) {
+      overhead = overheadMillis;
+      perByte = millisPerByte;
+    }
+    // min-heap of the times at which each worker becomes free
+    double[] free = new double[Math.max(1, workers)];
+    double makespan = 0;
+    for (int index : order) {
+      double finish = free[0] + overhead + uploads.getSize(index) * perByte;
+      makespan = Math.max(makespan, finish);
+      free[0] = finish;
+      siftDown(free);
+    }
+    return (long) makespan;
+  }
+
+  private static void siftDown(double[] heap) {
+    int i = 0;
+    while (true) {
+      int child = 2 * i + 1;
+      if (child >= heap.length) {
+        return;
+      }
+      if (child + 1 < heap.length && heap[child + 1] < heap[child]) {
+        child++;
+      }
+      if (heap[i] <= heap[child]) {
+        return;
+      }
+      double t = heap[i];
+      heap[i] = heap[child];
+      heap[child] = t;
+      i = child;
+    }
+  }
+
+  @Override
+  public synchronized String toString() {
+    return String.format("CostModel{overhead=%.1f ms; bandwidth=%.3f MB/s;"
+            + " samples=%,d%s}",
+        overheadMillis, 1000 / millisPerByte / (1024 * 1024), samples,
+        fitted ? "" : " (defaults)");
+  }
+}
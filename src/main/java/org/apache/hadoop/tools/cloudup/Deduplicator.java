@@ -0,0 +1,322 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package org.apache.hadoop.tools.cloudup;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import org.apache.hadoop.fs.FSDataInputStream;
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.Path;
+
+/**
+ * Finds source files with identical content, so that each content is
+ * uploaded once, and the other files with it are copied at the
+ * destination from the first one uploaded.
+ * <ol>
+ *   <li>Only files whose size is shared with another file in the batch
+ *   can be duplicates; only these are read, to calculate their
+ *   SHA-256 fingerprint.</li>
+ *   <li>Of each set of files with the same size and fingerprint, the
+ *   first in the submission order is the original; the others are
+ *   moved to the end of the order.</li>
+ *   <li>When a duplicate is submitted before its original has
+ *   finished, its operation is deferred until then.</li>
+ * </ol>
+ * Duplicates are only found within a batch; when streaming, that is
+ * one window of files. Thread safe.
+ */
+final class Deduplicator {
+
+  private static final Logger LOG =
+      LoggerFactory.getLogger(Deduplicator.class);
+
+  private static final int BUFFER_SIZE = 64 * 1024;
+
+  private final FileSystem sourceFS;
+
+  /** Files smaller than this are never deduplicated. */
+  private final long minSize;
+
+  /** Source of each duplicate to the source of its original. */
+  private final Map<Path, Path> originals = new HashMap<>();
+
+  /** Sources of the originals which have duplicates. */
+  private final Set<Path> withDuplicates = new HashSet<>();
+
+  /** Operations waiting for an original to finish, by its source. */
+  private final Map<Path, List<Runnable>> deferred = new HashMap<>();
+
+  /**
+   * Outcome of originals which have finished: the destination of those
+   * which succeeded, null for those which failed.
+   */
+  private final Map<Path, Path> finished = new HashMap<>();
+
+  private long hashedFiles;
+
+  private long hashedBytes;
+
+  private long duplicates;
+
+  private long duplicateBytes;
+
+  private long copies;
+
+  private long savedBytes;
+
+  /**
+   * Create an instance.
+   * @param sourceFS source filesystem
+   * @param minSize files smaller than this are not deduplicated
+   */
+  Deduplicator(FileSystem sourceFS, long minSize) {
+    this.sourceFS = sourceFS;
+    this.minSize = minSize;
+  }
+
+  /**
+   * Find the duplicates in a batch of uploads.
+   * @param uploads uploads
+   * @param order order in which the uploads are to be submitted
+   * @param executor executor to calculate the fingerprints in parallel
+   * @return the order with the duplicates moved to the end
+   * @throws IOException failure to read a file
+   */
+  int[] find(UploadTable uploads, int[] order, ExecutorService executor)
+      throws IOException {
+    // the size filter: runs of two or more files of the same size
+    int[] bySize = uploads.sortedBySize();
+    List<Integer> candidates = new ArrayList<>();
+    for (int start = 0, end; start < bySize.length; start = end) {
+      long size = uploads.getSize(bySize[start]);
+      end = start + 1;
+      while (end < bySize.length && uploads.getSize(bySize[end]) == size) {
+        end++;
+      }
+      if (size >= minSize && end - start > 1) {
+        for (int i = start; i < end; i++) {
+          candidates.add(bySize[i]);
+        }
+      }
+    }
+    if (candidates.isEmpty()) {
+      return order;
+    }
+
+    // fingerprint the candidates
+    List<Future<String>> fingerprints = new ArrayList<>(candidates.size());
+    long bytes = 0;
+    for (int index : candidates) {
+      fingerprints.add(executor.submit(fingerprint(uploads.getSource(index))));
+      bytes += uploads.getSize(index);
+    }
+    int[] position = new int[uploads.size()];
+    for (int i = 0; i < order.length; i++) {
+      position[order[i]] = i;
+    }
+    // the original of each content is the earliest in the order
+    String[] keys = new String[candidates.size()];
+    Map<String, Integer> first = new HashMap<>();
+    for (int i = 0; i < candidates.size(); i++) {
+      int index = candidates.get(i);
+      keys[i] = uploads.getSize(index) + ":" + await(fingerprints.get(i));
+      String key = keys[i];
+      Integer original = first.get(key);
+      if (original == null || position[index] < position[original]) {
+        first.put(key, index);
+      }
+    }
+    boolean[] duplicate = new boolean[uploads.size()];
+    int found = 0;
+    long foundBytes = 0;
+    synchronized (this) {
+      for (int i = 0; i < candidates.size(); i++) {
+        int index = candidates.get(i);
+        int original = first.get(keys[i]);
+        if (original != index) {
+          duplicate[index] = true;
+          originals.put(uploads.getSource(index), uploads.getSource(original));
+          withDuplicates.add(uploads.getSource(original));
+          found++;
+          foundBytes += uploads.getSize(index);
+        }
+      }
+      hashedFiles += candidates.size();
+      hashedBytes += bytes;
+      duplicates += found;
+      duplicateBytes += foundBytes;
+    }
+    LOG.info("Fingerprinted {} files of {} with shared sizes:"
+            + " {} duplicates, size {}",
+        candidates.size(), order.length, found, foundBytes);
+    int[] reordered = new int[order.length];
+    int n = 0;
+    for (int index : order) {
+      if (!duplicate[index]) {
+        reordered[n++] = index;
+      }
+    }
+    for (int index : order) {
+      if (duplicate[index]) {
+        reordered[n++] = index;
+      }
+    }
+    return reordered;
+  }
+
+  /**
+   * Create the operation to fingerprint a file.
+   * @param source file
+   * @return the operation, returning the fingerprint in hex
+   */
+  private Callable<String> fingerprint(final Path source) {
+    return new Callable<String>() {
+      @Override
+      public String call() throws IOException {
+        MessageDigest digest;
+        try {
+          digest = MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+          // every JVM has SHA-256
+          throw new IllegalStateException(e);
+        }
+        byte[] buffer = new byte[BUFFER_SIZE];
+        try (FSDataInputStream in = sourceFS.open(source, BUFFER_SIZE)) {
+          int n;
+          while ((n = in.read(buffer)) > 0) {
+            digest.update(buffer, 0, n);
+          }
+        }
+        return Checksums.hex(digest.digest());
+      }
+    };
+  }
+
+  /**
+   * Await a fingerprint.
+   * @param future fingerprint being calculated
+   * @return the fingerprint
+   * @throws IOException failure to read the file
+   */
+  private static String await(Future<String> future) throws IOException {
+    try {
+      return future.get();
+    } catch (InterruptedException e) {
+      throw (InterruptedIOException)
+          new InterruptedIOException("Interrupted").initCause(e);
+    } catch (ExecutionException e) {
+      Throwable cause = e.getCause();
+      if (cause instanceof IOException) {
+        throw (IOException) cause;
+      }
+      throw new IOException(cause.toString(), cause);
+    }
+  }
+
+  /**
+   * Get the original of a file.
+   * @param source source of the upload
+   * @return the source of its original, or null if it is not a duplicate
+   */
+  synchronized Path originalOf(Path source) {
+    return originals.get(source);
+  }
+
+  /**
+   * Defer an operation until an original has finished.
+   * @param original source of the original
+   * @param operation operation to defer
+   * @return true if deferred; false if the original has already
+   * finished, so the operation can be run now
+   */
+  synchronized boolean defer(Path original, Runnable operation) {
+    if (finished.containsKey(original)) {
+      return false;
+    }
+    List<Runnable> operations = deferred.get(original);
+    if (operations == null) {
+      operations = new ArrayList<>();
+      deferred.put(original, operations);
+    }
+    operations.add(operation);
+    return true;
+  }
+
+  /**
+   * Note that an upload has finished; if it is an original, its
+   * deferred operations can now be run.
+   * @param source source of the upload
+   * @param dest destination if it succeeded; null if it failed
+   * @return the operations deferred until it finished
+   */
+  synchronized List<Runnable> finished(Path source, Path dest) {
+    if (!withDuplicates.contains(source)) {
+      return Collections.emptyList();
+    }
+    finished.put(source, dest);
+    List<Runnable> operations = deferred.remove(source);
+    return operations != null ? operations
+        : Collections.<Runnable>emptyList();
+  }
+
+  /**
+   * Get where an original was uploaded to.
+   * @param original source of the original
+   * @return its destination, or null if it failed or has not finished
+   */
+  synchronized Path uploadedAs(Path original) {
+    return finished.get(original);
+  }
+
+  /**
+   * Note that a duplicate was copied at the destination.
+   * @param size size of the file
+   */
+  synchronized void copied(long size) {
+    copies++;
+    savedBytes += size;
+  }
+
+  @Override
+  public synchronized String toString() {
+    return String.format("%,d files fingerprinted, size %,d;"
+            + " %,d duplicates, size %,d;"
+            + " %,d copied at the destination, upload of %,d bytes saved",
+        hashedFiles, hashedBytes, duplicates, duplicateBytes,
+        copies, savedBytes);
+  }
+}
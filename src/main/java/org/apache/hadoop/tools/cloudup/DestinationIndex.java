@@ -0,0 +1,122 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.apache.hadoop.tools.cloudup;
+
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.Map;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import org.apache.hadoop.fs.FileStatus;
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.LocatedFileStatus;
+import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.fs.RemoteIterator;
+
+/**
+ * In-memory index of the files already at the destination,
+ * built from a single recursive listing rather than a probe per file.
+ * Used to skip uploading files which are already present.
+ */
+final class DestinationIndex {
+
+  private static final Logger LOG =
+      LoggerFactory.getLogger(DestinationIndex.class);
+
+  /** Map of qualified path to (length, modification time). */
+  private final Map<String, long[]> files = new HashMap<>();
+
+  private DestinationIndex() {
+  }
+
+  /**
+   * List the destination and build the index.
+   * A missing destination results in an empty index.
+   * @param fs destination filesystem
+   * @param path destination path
+   * @param walkers threads for a parallel listing; 0 for a serial listing.
+   * @return the index
+   * @throws IOException failure to list
+   */
+  static DestinationIndex build(FileSystem fs, Path path, int walkers)
+      throws IOException {
+    final DestinationIndex index = new DestinationIndex();
+    Path qualified = fs.makeQualified(path);
+    NanoTimer timer = new NanoTimer();
+    try {
+      if (walkers > 0) {
+        TreeWalker walker = new TreeWalker(fs, walkers);
+        walker.walk(qualified, new TreeWalker.Listener() {
+          @Override
+          public void found(FileStatus status) {
+            synchronized (index) {
+              index.add(status);
+            }
+          }
+        });
+        LOG.info("Parallel listing of destination {}: {}",
+            qualified, walker.throughput());
+      } else {
+        RemoteIterator<LocatedFileStatus> ri = fs.listFiles(qualified, true);
+        while (ri.hasNext()) {
+          index.add(ri.next());
+        }
+        timer.end();
+        LOG.info("Serial listing of destination {}: {}",
+            qualified,
+            TreeWalker.describeThroughput(-1, index.size(), timer.duration()));
+      }
+    } catch (FileNotFoundException e) {
+      LOG.info("No files under destination {}", qualified);
+    }
+    return index;
+  }
+
+  private void add(FileStatus status) {
+    files.put(status.getPath().toString(),
+        new long[]{status.getLen(), status.getModificationTime()});
+  }
+
+  /**
+   * Is there an up to date copy of a file at the destination?
+   * @param dest qualified destination path
+   * @param size size of the source
+   * @param modificationTime modification time of the source; 0 if unknown
+   * @param checkTime also require the destination to be no older than
+   * the source? If true and the source time is unknown, the file is
+   * considered out of date.
+   * @return true if the destination file matches.
+   */
+  synchronized boolean isUpToDate(Path dest, long size,
+      long modificationTime, boolean checkTime) {
+    long[] status = files.get(dest.toString());
+    if (status == null || status[0] != size) {
+      return false;
+    }
+    return !checkTime
+        || (modificationTime > 0 && status[1] >= modificationTime);
+  }
+
+  synchronized int size() {
+    return files.size();
+  }
+}
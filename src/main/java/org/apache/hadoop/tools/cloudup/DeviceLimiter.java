@@ -0,0 +1,233 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.apache.hadoop.tools.cloudup;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentHashMap;
+
+import com.google.common.base.Preconditions;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import org.apache.hadoop.fs.Path;
+
+/**
+ * Limits the number of files read at the same time from each device
+ * of a local source.
+ * <p>
+ * When a source tree spans several disks, such as JBOD disks mounted
+ * under one directory, a single pool of workers can have all its
+ * uploads reading from one disk while the others are idle; a spinning
+ * disk also reads slower with more concurrent streams, as it seeks
+ * between them. Here the device of each source directory is found
+ * once, from the {@code unix:dev} attribute, or the file store where
+ * that is not available, and:
+ * <ol>
+ *   <li>{@link #interleave(UploadTable, int[])} orders uploads round
+ *   robin across the devices.</li>
+ *   <li>The number of uploads reading from each device is limited:
+ *   an upload which would exceed the limit is held back until one from
+ *   the same device completes, while uploads from other devices go
+ *   ahead.</li>
+ * </ol>
+ * A file uploaded in parts counts as one upload, however many of its
+ * parts are read at the same time. Thread safe.
+ */
+final class DeviceLimiter {
+
+  private static final Logger LOG =
+      LoggerFactory.getLogger(DeviceLimiter.class);
+
+  /** Device of a directory which could not be examined. */
+  static final String UNKNOWN = "unknown";
+
+  /** Maximum uploads reading from one device. */
+  private final int limit;
+
+  /** Device of each source directory, by directory path. */
+  private final Map<String, String> devices = new ConcurrentHashMap<>();
+
+  private final Map<String, Slot> slots = new HashMap<>();
+
+  private int peakActive;
+
+  private long deferred;
+
+  /**
+   * Create an instance.
+   * @param limit maximum uploads reading from one device
+   */
+  DeviceLimiter(int limit) {
+    Preconditions.checkArgument(limit > 0, "Invalid device limit: %s",
+        limit);
+    this.limit = limit;
+  }
+
+  /**
+   * Get the device of a local source directory.
+   * @param directory directory, with a trailing "/"
+   * @return an identifier of the device
+   */
+  String deviceOf(String directory) {
+    String device = devices.get(directory);
+    if (device == null) {
+      device = lookup(new File(new Path(directory).toUri().getPath()));
+      devices.put(directory, device);
+    }
+    return device;
+  }
+
+  /**
+   * Get the device of a local source file.
+   * @param source source path
+   * @return an identifier of the device
+   */
+  String deviceOf(Path source) {
+    String s = source.toString();
+    return deviceOf(s.substring(0, s.lastIndexOf('/') + 1));
+  }
+
+  /**
+   * Find the device of a directory.
+   * @param dir directory
+   * @return an identifier of the device
+   */
+  private static String lookup(File dir) {
+    java.nio.file.Path path = dir.toPath();
+    try {
+      try {
+        Object dev = java.nio.file.Files.getAttribute(path, "unix:dev");
+        return "dev-" + Long.toHexString((Long) dev);
+      } catch (UnsupportedOperationException | IllegalArgumentException e) {
+        // not a unix filesystem; the mount point is the next best thing
+        return java.nio.file.Files.getFileStore(path).toString();
+      }
+    } catch (IOException e) {
+      LOG.debug("Cannot find the device of {}: {}", dir, e.toString());
+      return UNKNOWN;
+    }
+  }
+
+  /**
+   * Order uploads round robin across the devices of their sources.
+   * Within a device, the existing order is kept.
+   * @param uploads table of uploads
+   * @param order indices of the uploads, in their order of preference
+   * @return the indices of the uploads, interleaved
+   */
+  int[] interleave(UploadTable uploads, int[] order) {
+    int n = order.length;
+    // map each directory to a device number
+    int[] directoryDevice = new int[uploads.getDirectoryCount()];
+    Arrays.fill(directoryDevice, -1);
+    Map<String, Integer> numbers = new HashMap<>();
+    int[] keys = new int[n];
+    for (int i = 0; i < n; i++) {
+      int dir = uploads.getSourceDirectory(order[i]);
+      int d = directoryDevice[dir];
+      if (d < 0) {
+        String device = deviceOf(uploads.getDirectory(dir));
+        Integer known = numbers.get(device);
+        d = known != null ? known : numbers.size();
+        if (known == null) {
+          numbers.put(device, d);
+        }
+        directoryDevice[dir] = d;
+      }
+      keys[i] = d;
+    }
+    LOG.info("Sources of {} uploads on {} devices", n, numbers.size());
+    return PrefixLimiter.roundRobin(order, keys, numbers.size());
+  }
+
+  /**
+   * Admit an upload from a device, or hold it back if the device is at
+   * its limit; it will be returned by {@link #release(String)} once there
+   * is room for it.
+   * @param device device of the upload's source
+   * @param operation the upload operation
+   * @return true if the operation may be executed now
+   */
+  synchronized boolean admit(String device, Runnable operation) {
+    Slot slot = slots.get(device);
+    if (slot == null) {
+      slot = new Slot();
+      slots.put(device, slot);
+    }
+    slot.uploads++;
+    if (slot.active >= limit) {
+      slot.waiting.add(operation);
+      slot.deferred++;
+      deferred++;
+      return false;
+    }
+    slot.active++;
+    peakActive = Math.max(peakActive, slot.active);
+    return true;
+  }
+
+  /**
+   * Note the completion of an upload from a device.
+   * @param device device of the upload's source
+   * @return an upload held back from the same device, which is now
+   * admitted and must be executed; null if there is none.
+   */
+  synchronized Runnable release(String device) {
+    Slot slot = slots.get(device);
+    Runnable next = slot.waiting.poll();
+    if (next == null) {
+      slot.active--;
+    }
+    return next;
+  }
+
+  @Override
+  public synchronized String toString() {
+    StringBuilder sb = new StringBuilder(String.format(
+        "DeviceLimiter{limit=%d; devices=%d;"
+            + " peak uploads from one device=%d; uploads deferred=%,d",
+        limit, slots.size(), peakActive, deferred));
+    for (Map.Entry<String, Slot> entry : slots.entrySet()) {
+      sb.append(String.format("; %s: uploads=%,d, deferred=%,d",
+          entry.getKey(), entry.getValue().uploads,
+          entry.getValue().deferred));
+    }
+    return sb.append('}').toString();
+  }
+
+  /**
+   * Uploads in flight and waiting from one device.
+   */
+  private static final class Slot {
+
+    private int active;
+
+    private long uploads;
+
+    private long deferred;
+
+    private final Queue<Runnable> waiting = new ArrayDeque<>();
+  }
+}
@@ -0,0 +1,297 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.apache.hadoop.tools.cloudup;
+
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import org.apache.hadoop.fs.FileSystem;
+
+/**
+ * Statistics of the filesystems of an upload, as their clients count
+ * them: requests, bytes, and for object stores such as S3A, retries
+ * and throttling. A snapshot is taken at the start; the changes since
+ * the last snapshot can be logged at a fixed interval, and the changes
+ * over the whole upload at the end, each with its rate per second.
+ * <p>
+ * The statistics are those of the {@link FileSystem.Statistics} of the
+ * filesystem's scheme, bytes and operations, which every version of
+ * Hadoop has; and the storage statistics of the filesystem, which have
+ * the detail of the object store clients. As
+ * {@code FileSystem.getStorageStatistics()} is only in Hadoop 2.8 and
+ * later, it is called by reflection; on earlier versions, or if the call
+ * fails, there are only the statistics of the scheme.
+ */
+final class FileSystemStatistics implements Runnable {
+
+  private static final Logger LOG =
+      LoggerFactory.getLogger(FileSystemStatistics.class);
+
+  /** FileSystem.getStorageStatistics(); null if not available. */
+  private static final Method GET_STORAGE_STATISTICS;
+
+  /** StorageStatistics.getLongStatistics(). */
+  private static final Method GET_LONG_STATISTICS;
+
+  /** StorageStatistics.LongStatistic.getName(). */
+  private static final Method GET_NAME;
+
+  /** StorageStatistics.LongStatistic.getValue(). */
+  private static final Method GET_VALUE;
+
+  static {
+    Method getStorageStatistics = null;
+    Method getLongStatistics = null;
+    Method getName = null;
+    Method getValue = null;
+    try {
+      getStorageStatistics = FileSystem.class.getMethod(
+          "getStorageStatistics");
+      Class<?> storageStatistics = Class.forName(
+          "org.apache.hadoop.fs.StorageStatistics");
+      getLongStatistics = storageStatistics.getMethod("getLongStatistics");
+      Class<?> longStatistic = Class.forName(
+          "org.apache.hadoop.fs.StorageStatistics$LongStatistic");
+      getName = longStatistic.getMethod("getName");
+      getValue = longStatistic.getMethod("getValue");
+    } catch (ClassNotFoundException | NoSuchMethodException e) {
+      LOG.debug("No storage statistics: {}", e.toString());
+      getStorageStatistics = null;
+    }
+    GET_STORAGE_STATISTICS = getStorageStatistics;
+    GET_LONG_STATISTICS = getLongStatistics;
+    GET_NAME = getName;
+    GET_VALUE = getValue;
+  }
+
+  /** Filesystems tracked, in the order added. */
+  private final List<Tracked> tracked = new ArrayList<>();
+
+  private ScheduledExecutorService reporter;
+
+  /**
+   * Track the statistics of a filesystem, from now.
+   * @param name name for logging, such as "Source"
+   * @param fs filesystem
+   */
+  void add(String name, FileSystem fs) {
+    tracked.add(new Tracked(name, fs, System.currentTimeMillis()));
+  }
+
+  /**
+   * Start logging the changes in the statistics at a fixed interval.
+   * @param intervalMillis interval between reports
+   */
+  void start(long intervalMillis) {
+    reporter = Executors.newSingleThreadScheduledExecutor(
+        new ThreadFactory() {
+          @Override
+          public Thread newThread(Runnable r) {
+            Thread t = new Thread(r, "statistics");
+            t.setDaemon(true);
+            return t;
+          }
+        });
+    reporter.scheduleAtFixedRate(this, intervalMillis, intervalMillis,
+        TimeUnit.MILLISECONDS);
+  }
+
+  /**
+   * Stop logging the statistics.
+   */
+  void stop() {
+    if (reporter != null) {
+      reporter.shutdownNow();
+    }
+  }
+
+  /**
+   * Log the changes in the statistics since the last report.
+   */
+  @Override
+  public synchronized void run() {
+    long now = System.currentTimeMillis();
+    for (Tracked t : tracked) {
+      Map<String, Long> current = snapshot(t.fs);
+      LOG.info("{} statistics over the last {}s: {}", t.name,
+          String.format("%.1f", (now - t.lastTime) / 1000.0),
+          describeChanges(t.last, current, now - t.lastTime));
+      t.last = current;
+      t.lastTime = now;
+    }
+  }
+
+  /**
+   * Log the value of every statistic, and the changes since the
+   * statistics were first tracked.
+   */
+  synchronized void logTotals() {
+    long now = System.currentTimeMillis();
+    for (Tracked t : tracked) {
+      Map<String, Long> current = snapshot(t.fs);
+      LOG.info("\n{} statistics: {}", t.name, t.fs.getUri());
+      for (Map.Entry<String, Long> entry : current.entrySet()) {
+        LOG.info("{}={}", entry.getKey(), entry.getValue());
+      }
+      LOG.info("{} statistics over the upload ({}s): {}", t.name,
+          String.format("%.1f", (now - t.startTime) / 1000.0),
+          describeChanges(t.start, current, now - t.startTime));
+    }
+  }
+
+  /**
+   * Take a snapshot of the statistics of a filesystem: those of its
+   * scheme, and its storage statistics if they are available.
+   * @param fs filesystem
+   * @return the statistics, sorted by name
+   */
+  static Map<String, Long> snapshot(FileSystem fs) {
+    Map<String, Long> statistics = schemeStatistics(fs);
+    if (GET_STORAGE_STATISTICS != null) {
+      try {
+        statistics.putAll(storageStatistics(fs));
+      } catch (IllegalAccessException | InvocationTargetException
+          | RuntimeException e) {
+        LOG.debug("Failed to get the storage statistics of {}",
+            fs.getUri(), e);
+      }
+    }
+    return statistics;
+  }
+
+  /**
+   * Get the storage statistics of a filesystem, by reflection.
+   * @param fs filesystem
+   * @return the statistics, sorted by name
+   * @throws IllegalAccessException failure to call a method
+   * @throws InvocationTargetException failure in a method
+   */
+  private static Map<String, Long> storageStatistics(FileSystem fs)
+      throws IllegalAccessException, InvocationTargetException {
+    Map<String, Long> statistics = new TreeMap<>();
+    Object storage = GET_STORAGE_STATISTICS.invoke(fs);
+    Iterator<?> it = (Iterator<?>) GET_LONG_STATISTICS.invoke(storage);
+    while (it.hasNext()) {
+      Object stat = it.next();
+      statistics.put((String) GET_NAME.invoke(stat),
+          (Long) GET_VALUE.invoke(stat));
+    }
+    return statistics;
+  }
+
+  /**
+   * Get the statistics of the scheme of a filesystem. These are kept
+   * per filesystem class, and a filesystem which wraps another, as the
+   * local filesystem does, counts under the class of the one it wraps;
+   * so those of every class with the scheme are added up.
+   * @param fs filesystem
+   * @return the statistics, sorted by name
+   */
+  @SuppressWarnings("deprecation")
+  static Map<String, Long> schemeStatistics(FileSystem fs) {
+    String scheme = fs.getUri().getScheme();
+    long bytesRead = 0;
+    long bytesWritten = 0;
+    long readOps = 0;
+    long largeReadOps = 0;
+    long writeOps = 0;
+    for (FileSystem.Statistics stats : FileSystem.getAllStatistics()) {
+      if (stats.getScheme().equals(scheme)) {
+        bytesRead += stats.getBytesRead();
+        bytesWritten += stats.getBytesWritten();
+        readOps += stats.getReadOps();
+        largeReadOps += stats.getLargeReadOps();
+        writeOps += stats.getWriteOps();
+      }
+    }
+    Map<String, Long> statistics = new TreeMap<>();
+    statistics.put("bytesRead", bytesRead);
+    statistics.put("bytesWritten", bytesWritten);
+    statistics.put("readOps", readOps);
+    statistics.put("largeReadOps", largeReadOps);
+    statistics.put("writeOps", writeOps);
+    return statistics;
+  }
+
+  /**
+   * Describe the statistics which changed between two snapshots,
+   * with their rates.
+   * @param before earlier snapshot
+   * @param after later snapshot
+   * @param millis time between the snapshots
+   * @return a string for logging
+   */
+  static String describeChanges(Map<String, Long> before,
+      Map<String, Long> after, long millis) {
+    StringBuilder sb = new StringBuilder();
+    for (Map.Entry<String, Long> entry : after.entrySet()) {
+      Long earlier = before.get(entry.getKey());
+      long delta = entry.getValue() - (earlier != null ? earlier : 0);
+      if (delta != 0) {
+        if (sb.length() > 0) {
+          sb.append(", ");
+        }
+        sb.append(String.format("%s %+d", entry.getKey(), delta));
+        if (millis > 0) {
+          sb.append(String.format(" (%.1f/s)", delta * 1000.0 / millis));
+        }
+      }
+    }
+    return sb.length() > 0 ? sb.toString() : "no change";
+  }
+
+  /**
+   * A filesystem whose statistics are tracked.
+   */
+  private static final class Tracked {
+
+    private final String name;
+
+    private final FileSystem fs;
+
+    private final Map<String, Long> start;
+
+    private final long startTime;
+
+    private Map<String, Long> last;
+
+    private long lastTime;
+
+    private Tracked(String name, FileSystem fs, long now) {
+      this.name = name;
+      this.fs = fs;
+      this.start = snapshot(fs);
+      this.startTime = now;
+      this.last = start;
+      this.lastTime = now;
+    }
+  }
+}
@@ -0,0 +1,150 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.apache.hadoop.tools.cloudup;
+
+import java.nio.charset.Charset;
+
+import com.google.common.hash.HashFunction;
+import com.google.common.hash.Hashing;
+
+/**
+ * A compact set of strings, stored as 128-bit fingerprints in an
+ * open addressing table of primitive longs.
+ * This takes 16-32 bytes per entry, however long the strings are,
+ * at the cost of a collision probability of the order of
+ * n<sup>2</sup>/2<sup>128</sup>.
+ * <p>
+ * Thread safe.
+ */
+final class FingerprintSet {
+
+  private static final Charset UTF8 = Charset.forName("UTF-8");
+
+  private static final HashFunction HASH = Hashing.murmur3_128();
+
+  private static final int INITIAL_SLOTS = 1024;
+
+  /** Pairs of longs; (0, 0) marks an empty slot. */
+  private long[] table = new long[INITIAL_SLOTS * 2];
+
+  private int count;
+
+  /**
+   * Add a string.
+   * @param s string
+   * @return true if it was not already present.
+   */
+  boolean add(String s) {
+    long[] fp = fingerprint(s);
+    synchronized (this) {
+      if (find(table, fp[0], fp[1]) >= 0) {
+        return false;
+      }
+      if ((count + 1) * 4 > (table.length / 2) * 3) {
+        resize();
+      }
+      insert(table, fp[0], fp[1]);
+      count++;
+      return true;
+    }
+  }
+
+  /**
+   * Probe for a string.
+   * @param s string
+   * @return true if it was added earlier.
+   */
+  boolean contains(String s) {
+    long[] fp = fingerprint(s);
+    synchronized (this) {
+      return find(table, fp[0], fp[1]) >= 0;
+    }
+  }
+
+  synchronized int size() {
+    return count;
+  }
+
+  /**
+   * Fingerprint a string; no (0, 0) fingerprints are generated.
+   * @param s string
+   * @return the two halves of the fingerprint.
+   */
+  private static long[] fingerprint(String s) {
+    byte[] bytes = HASH.hashBytes(s.getBytes(UTF8)).asBytes();
+    long hi = toLong(bytes, 0);
+    long lo = toLong(bytes, 8);
+    if (hi == 0 && lo == 0) {
+      lo = 1;
+    }
+    return new long[]{hi, lo};
+  }
+
+  /**
+   * Read eight bytes as a little-endian long.
+   */
+  private static long toLong(byte[] bytes, int offset) {
+    long value = 0;
+    for (int i = 7; i >= 0; i--) {
+      value = (value << 8) | (bytes[offset + i] & 0xff);
+    }
+    return value;
+  }
+
+  /** Table sizes are powers of two, so the slot is a mask of the hash. */
+  private static int slot(long[] t, long hi) {
+    return (int) hi & (t.length / 2 - 1);
+  }
+
+  /**
+   * Find a fingerprint.
+   * @return the slot or -1 if not found
+   */
+  private static int find(long[] t, long hi, long lo) {
+    int slots = t.length / 2;
+    int s = slot(t, hi);
+    while (t[2 * s] != 0 || t[2 * s + 1] != 0) {
+      if (t[2 * s] == hi && t[2 * s + 1] == lo) {
+        return s;
+      }
+      s = (s + 1) & (slots - 1);
+    }
+    return -1;
+  }
+
+  private static void insert(long[] t, long hi, long lo) {
+    int slots = t.length / 2;
+    int s = slot(t, hi);
+    while (t[2 * s] != 0 || t[2 * s + 1] != 0) {
+      s = (s + 1) & (slots - 1);
+    }
+    t[2 * s] = hi;
+    t[2 * s + 1] = lo;
+  }
+
+  private void resize() {
+    long[] old = table;
+    table = new long[old.length * 2];
+    for (int i = 0; i < old.length; i += 2) {
+      if (old[i] != 0 || old[i + 1] != 0) {
+        insert(table, old[i], old[i + 1]);
+      }
+    }
+  }
+}
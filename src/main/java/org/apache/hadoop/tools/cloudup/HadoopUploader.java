@@ -0,0 +1,387 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.apache.hadoop.tools.cloudup;
+
+import java.io.ByteArrayInputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.UUID;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import org.apache.hadoop.fs.FSDataInputStream;
+import org.apache.hadoop.fs.FSDataOutputStream;
+import org.apache.hadoop.fs.FileAlreadyExistsException;
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.io.IOUtils;
+
+/**
+ * Uploader using only the Hadoop FileSystem API, so it works with
+ * any destination filesystem.
+ * <p>
+ * Each part of a multipart upload is written to its own file in a
+ * temporary directory alongside the destination. On completion the parts
+ * are joined with {@link FileSystem#concat(Path, Path[])} where the
+ * filesystem supports it (HDFS); otherwise they are read back and
+ * written out in order to the destination. This is what happens on
+ * the local filesystem, which makes it possible to test and benchmark
+ * multipart uploads without an object store. On an object store without
+ * concat, the parts would be downloaded again to be joined, so there,
+ * multipart uploads need an uploader which uses the store's own
+ * multipart API.
+ * <p>
+ * Files are uploaded with {@link FileSystem#copyFromLocalFile}, unless
+ * they are to be checksummed or compressed, in which case they are
+ * copied through a stream so that the data can be digested and
+ * compressed as it goes. Each part of a compressed multipart upload
+ * is compressed on its own, so the parts must be of a codec whose
+ * streams can be concatenated.
+ */
+final class HadoopUploader implements Uploader {
+
+  private static final Logger LOG =
+      LoggerFactory.getLogger(HadoopUploader.class);
+
+  private static final int BUFFER_SIZE = 64 * 1024;
+
+  private final FileSystem sourceFS;
+
+  private final FileSystem destFS;
+
+  private final boolean overwrite;
+
+  /** Compression of the data uploaded; null for none. */
+  private final Compression compression;
+
+  /**
+   * Create an uploader.
+   * @param sourceFS source filesystem
+   * @param destFS destination filesystem
+   * @param overwrite overwrite existing files?
+   */
+  HadoopUploader(FileSystem sourceFS, FileSystem destFS, boolean overwrite) {
+    this(sourceFS, destFS, overwrite, null);
+  }
+
+  /**
+   * Create an uploader which may compress the data.
+   * @param sourceFS source filesystem
+   * @param destFS destination filesystem
+   * @param overwrite overwrite existing files?
+   * @param compression compression of the data; null for none
+   */
+  HadoopUploader(FileSystem sourceFS, FileSystem destFS, boolean overwrite,
+      Compression compression) {
+    this.sourceFS = sourceFS;
+    this.destFS = destFS;
+    this.overwrite = overwrite;
+    this.compression = compression;
+  }
+
+  @Override
+  public void upload(Path source, Path dest, Checksums.Digest digest)
+      throws IOException {
+    if (digest == null && compression == null) {
+      try {
+        destFS.copyFromLocalFile(false, overwrite, source, dest);
+      } catch (FileAlreadyExistsException e) {
+        throw e;
+      } catch (IOException e) {
+        // some filesystems fail on an existing file with a plain
+        // IOException, which would be retried; only probe on failure,
+        // so that a successful upload costs no extra requests
+        checkNoDest(destFS, dest, overwrite);
+        throw e;
+      }
+      return;
+    }
+    // the data must be seen to be checksummed or compressed
+    try (FSDataInputStream in = sourceFS.open(source, BUFFER_SIZE);
+         FSDataOutputStream out = destFS.create(dest, overwrite)) {
+      write(in, out, sourceFS.getFileStatus(source).getLen(), digest);
+    }
+  }
+
+  @Override
+  public void upload(byte[] data, Path dest, Checksums.Digest digest)
+      throws IOException {
+    try (FSDataOutputStream out = destFS.create(dest, overwrite)) {
+      write(new ByteArrayInputStream(data), out, data.length, digest);
+    }
+  }
+
+  @Override
+  public boolean copy(Path from, Path to) throws IOException {
+    return copyLocal(destFS, from, to, overwrite);
+  }
+
+  /**
+   * Copy a file within a local destination. The Hadoop 2 FileSystem API
+   * has no operation to copy a file within a store, so this is the
+   * only destination where a copy does not pass through the client.
+   * @param fs destination filesystem
+   * @param from file to copy
+   * @param to destination of the copy
+   * @param overwrite overwrite any existing file?
+   * @return false if the destination is not local
+   * @throws IOException failure
+   */
+  static boolean copyLocal(FileSystem fs, Path from, Path to,
+      boolean overwrite) throws IOException {
+    if (!canCopy(fs)) {
+      return false;
+    }
+    File target = new File(to.toUri().getPath());
+    File parent = target.getParentFile();
+    if (!parent.isDirectory() && !parent.mkdirs() && !parent.isDirectory()) {
+      throw new IOException("Failed to create directory " + parent);
+    }
+    try {
+      if (overwrite) {
+        Files.copy(new File(from.toUri().getPath()).toPath(),
+            target.toPath(), StandardCopyOption.REPLACE_EXISTING);
+      } else {
+        Files.copy(new File(from.toUri().getPath()).toPath(),
+            target.toPath());
+      }
+    } catch (java.nio.file.FileAlreadyExistsException e) {
+      throw new FileAlreadyExistsException(
+          String.format("File found at %s and overwrite=false", to));
+    }
+    return true;
+  }
+
+  /**
+   * Write data to the destination, compressing it if required.
+   * @param in source
+   * @param out destination
+   * @param length bytes to write
+   * @param digest digest to update; may be null
+   * @throws IOException failure
+   */
+  private void write(InputStream in, OutputStream out, long length,
+      Checksums.Digest digest) throws IOException {
+    if (compression != null) {
+      compression.compress(in, length, out, digest);
+    } else {
+      copy(in, out, length, digest);
+    }
+  }
+
+  /**
+   * Copy bytes between streams, updating a digest with them.
+   * @param in source
+   * @param out destination
+   * @param length bytes to copy
+   * @param digest digest to update; may be null
+   * @throws IOException failure, including the source being too short
+   */
+  static void copy(InputStream in, OutputStream out, long length,
+      Checksums.Digest digest) throws IOException {
+    byte[] buffer = new byte[BUFFER_SIZE];
+    long remaining = length;
+    while (remaining > 0) {
+      int n = in.read(buffer, 0, (int) Math.min(buffer.length, remaining));
+      if (n < 0) {
+        throw new EOFException(String.format(
+            "Source truncated at %d", length - remaining));
+      }
+      if (digest != null) {
+        digest.update(buffer, 0, n);
+      }
+      out.write(buffer, 0, n);
+      remaining -= n;
+    }
+  }
+
+  @Override
+  public MultipartUpload initiate(Path source, Path dest, int parts)
+      throws IOException {
+    checkNoDest(destFS, dest, overwrite);
+    Path partsDir = new Path(dest.getParent(),
+        "." + dest.getName() + ".parts-" + UUID.randomUUID());
+    return new ConcatUpload(source, dest, partsDir, parts);
+  }
+
+  @Override
+  public String toString() {
+    return "HadoopUploader{dest=" + destFS.getUri()
+        + (compression != null ? "; " + compression : "") + "}";
+  }
+
+  /**
+   * Fail if a file is not to be overwritten and exists.
+   * @param fs filesystem
+   * @param dest destination file
+   * @param overwrite overwrite any existing file?
+   * @throws FileAlreadyExistsException if the file exists and is not to
+   * be overwritten, which is not retried
+   * @throws IOException failure to check
+   */
+  static void checkNoDest(FileSystem fs, Path dest, boolean overwrite)
+      throws IOException {
+    if (!overwrite && fs.exists(dest)) {
+      throw new FileAlreadyExistsException(
+          String.format("File found at %s and overwrite=false", dest));
+    }
+  }
+
+  /**
+   * Join part files, in order, into a destination file.
+   * The parts are concatenated in place if the filesystem can;
+   * otherwise they are copied into the destination.
+   * @param fs filesystem
+   * @param parts part files
+   * @param dest destination file
+   * @param overwrite overwrite any existing file?
+   * @throws IOException failure
+   */
+  static void join(FileSystem fs, Path[] parts, Path dest, boolean overwrite)
+      throws IOException {
+    if (overwrite) {
+      fs.delete(dest, false);
+    } else {
+      // created since the upload was initiated: rename would fail
+      // with a plain IOException
+      checkNoDest(fs, dest, false);
+    }
+    if (parts.length == 1 || concat(fs, parts)) {
+      if (!fs.rename(parts[0], dest)) {
+        throw new IOException(
+            String.format("Failed to rename %s to %s", parts[0], dest));
+      }
+    } else {
+      try (FSDataOutputStream out = fs.create(dest, overwrite)) {
+        for (Path part : parts) {
+          try (FSDataInputStream in = fs.open(part, BUFFER_SIZE)) {
+            IOUtils.copyBytes(in, out, BUFFER_SIZE, false);
+          }
+        }
+      }
+    }
+  }
+
+  /**
+   * Can files be copied within a destination filesystem, without their
+   * data passing through the client? Only on the local filesystem.
+   * @param fs destination filesystem
+   * @return true if {@link #copyLocal(FileSystem, Path, Path, boolean)}
+   * copies files
+   */
+  static boolean canCopy(FileSystem fs) {
+    return "file".equals(fs.getUri().getScheme());
+  }
+
+  /**
+   * Can parts be joined without copying their data through the client?
+   * True of the local filesystem, where the copy is local, and of
+   * filesystems which implement {@code concat()}, such as HDFS; not of
+   * object stores, where the parts would be downloaded and uploaded
+   * again.
+   * @param fs destination filesystem
+   * @return true if joining parts is cheap
+   */
+  static boolean canJoinInPlace(FileSystem fs) {
+    if ("file".equals(fs.getUri().getScheme())) {
+      return true;
+    }
+    try {
+      return fs.getClass().getMethod("concat", Path.class, Path[].class)
+          .getDeclaringClass() != FileSystem.class;
+    } catch (NoSuchMethodException e) {
+      return false;
+    }
+  }
+
+  /**
+   * Join all the parts into the first, if the filesystem can.
+   * @param fs filesystem
+   * @param parts part files
+   * @return true if the parts were joined
+   */
+  private static boolean concat(FileSystem fs, Path[] parts) {
+    Path[] rest = new Path[parts.length - 1];
+    System.arraycopy(parts, 1, rest, 0, rest.length);
+    try {
+      fs.concat(parts[0], rest);
+      return true;
+    } catch (UnsupportedOperationException | IOException e) {
+      LOG.debug("Cannot concat the parts into {}: {}", parts[0],
+          e.toString());
+      return false;
+    }
+  }
+
+  /**
+   * Multipart upload through part files which are then joined.
+   */
+  private final class ConcatUpload implements MultipartUpload {
+
+    private final Path source;
+
+    private final Path dest;
+
+    private final Path partsDir;
+
+    private final Path[] parts;
+
+    private ConcatUpload(Path source, Path dest, Path partsDir, int count) {
+      this.source = source;
+      this.dest = dest;
+      this.partsDir = partsDir;
+      this.parts = new Path[count];
+      for (int i = 0; i < count; i++) {
+        parts[i] = new Path(partsDir, String.format("part-%05d", i));
+      }
+    }
+
+    @Override
+    public void uploadPart(int part, long offset, long length,
+        Checksums.Digest digest) throws IOException {
+      try (FSDataInputStream in = sourceFS.open(source, BUFFER_SIZE);
+           FSDataOutputStream out = destFS.create(parts[part], true)) {
+        in.seek(offset);
+        write(in, out, length, digest);
+      }
+    }
+
+    @Override
+    public void complete() throws IOException {
+      join(destFS, parts, dest, overwrite);
+      destFS.delete(partsDir, true);
+    }
+
+    @Override
+    public void abort() {
+      try {
+        destFS.delete(partsDir, true);
+      } catch (IOException e) {
+        LOG.warn("Failed to delete the parts of {} under {}: {}",
+            dest, partsDir, e.toString());
+      }
+    }
+  }
+}
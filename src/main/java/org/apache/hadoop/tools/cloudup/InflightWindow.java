@@ -0,0 +1,129 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.apache.hadoop.tools.cloudup;
+
+/**
+ * Bounds the amount of work in flight, measured in files and in bytes.
+ * <p>
+ * The submitting thread calls {@link #acquire(long)} before queueing an
+ * upload, blocking while the window is full; workers call
+ * {@link #release(long)} as each upload completes. This keeps the number
+ * of queued tasks, and so the heap they consume, constant however many
+ * files are to be uploaded.
+ * <p>
+ * A file larger than the byte limit is admitted when nothing else
+ * is in flight, so that it cannot block the upload forever.
+ */
+final class InflightWindow {
+
+  private final int maxFiles;
+
+  /** Maximum bytes in flight; 0 or less for no limit. */
+  private final long maxBytes;
+
+  private int files;
+
+  private long bytes;
+
+  private int peakFiles;
+
+  private long peakBytes;
+
+  /** Number of times the submitter had to wait. */
+  private long waits;
+
+  private long waitNanos;
+
+  /**
+   * Create a window.
+   * @param maxFiles maximum number of files in flight
+   * @param maxBytes maximum number of bytes in flight; 0 for no limit
+   */
+  InflightWindow(int maxFiles, long maxBytes) {
+    this.maxFiles = Math.max(1, maxFiles);
+    this.maxBytes = maxBytes;
+  }
+
+  /**
+   * Reserve space in the window for a file, waiting until there is room.
+   * @param size size of the file
+   * @throws InterruptedException interrupted while waiting
+   */
+  synchronized void acquire(long size) throws InterruptedException {
+    if (!fits(size)) {
+      waits++;
+      long started = System.nanoTime();
+      try {
+        while (!fits(size)) {
+          wait();
+        }
+      } finally {
+        waitNanos += System.nanoTime() - started;
+      }
+    }
+    files++;
+    bytes += size;
+    peakFiles = Math.max(peakFiles, files);
+    peakBytes = Math.max(peakBytes, bytes);
+  }
+
+  /**
+   * Release the space of a completed file.
+   * @param size size passed to {@link #acquire(long)}
+   */
+  synchronized void release(long size) {
+    files--;
+    bytes -= size;
+    notifyAll();
+  }
+
+  /**
+   * Wait until everything in flight has completed.
+   * @throws InterruptedException interrupted while waiting
+   */
+  synchronized void awaitEmpty() throws InterruptedException {
+    while (files > 0) {
+      wait();
+    }
+  }
+
+  synchronized int getFiles() {
+    return files;
+  }
+
+  synchronized long getBytes() {
+    return bytes;
+  }
+
+  private boolean fits(long size) {
+    if (files >= maxFiles) {
+      return false;
+    }
+    return files == 0 || maxBytes <= 0 || bytes + size <= maxBytes;
+  }
+
+  @Override
+  public synchronized String toString() {
+    return String.format("InflightWindow{max files=%,d, max bytes=%s;"
+            + " peak files=%,d, peak bytes=%,d;"
+            + " submitter waited %,d times for %.3fs}",
+        maxFiles, maxBytes > 0 ? String.format("%,d", maxBytes) : "unlimited",
+        peakFiles, peakBytes, waits, waitNanos / 1.0e9);
+  }
+}
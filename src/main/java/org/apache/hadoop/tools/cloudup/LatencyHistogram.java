@@ -0,0 +1,137 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.apache.hadoop.tools.cloudup;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * A histogram of latencies, in microseconds, with log-linear buckets
+ * in the manner of HdrHistogram: each power of two is divided into
+ * {@link #SUB_BUCKETS} linear buckets, so any value is recorded with a
+ * relative error under 1/{@link #SUB_BUCKETS}, about 1.6%, from a
+ * microsecond to days, in a fixed array of a few thousand counts.
+ * <p>
+ * Recording is a single atomic increment, with no lock, so workers can
+ * record into a shared histogram. Percentiles read while values are
+ * recorded are approximate.
+ */
+final class LatencyHistogram {
+
+  /** Linear buckets per power of two; a power of two. */
+  static final int SUB_BUCKETS = 64;
+
+  private static final int SUB_BUCKET_BITS =
+      Integer.numberOfTrailingZeros(SUB_BUCKETS);
+
+  /** Number of buckets, enough for any positive long. */
+  private static final int BUCKETS =
+      SUB_BUCKETS + (64 - SUB_BUCKET_BITS) * SUB_BUCKETS;
+
+  private final AtomicLongArray counts = new AtomicLongArray(BUCKETS);
+
+  private final AtomicLong count = new AtomicLong();
+
+  private final AtomicLong total = new AtomicLong();
+
+  private final AtomicLong max = new AtomicLong();
+
+  /**
+   * Get the bucket of a value.
+   * @param value value, not negative
+   * @return the index of its bucket
+   */
+  static int bucketOf(long value) {
+    if (value < SUB_BUCKETS) {
+      return (int) value;
+    }
+    int exponent = 63 - Long.numberOfLeadingZeros(value);
+    int shift = exponent - SUB_BUCKET_BITS;
+    int sub = (int) (value >>> shift) - SUB_BUCKETS;
+    return SUB_BUCKETS + shift * SUB_BUCKETS + sub;
+  }
+
+  /**
+   * Get the highest value recorded in a bucket.
+   * @param bucket index of the bucket
+   * @return the highest value which maps to the bucket
+   */
+  static long highestOf(int bucket) {
+    if (bucket < SUB_BUCKETS) {
+      return bucket;
+    }
+    int shift = (bucket - SUB_BUCKETS) / SUB_BUCKETS;
+    long sub = (bucket - SUB_BUCKETS) % SUB_BUCKETS + SUB_BUCKETS;
+    return ((sub + 1) << shift) - 1;
+  }
+
+  /**
+   * Record a latency.
+   * @param micros latency in microseconds; negative values count as 0
+   */
+  void record(long micros) {
+    long value = Math.max(0, micros);
+    counts.incrementAndGet(bucketOf(value));
+    count.incrementAndGet();
+    total.addAndGet(value);
+    long current = max.get();
+    while (value > current && !max.compareAndSet(current, value)) {
+      current = max.get();
+    }
+  }
+
+  long getCount() {
+    return count.get();
+  }
+
+  long getMax() {
+    return max.get();
+  }
+
+  /**
+   * Get the mean latency.
+   * @return the mean in microseconds; 0 if nothing is recorded
+   */
+  double getMean() {
+    long n = count.get();
+    return n > 0 ? (double) total.get() / n : 0;
+  }
+
+  /**
+   * Get the latency at a percentile: the highest value of the bucket
+   * in which that percentile falls, but no more than the maximum.
+   * @param percentile percentile, from 0 to 100
+   * @return the latency in microseconds; 0 if nothing is recorded
+   */
+  long getValueAtPercentile(double percentile) {
+    long n = count.get();
+    if (n == 0) {
+      return 0;
+    }
+    long rank = Math.max(1, (long) Math.ceil(percentile / 100.0 * n));
+    long seen = 0;
+    for (int bucket = 0; bucket < BUCKETS; bucket++) {
+      seen += counts.get(bucket);
+      if (seen >= rank) {
+        return Math.min(highestOf(bucket), max.get());
+      }
+    }
+    return max.get();
+  }
+}
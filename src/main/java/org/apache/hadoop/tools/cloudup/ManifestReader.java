@@ -0,0 +1,241 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.apache.hadoop.tools.cloudup;
+
+import java.io.Closeable;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.nio.charset.CharsetDecoder;
+import java.nio.charset.CoderResult;
+import java.nio.charset.CodingErrorAction;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Incremental reader of a manifest of files to upload.
+ * <p>
+ * The file is read in fixed size chunks through a {@code FileChannel}
+ * and decoded as UTF-8, so only one chunk and the current line are
+ * in memory at any time, however large the manifest.
+ * <p>
+ * Each line is one entry, of up to three comma separated fields:
+ * <pre>
+ *   source[,size[,dest]]
+ * </pre>
+ * Fields may be quoted with {@code "}, with {@code ""} as an escaped quote.
+ * Blank lines and lines starting with {@code #} are skipped.
+ */
+final class ManifestReader implements Closeable {
+
+  /** Default size of the read buffer. */
+  static final int DEFAULT_BUFFER_SIZE = 1024 * 1024;
+
+  private static final Charset UTF8 = Charset.forName("UTF-8");
+
+  private final File file;
+
+  private final FileInputStream in;
+
+  private final FileChannel channel;
+
+  private final ByteBuffer bytes;
+
+  private final CharBuffer chars;
+
+  private final CharsetDecoder decoder;
+
+  private final StringBuilder line = new StringBuilder();
+
+  private boolean endOfInput;
+
+  private long lineNumber;
+
+  /**
+   * Open a manifest.
+   * @param file file to read
+   * @param bufferSize size of the read buffer
+   * @throws IOException failure to open the file
+   */
+  ManifestReader(File file, int bufferSize) throws IOException {
+    this.file = file;
+    in = new FileInputStream(file);
+    channel = in.getChannel();
+    bytes = ByteBuffer.allocateDirect(bufferSize);
+    chars = CharBuffer.allocate(bufferSize);
+    chars.flip();
+    decoder = UTF8.newDecoder()
+        .onMalformedInput(CodingErrorAction.REPORT)
+        .onUnmappableCharacter(CodingErrorAction.REPORT);
+  }
+
+  /**
+   * Read the next entry, skipping blank lines and comments.
+   * @return the fields of the entry, or null at the end of the file.
+   * @throws IOException read or parse failure
+   */
+  List<String> next() throws IOException {
+    String text;
+    do {
+      text = readLine();
+      if (text == null) {
+        return null;
+      }
+      text = text.trim();
+    } while (text.isEmpty() || text.startsWith("#"));
+    return split(text);
+  }
+
+  /**
+   * Read a line, stripping any CR LF.
+   * @return the line or null at the end of the file
+   * @throws IOException failure to read
+   */
+  String readLine() throws IOException {
+    char[] buffer = chars.array();
+    while (true) {
+      int start = chars.position();
+      int end = chars.limit();
+      for (int i = start; i < end; i++) {
+        if (buffer[i] == '\n') {
+          chars.position(i + 1);
+          if (line.length() == 0) {
+            // the whole line is in the buffer: no need to copy it twice
+            lineNumber++;
+            int len = i - start;
+            if (len > 0 && buffer[i - 1] == '\r') {
+              len--;
+            }
+            return new String(buffer, start, len);
+          }
+          line.append(buffer, start, i - start);
+          return takeLine();
+        }
+      }
+      line.append(buffer, start, end - start);
+      chars.position(end);
+      if (endOfInput) {
+        return line.length() > 0 ? takeLine() : null;
+      }
+      fill();
+    }
+  }
+
+  /**
+   * Take the current line and reset the builder.
+   * @return the line with any trailing CR removed.
+   */
+  private String takeLine() {
+    lineNumber++;
+    int len = line.length();
+    if (len > 0 && line.charAt(len - 1) == '\r') {
+      len--;
+    }
+    String result = line.substring(0, len);
+    line.setLength(0);
+    return result;
+  }
+
+  /**
+   * Read the next chunk of the file and decode it.
+   * @throws IOException read or decode failure.
+   */
+  private void fill() throws IOException {
+    int read = channel.read(bytes);
+    if (read < 0) {
+      endOfInput = true;
+    }
+    bytes.flip();
+    chars.clear();
+    CoderResult result = decoder.decode(bytes, chars, endOfInput);
+    if (result.isError()) {
+      throw new IOException(
+          String.format("Invalid UTF-8 in %s after line %d", file, lineNumber));
+    }
+    if (endOfInput) {
+      decoder.flush(chars);
+    }
+    // retain any partial character for the next read
+    bytes.compact();
+    chars.flip();
+  }
+
+  /**
+   * Split a line into its fields.
+   * @param text line
+   * @return the fields
+   * @throws EOFException if a quoted field is unterminated
+   */
+  List<String> split(String text) throws EOFException {
+    List<String> fields = new ArrayList<>(3);
+    StringBuilder field = new StringBuilder();
+    boolean quoted = false;
+    int len = text.length();
+    for (int i = 0; i < len; i++) {
+      char c = text.charAt(i);
+      if (quoted) {
+        if (c == '"') {
+          if (i + 1 < len && text.charAt(i + 1) == '"') {
+            field.append('"');
+            i++;
+          } else {
+            quoted = false;
+          }
+        } else {
+          field.append(c);
+        }
+      } else if (c == '"') {
+        quoted = true;
+      } else if (c == ',') {
+        fields.add(field.toString().trim());
+        field.setLength(0);
+      } else {
+        field.append(c);
+      }
+    }
+    if (quoted) {
+      throw new EOFException(
+          String.format("Unterminated quote at %s:%d", file, lineNumber));
+    }
+    fields.add(field.toString().trim());
+    return fields;
+  }
+
+  /**
+   * Get the number of the last line read.
+   * @return the line number, starting at 1.
+   */
+  long getLineNumber() {
+    return lineNumber;
+  }
+
+  File getFile() {
+    return file;
+  }
+
+  @Override
+  public void close() throws IOException {
+    in.close();
+  }
+}
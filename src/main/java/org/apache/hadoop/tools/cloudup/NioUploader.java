@@ -0,0 +1,411 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.apache.hadoop.tools.cloudup;
+
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.UUID;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import org.apache.hadoop.fs.ChecksumFileSystem;
+import org.apache.hadoop.fs.FSDataOutputStream;
+import org.apache.hadoop.fs.FileAlreadyExistsException;
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.Path;
+
+/**
+ * Uploader which reads the source through NIO, bypassing the checksummed
+ * local filesystem and the per-file buffers of
+ * {@code copyFromLocalFile()}.
+ * <ul>
+ *   <li>To a local destination, data is moved between the file channels
+ *   with {@code transferTo()}, so it never enters the JVM, unless it
+ *   is to be checksummed, when it goes through a pooled buffer. No CRC
+ *   files are written for the destination. Parts of a multipart upload
+ *   are written straight into their place in a temporary file, which is
+ *   renamed on completion, so there is nothing to join; any existing
+ *   file is replaced by that rename, so it is kept until the upload is
+ *   complete and kept if it fails.</li>
+ *   <li>To any other filesystem, the source is read into pooled direct
+ *   buffers and passed to the output stream in chunks. Hadoop 2
+ *   output streams only take byte arrays, so this is one copy, with no
+ *   allocation per file. Multipart uploads are as for
+ *   {@link HadoopUploader}, reading each part as above.</li>
+ * </ul>
+ * The source must be on the local filesystem.
+ */
+final class NioUploader implements Uploader {
+
+  private static final Logger LOG =
+      LoggerFactory.getLogger(NioUploader.class);
+
+  /** Size of the pooled buffers. */
+  static final int BUFFER_SIZE = 1024 * 1024;
+
+  private final FileSystem destFS;
+
+  private final boolean overwrite;
+
+  private final boolean localDest;
+
+  private final BufferPool pool = new BufferPool(BUFFER_SIZE);
+
+  /**
+   * Create an uploader.
+   * @param destFS destination filesystem
+   * @param overwrite overwrite existing files?
+   */
+  NioUploader(FileSystem destFS, boolean overwrite) {
+    this.destFS = destFS;
+    this.overwrite = overwrite;
+    this.localDest = "file".equals(destFS.getUri().getScheme());
+  }
+
+  @Override
+  public void upload(Path source, Path dest, Checksums.Digest digest)
+      throws IOException {
+    File src = toFile(source);
+    try (FileInputStream in = new FileInputStream(src)) {
+      FileChannel channel = in.getChannel();
+      long length = channel.size();
+      if (localDest) {
+        File target = prepareLocalDest(dest);
+        try (RandomAccessFile out = new RandomAccessFile(target, "rw")) {
+          out.setLength(0);
+          transfer(channel, 0, length, out.getChannel(), 0, digest);
+        }
+      } else {
+        try (FSDataOutputStream out = destFS.create(dest, overwrite)) {
+          copy(channel, 0, length, out, digest);
+        }
+      }
+    }
+  }
+
+  @Override
+  public void upload(byte[] data, Path dest, Checksums.Digest digest)
+      throws IOException {
+    if (digest != null) {
+      digest.update(data, 0, data.length);
+    }
+    if (localDest) {
+      File target = prepareLocalDest(dest);
+      try (FileOutputStream out = new FileOutputStream(target)) {
+        FileChannel channel = out.getChannel();
+        ByteBuffer buffer = ByteBuffer.wrap(data);
+        while (buffer.hasRemaining()) {
+          channel.write(buffer);
+        }
+      }
+    } else {
+      try (FSDataOutputStream out = destFS.create(dest, overwrite)) {
+        out.write(data);
+      }
+    }
+  }
+
+  @Override
+  public boolean copy(Path from, Path to) throws IOException {
+    return HadoopUploader.copyLocal(destFS, from, to, overwrite);
+  }
+
+  @Override
+  public MultipartUpload initiate(Path source, Path dest, int parts)
+      throws IOException {
+    File src = toFile(source);
+    if (localDest) {
+      // an existing file is only replaced on completion
+      File target = checkLocalDest(dest);
+      File temp = new File(target.getParentFile(),
+          "." + target.getName() + ".parts-" + UUID.randomUUID());
+      File checksum = destFS instanceof ChecksumFileSystem
+          ? toFile(((ChecksumFileSystem) destFS).getChecksumFile(dest))
+          : null;
+      return new LocalUpload(src, target, temp, checksum);
+    }
+    HadoopUploader.checkNoDest(destFS, dest, overwrite);
+    return new StreamUpload(src, dest, parts);
+  }
+
+  /**
+   * Convert a local path to a file.
+   * @param path path
+   * @return the file
+   */
+  private static File toFile(Path path) {
+    return new File(path.toUri().getPath());
+  }
+
+  /**
+   * Prepare a local destination: check for an existing file, deleting
+   * it through the filesystem when overwriting so that its checksum
+   * goes too, and create the parent directory.
+   * @param dest destination
+   * @return the destination file
+   * @throws IOException failure, including the file existing
+   */
+  private File prepareLocalDest(Path dest) throws IOException {
+    File target = checkLocalDest(dest);
+    if (target.exists()) {
+      destFS.delete(dest, false);
+    }
+    return target;
+  }
+
+  /**
+   * Check a local destination: fail if there is a file there and it is
+   * not to be overwritten, and create the parent directory.
+   * @param dest destination
+   * @return the destination file
+   * @throws IOException failure, including the file existing
+   */
+  private File checkLocalDest(Path dest) throws IOException {
+    File target = toFile(dest);
+    if (target.exists() && !overwrite) {
+      throw new FileAlreadyExistsException(
+          String.format("File found at %s and overwrite=false", dest));
+    }
+    File parent = target.getParentFile();
+    if (!parent.isDirectory() && !parent.mkdirs() && !parent.isDirectory()) {
+      throw new IOException("Failed to create directory " + parent);
+    }
+    return target;
+  }
+
+  /**
+   * Transfer a range of one file channel to another.
+   * Unless a digest is to be updated, this is done with
+   * {@code transferTo()}; otherwise the data is read into a pooled
+   * buffer, digested and written out.
+   * @param in source
+   * @param offset offset in the source
+   * @param length bytes to transfer
+   * @param out destination
+   * @param position position in the destination
+   * @param digest digest to update; may be null
+   * @throws IOException failure, including the source being too short
+   */
+  private void transfer(FileChannel in, long offset, long length,
+      FileChannel out, long position, Checksums.Digest digest)
+      throws IOException {
+    if (digest != null) {
+      BufferPool.Buffer buffer = pool.acquire();
+      try {
+        ByteBuffer direct = buffer.direct;
+        long done = 0;
+        while (done < length) {
+          direct.clear();
+          direct.limit((int) Math.min(direct.capacity(), length - done));
+          if (in.read(direct, offset + done) < 0) {
+            throw new EOFException(String.format(
+                "Source truncated at %d", offset + done));
+          }
+          direct.flip();
+          digest.update(direct);
+          while (direct.hasRemaining()) {
+            done += out.write(direct, position + done);
+          }
+        }
+      } finally {
+        pool.release(buffer);
+      }
+      return;
+    }
+    out.position(position);
+    long done = 0;
+    while (done < length) {
+      long n = in.transferTo(offset + done, length - done, out);
+      if (n <= 0) {
+        throw new EOFException(String.format(
+            "Source truncated at %d", offset + done));
+      }
+      done += n;
+    }
+  }
+
+  /**
+   * Copy a range of a file channel to a stream through a pooled buffer.
+   * @param in source
+   * @param offset offset in the source
+   * @param length bytes to copy
+   * @param out destination
+   * @param digest digest to update; may be null
+   * @throws IOException failure, including the source being too short
+   */
+  private void copy(FileChannel in, long offset, long length,
+      OutputStream out, Checksums.Digest digest) throws IOException {
+    BufferPool.Buffer buffer = pool.acquire();
+    try {
+      ByteBuffer direct = buffer.direct;
+      byte[] array = buffer.array;
+      long position = offset;
+      long end = offset + length;
+      while (position < end) {
+        direct.clear();
+        direct.limit((int) Math.min(direct.capacity(), end - position));
+        int read = in.read(direct, position);
+        if (read < 0) {
+          throw new EOFException(String.format(
+              "Source truncated at %d", position));
+        }
+        position += read;
+        direct.flip();
+        while (direct.hasRemaining()) {
+          int n = Math.min(direct.remaining(), array.length);
+          direct.get(array, 0, n);
+          if (digest != null) {
+            digest.update(array, 0, n);
+          }
+          out.write(array, 0, n);
+        }
+      }
+    } finally {
+      pool.release(buffer);
+    }
+  }
+
+  @Override
+  public String toString() {
+    return "NioUploader{dest=" + destFS.getUri()
+        + (localDest ? "; transferTo" : "; " + pool) + "}";
+  }
+
+  /**
+   * Multipart upload to a local file: each part is transferred to its
+   * offset in a temporary file, which is then renamed over the
+   * destination.
+   */
+  private final class LocalUpload implements MultipartUpload {
+
+    private final File source;
+
+    private final File dest;
+
+    private final File temp;
+
+    /** Checksum file of any existing destination; may be null. */
+    private final File checksum;
+
+    private LocalUpload(File source, File dest, File temp, File checksum) {
+      this.source = source;
+      this.dest = dest;
+      this.temp = temp;
+      this.checksum = checksum;
+    }
+
+    @Override
+    public void uploadPart(int part, long offset, long length,
+        Checksums.Digest digest) throws IOException {
+      try (FileInputStream in = new FileInputStream(source);
+           RandomAccessFile out = new RandomAccessFile(temp, "rw")) {
+        transfer(in.getChannel(), offset, length, out.getChannel(), offset,
+            digest);
+      }
+    }
+
+    @Override
+    public void complete() throws IOException {
+      if (!temp.exists()) {
+        throw new FileNotFoundException("No parts uploaded to " + temp);
+      }
+      // the checksum of a file being replaced would not match the new
+      // data; without one, the old file can still be read until renamed
+      if (checksum != null && checksum.exists() && !checksum.delete()) {
+        throw new IOException("Failed to delete " + checksum);
+      }
+      if (!temp.renameTo(dest)) {
+        throw new IOException(
+            String.format("Failed to rename %s to %s", temp, dest));
+      }
+    }
+
+    @Override
+    public void abort() {
+      if (temp.exists() && !temp.delete()) {
+        LOG.warn("Failed to delete {}", temp);
+      }
+    }
+  }
+
+  /**
+   * Multipart upload through part files which are then joined,
+   * as {@link HadoopUploader} does, but reading the parts through NIO.
+   */
+  private final class StreamUpload implements MultipartUpload {
+
+    private final File source;
+
+    private final Path dest;
+
+    private final Path partsDir;
+
+    private final int parts;
+
+    private StreamUpload(File source, Path dest, int parts) {
+      this.source = source;
+      this.dest = dest;
+      this.parts = parts;
+      this.partsDir = new Path(dest.getParent(),
+          "." + dest.getName() + ".parts-" + UUID.randomUUID());
+    }
+
+    private Path part(int part) {
+      return new Path(partsDir, String.format("part-%05d", part));
+    }
+
+    @Override
+    public void uploadPart(int part, long offset, long length,
+        Checksums.Digest digest) throws IOException {
+      try (FileInputStream in = new FileInputStream(source);
+           FSDataOutputStream out = destFS.create(part(part), true)) {
+        copy(in.getChannel(), offset, length, out, digest);
+      }
+    }
+
+    @Override
+    public void complete() throws IOException {
+      Path[] files = new Path[parts];
+      for (int i = 0; i < parts; i++) {
+        files[i] = part(i);
+      }
+      HadoopUploader.join(destFS, files, dest, overwrite);
+      destFS.delete(partsDir, true);
+    }
+
+    @Override
+    public void abort() {
+      try {
+        destFS.delete(partsDir, true);
+      } catch (IOException e) {
+        LOG.warn("Failed to delete the parts of {} under {}: {}",
+            dest, partsDir, e.toString());
+      }
+    }
+  }
+}
@@ -24,6 +24,7 @@ import org.apache.commons.cli.CommandLine;
 import org.apache.commons.cli.Option;
 import org.apache.commons.cli.Options;
 import org.apache.commons.lang.StringUtils;
+import org.apache.hadoop.util.StringUtils.TraditionalBinaryPrefix;
 
 /**
  * Enumeration mapping configuration keys to command line options.
@@ -54,6 +55,224 @@ public enum OptionSwitch {
   OVERWRITE(new Option("o", "overwrite", false,
           "Overwrite target files even if they exist.")),
 
+  /**
+   * Resize the worker pool from the observed throughput.
+   */
+  ADAPTIVE(new Option("a", "adaptive", false,
+      "Adapt the number of upload threads to the observed throughput")),
+
+  /**
+   * Minimum worker threads when adapting.
+   */
+  MIN_THREADS(new Option("n", "min-threads", true,
+      "Minimum number of upload threads when adapting")),
+
+  /**
+   * Maximum worker threads when adapting.
+   */
+  MAX_THREADS(new Option("N", "max-threads", true,
+      "Maximum number of upload threads when adapting")),
+
+  /**
+   * Threads for the parallel tree walk; 0 for a serial listing.
+   */
+  WALKERS(new Option("w", "walkers", true,
+      "Threads for the parallel source listing; 0 for a serial listing")),
+
+  /**
+   * Start uploading files while the source is still being listed.
+   */
+  STREAM(new Option("S", "stream", false,
+      "Start uploading while the source is still being listed")),
+
+  /**
+   * Maximum number of files in each streaming window.
+   */
+  WINDOW(new Option("W", "window", true,
+      "Maximum number of files to order in each streaming window")),
+
+  /**
+   * Read the files to upload from a manifest instead of listing the source.
+   */
+  MANIFEST(new Option("m", "manifest", true,
+      "Manifest of files to upload: source[,size[,dest]] per line")),
+
+  /**
+   * Skip files which are already at the destination with the same size.
+   */
+  UPDATE(new Option("u", "update", false,
+      "Skip files already at the destination with the same size")),
+
+  /**
+   * When updating, also skip only if the destination is not older
+   * than the source.
+   */
+  UPDATE_MTIME(new Option("U", "update-mtime", false,
+      "When updating, also upload files newer than the destination")),
+
+  /**
+   * Journal of upload state changes.
+   */
+  JOURNAL(new Option("j", "journal", true,
+      "Journal file to record the upload of every file")),
+
+  /**
+   * Resume from a journal.
+   */
+  RESUME(new Option("r", "resume", true,
+      "Resume the upload recorded in a journal file")),
+
+  /**
+   * Maximum number of files queued or uploading at any time.
+   */
+  INFLIGHT_FILES(new Option("f", "inflight-files", true,
+      "Maximum number of files queued or being uploaded at any time")),
+
+  /**
+   * Maximum number of bytes queued or uploading at any time.
+   */
+  INFLIGHT_BYTES(new Option("b", "inflight-bytes", true,
+      "Maximum bytes queued or being uploaded at any time, e.g. 4g;"
+          + " 0 for no limit")),
+
+  /**
+   * Policy for the order of uploads.
+   */
+  POLICY(new Option("P", "policy", true,
+      "Upload scheduling policy: largest (default), makespan, prefix"
+          + " or locality")),
+
+  /**
+   * Depth of the destination prefixes to spread uploads across.
+   */
+  PREFIX_DEPTH(new Option("x", "prefix-depth", true,
+      "Directory depth under the destination which defines a key prefix")),
+
+  /**
+   * Limit on the uploads in flight under one destination prefix.
+   */
+  PREFIX_LIMIT(new Option("X", "prefix-limit", true,
+      "Maximum uploads in flight under one destination prefix")),
+
+  /**
+   * Size of the parts of a multipart upload.
+   */
+  BLOCK_SIZE(new Option("B", "block-size", true,
+      "Size of each part when uploading a file in parts, e.g. 128m")),
+
+  /**
+   * Size of file at which uploads are made in parts.
+   */
+  SPLIT_THRESHOLD(new Option("T", "split-threshold", true,
+      "Upload files of this size or larger in parallel parts, e.g. 1g;"
+          + " 0 to never split")),
+
+  /**
+   * Engine used to upload files.
+   */
+  ENGINE(new Option("e", "engine", true,
+      "Upload engine: hadoop (default) or nio")),
+
+  /**
+   * Maximum retries of a failed upload.
+   */
+  RETRIES(new Option("R", "retries", true,
+      "Maximum retries of a failed upload, file part or container;"
+          + " default 3")),
+
+  /**
+   * Global budget of retries.
+   */
+  RETRY_BUDGET(new Option("g", "retry-budget", true,
+      "Retry budget: retries which can be made when all uploads are"
+          + " failing; default 100")),
+
+  /**
+   * Checksums to calculate of the files uploaded.
+   */
+  CHECKSUMS(new Option("C", "checksums", true,
+      "Checksums to calculate of every file uploaded, comma separated:"
+          + " md5, crc32, crc32c")),
+
+  /**
+   * Compression codec.
+   */
+  COMPRESS(new Option("z", "compress", true,
+      "Compress files with a codec, such as gzip or bzip2")),
+
+  /**
+   * File to export the latency histograms to.
+   */
+  HISTOGRAMS(new Option("H", "histograms", true,
+      "File to write the percentiles of upload latency by file size to")),
+
+  /**
+   * File to write a report of every upload to.
+   */
+  REPORT(new Option("F", "report", true,
+      "File to write a record of every file uploaded to,"
+          + " and a summary of the upload")),
+
+  /**
+   * Format of the report.
+   */
+  REPORT_FORMAT(new Option("E", "report-format", true,
+      "Format of the report: csv (default), json or avro")),
+
+  /**
+   * Interval between progress reports.
+   */
+  PROGRESS(new Option("p", "progress", true,
+      "Interval in seconds between progress reports; 0 for none")),
+
+  /**
+   * Interval between logging the filesystem statistics.
+   */
+  STATISTICS_INTERVAL(new Option("Z", "stats-interval", true,
+      "Interval in seconds between logging the changes in the filesystem"
+          + " statistics; 0 for none")),
+
+  /**
+   * File to write metrics to.
+   */
+  METRICS(new Option("M", "metrics", true,
+      "File to write the live metrics of the upload to every 10s,"
+          + " in the Prometheus text format")),
+
+  /**
+   * Maximum uploads reading from one source device.
+   */
+  DEVICE_LIMIT(new Option("v", "device-limit", true,
+      "Maximum number of files read at the same time from each device"
+          + " of the source; 0 for no limit")),
+
+  /**
+   * Memory for files read ahead of their upload.
+   */
+  READ_AHEAD(new Option("A", "read-ahead", true,
+      "Memory for reading files ahead of their upload, e.g. 256m;"
+          + " 0 for none")),
+
+  /**
+   * Deduplicate files.
+   */
+  DEDUP(new Option("G", "dedup", false,
+      "Upload each distinct content once, copying it at the destination"
+          + " to the other files with the same content")),
+
+  /**
+   * Size below which files are packed into containers.
+   */
+  PACK_THRESHOLD(new Option("k", "pack-threshold", true,
+      "Pack files smaller than this into container files, e.g. 64k;"
+          + " 0 to never pack")),
+
+  /**
+   * Target size of a container of packed files.
+   */
+  PACK_SIZE(new Option("K", "pack-size", true,
+      "Size of each container of packed files, e.g. 64m")),
+
   SOURCE(new Option("s", "source", true, "source path")),
 
   DEST(new Option("d", "dest", true, "destination path"));
@@ -132,6 +351,17 @@ public enum OptionSwitch {
     return Integer.valueOf(eval(command, Integer.toString(defVal)));
   }
 
+  /**
+   * Get a size in bytes, which may have a binary prefix such as "64m".
+   * @param command command line
+   * @param defVal default value
+   * @return the value
+   */
+  public long evalBytes(CommandLine command, long defVal) {
+    String value = eval(command, null);
+    return value == null ? defVal : TraditionalBinaryPrefix.string2long(value);
+  }
+
   /**
    * Enum all the options and add them.
    * @param cliOptions option set
@@ -0,0 +1,367 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package org.apache.hadoop.tools.cloudup;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+import java.util.UUID;
+
+import com.google.common.base.Preconditions;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.fs.FSDataInputStream;
+import org.apache.hadoop.fs.FSDataOutputStream;
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.io.BytesWritable;
+import org.apache.hadoop.io.SequenceFile;
+import org.apache.hadoop.io.Text;
+
+/**
+ * Packs small files into container files, so that each container is
+ * uploaded with one request instead of one request per file.
+ * <p>
+ * Files are collected into packs until a pack reaches the target size;
+ * a full pack is then written by a worker as a SequenceFile of
+ * (path, contents) records, uncompressed, in the directory
+ * {@code _packed} under the destination. Underscore-prefixed
+ * directories are ignored by Hadoop input formats.
+ * <p>
+ * Every file packed is listed in the index of its container, written
+ * alongside it once the container is complete, so that nothing is held
+ * in memory beyond the pack being written, and the containers of an
+ * upload which fails part way through can still be read. Each line is
+ * tab separated:
+ * <pre>
+ *   container offset size modification-time path
+ * </pre>
+ * The offset is the position of the file's record in the container;
+ * passing it to {@code SequenceFile.Reader.seek()} allows a single file
+ * to be read without scanning the container. If files are being
+ * compressed, each is compressed on its own, and the size is that of
+ * the compressed data.
+ * <p>
+ * The containers of an upload are named by the time it started and a
+ * random suffix, so that uploads started in the same second do not
+ * collide.
+ * <p>
+ * {@link #add(UploadEntry)} is only called from the submitting thread;
+ * packs are written from the workers.
+ */
+final class Packer {
+
+  private static final Logger LOG = LoggerFactory.getLogger(Packer.class);
+
+  private static final Charset UTF8 = Charset.forName("UTF-8");
+
+  /** Directory of the containers under the destination. */
+  static final String PACK_DIR = "_packed";
+
+  /** Upper bound on the files in one pack, however small they are. */
+  static final int MAX_PACK_FILES = 100000;
+
+  /**
+   * Largest pack threshold: each packed file is read into the heap
+   * whole, into a buffer half as large again as the file.
+   */
+  static final long MAX_PACK_THRESHOLD = 256 * 1024 * 1024;
+
+  private final FileSystem sourceFS;
+
+  private final FileSystem destFS;
+
+  /** Destination root, with a trailing "/". */
+  private final String root;
+
+  private final Path dir;
+
+  /** Identifies the containers of this upload. */
+  private final String id;
+
+  private final long threshold;
+
+  private final long packSize;
+
+  /** Checksums to calculate of every file; null for none. */
+  private final Checksums checksums;
+
+  /** Compression of every file; null for none. */
+  private final Compression compression;
+
+  private Pack pending;
+
+  private int sealed;
+
+  /** Statistics of written containers; guarded by this. */
+  private int containers;
+
+  private long files;
+
+  private long bytes;
+
+  /**
+   * Create a packer.
+   * @param sourceFS source filesystem
+   * @param destFS destination filesystem
+   * @param destPath destination root
+   * @param threshold files smaller than this are packed
+   * @param packSize target size of a container
+   * @param checksums checksums to calculate of every file; null for none
+   * @param compression compression of every file; null for none
+   */
+  Packer(FileSystem sourceFS, FileSystem destFS, Path destPath,
+      long threshold, long packSize, Checksums checksums,
+      Compression compression) {
+    Preconditions.checkArgument(threshold > 0 && packSize > 0,
+        "Invalid pack threshold %s or size %s", threshold, packSize);
+    Preconditions.checkArgument(threshold <= MAX_PACK_THRESHOLD,
+        "Pack threshold %s is above the limit of %s",
+        threshold, MAX_PACK_THRESHOLD);
+    this.sourceFS = sourceFS;
+    this.destFS = destFS;
+    String r = destPath.toString();
+    this.root = r.endsWith("/") ? r : r + "/";
+    this.dir = new Path(destPath, PACK_DIR);
+    this.id = String.format("%tY%<tm%<td-%<tH%<tM%<tS-%s", new Date(),
+        UUID.randomUUID().toString().substring(0, 8));
+    this.threshold = threshold;
+    this.packSize = packSize;
+    this.checksums = checksums;
+    this.compression = compression;
+  }
+
+  /**
+   * Is an upload to be packed?
+   * @param upload upload
+   * @return true if the file is below the threshold
+   */
+  boolean accepts(UploadEntry upload) {
+    return upload.getSize() < threshold;
+  }
+
+  /**
+   * Add an upload to the pending pack.
+   * @param upload upload
+   * @return the pack, if it is now full and ready to write; else null
+   */
+  Pack add(UploadEntry upload) {
+    if (pending == null) {
+      String name = String.format("pack-%s-%05d", id, sealed++);
+      pending = new Pack(new Path(dir, name + ".seq"),
+          new Path(dir, name + ".tsv"));
+    }
+    pending.entries.add(upload);
+    pending.size += upload.getSize();
+    if (pending.size >= packSize
+        || pending.entries.size() >= MAX_PACK_FILES) {
+      return flush();
+    }
+    return null;
+  }
+
+  /**
+   * Take the pending pack, full or not.
+   * @return the pack to write, or null if there is none
+   */
+  Pack flush() {
+    Pack pack = pending;
+    pending = null;
+    return pack;
+  }
+
+  /**
+   * Write a pack to its container, then the index of the container.
+   * A file which cannot be read is left out of the container, with its
+   * failure set on the entry; the others are listed in the index.
+   * @param pack pack to write
+   * @return the number of files written to the container
+   * @throws IOException failure to write the container or its index,
+   * both of which are then deleted.
+   */
+  int write(Pack pack) throws IOException {
+    int written = 0;
+    long writtenBytes = 0;
+    StringBuilder lines = new StringBuilder();
+    String container = pack.container.getName();
+    Text key = new Text();
+    BytesWritable value = new BytesWritable();
+    ByteArrayOutputStream compressed = compression != null
+        ? new ByteArrayOutputStream() : null;
+    try {
+      try (FSDataOutputStream out = destFS.create(pack.container, false)) {
+        SequenceFile.Writer writer = SequenceFile.createWriter(
+            new Configuration(false),
+            SequenceFile.Writer.stream(out),
+            SequenceFile.Writer.keyClass(Text.class),
+            SequenceFile.Writer.valueClass(BytesWritable.class),
+            SequenceFile.Writer.compression(
+                SequenceFile.CompressionType.NONE));
+        try {
+          for (UploadEntry upload : pack.entries) {
+            String path = relative(upload.getDest());
+            int size = (int) upload.getSize();
+            value.setSize(size);
+            try (FSDataInputStream in = sourceFS.open(upload.getSource())) {
+              in.readFully(0, value.getBytes(), 0, size);
+            } catch (IOException e) {
+              LOG.warn("Failed to read {}: {}", upload.getSource(),
+                  e.toString());
+              upload.setException(e);
+              continue;
+            }
+            // clear any failure of an earlier attempt
+            upload.setException(null);
+            Checksums.Digest digest = checksums != null
+                ? checksums.start() : null;
+            if (compressed != null) {
+              compressed.reset();
+              compression.compress(
+                  new ByteArrayInputStream(value.getBytes(), 0, size), size,
+                  compressed, digest);
+              size = compressed.size();
+              value.set(compressed.toByteArray(), 0, size);
+            } else if (digest != null) {
+              digest.update(value.getBytes(), 0, size);
+            }
+            if (digest != null) {
+              upload.setDigest(digest.toString());
+            }
+            key.set(path);
+            long offset = writer.getLength();
+            writer.append(key, value);
+            written++;
+            writtenBytes += upload.getSize();
+            lines.append(container).append('\t')
+                .append(offset).append('\t')
+                .append(size).append('\t')
+                .append(upload.getModificationTime()).append('\t')
+                .append(path).append('\n');
+          }
+        } finally {
+          // the stream belongs to the caller, so is left open
+          writer.close();
+        }
+      }
+      // the container is complete: now list its files
+      try (Writer out = new OutputStreamWriter(
+          destFS.create(pack.index, false), UTF8)) {
+        out.write(lines.toString());
+      }
+    } catch (IOException e) {
+      delete(pack.index);
+      delete(pack.container);
+      throw e;
+    }
+    synchronized (this) {
+      containers++;
+      files += written;
+      bytes += writtenBytes;
+    }
+    LOG.debug("Packed {} files into {}", written, pack.container);
+    return written;
+  }
+
+  /**
+   * Delete a file written by a failed attempt, if it exists.
+   * @param path path to delete
+   */
+  private void delete(Path path) {
+    try {
+      destFS.delete(path, false);
+    } catch (IOException ignored) {
+      LOG.debug("Failed to delete {}", path, ignored);
+    }
+  }
+
+  /**
+   * Get the path of a destination relative to the destination root.
+   * @param dest destination
+   * @return the relative path
+   */
+  private String relative(Path dest) {
+    String d = dest.toString();
+    return d.startsWith(root) ? d.substring(root.length()) : d;
+  }
+
+  synchronized int getContainers() {
+    return containers;
+  }
+
+  synchronized long getFiles() {
+    return files;
+  }
+
+  /**
+   * Get the number of requests saved by packing: one per file packed,
+   * less two per container, for the container and its index.
+   * @return the requests saved
+   */
+  synchronized long getRequestsSaved() {
+    return files - 2 * containers;
+  }
+
+  @Override
+  public synchronized String toString() {
+    return String.format("%,d files, %,d bytes in %,d containers under %s;"
+            + " requests saved: %,d",
+        files, bytes, containers, dir, getRequestsSaved());
+  }
+
+  /**
+   * A set of files to be written to one container.
+   */
+  static final class Pack {
+
+    private final Path container;
+
+    /** Index of the container. */
+    private final Path index;
+
+    private final List<UploadEntry> entries = new ArrayList<>();
+
+    private long size;
+
+    private Pack(Path container, Path index) {
+      this.container = container;
+      this.index = index;
+    }
+
+    Path getContainer() {
+      return container;
+    }
+
+    List<UploadEntry> getEntries() {
+      return entries;
+    }
+
+    long getSize() {
+      return size;
+    }
+  }
+}
@@ -0,0 +1,289 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.apache.hadoop.tools.cloudup;
+
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Queue;
+
+import org.apache.hadoop.fs.Path;
+
+/**
+ * Spreads uploads across the key prefixes of the destination.
+ * <p>
+ * Object stores partition their index by key prefix, and throttle
+ * requests to a partition which is too busy; a random shuffle can still
+ * send many concurrent uploads to one prefix if one directory holds most
+ * of the files. Here the prefix of an upload is its destination path
+ * relative to the destination root, cut to a configured depth of
+ * directories.
+ * <ol>
+ *   <li>{@link #interleave(UploadTable, int[])} orders uploads round
+ *   robin across the prefixes.</li>
+ *   <li>The number of uploads in flight under each prefix is tracked
+ *   and may be limited: an upload which would exceed the limit is
+ *   held back until one under the same prefix completes.</li>
+ * </ol>
+ * Thread safe.
+ */
+final class PrefixLimiter {
+
+  /** Root of the destination, with a trailing "/". */
+  private final String root;
+
+  private final int depth;
+
+  /** Maximum uploads in flight under one prefix; 0 for no limit. */
+  private final int limit;
+
+  private final Map<String, Slot> slots = new HashMap<>();
+
+  private int peakActive;
+
+  private String peakPrefix;
+
+  private long deferred;
+
+  /**
+   * Create an instance.
+   * @param root destination root
+   * @param depth number of directories below the root in a prefix
+   * @param limit maximum uploads in flight under one prefix; 0 for no limit
+   */
+  PrefixLimiter(Path root, int depth, int limit) {
+    String r = root.toString();
+    this.root = r.endsWith("/") ? r : r + "/";
+    this.depth = depth;
+    this.limit = limit;
+  }
+
+  /**
+   * Get the prefix of a destination directory.
+   * Directories outside the destination root are their own prefix.
+   * @param directory directory, with a trailing "/"
+   * @return the prefix
+   */
+  String prefixOf(String directory) {
+    if (!directory.startsWith(root)) {
+      return directory;
+    }
+    int end = root.length();
+    for (int i = 0; i < depth; i++) {
+      int next = directory.indexOf('/', end);
+      if (next < 0) {
+        break;
+      }
+      end = next + 1;
+    }
+    return directory.substring(root.length(), end);
+  }
+
+  /**
+   * Get the prefix of a destination file.
+   * @param dest destination path
+   * @return the prefix
+   */
+  String prefixOf(Path dest) {
+    String d = dest.toString();
+    return prefixOf(d.substring(0, d.lastIndexOf('/') + 1));
+  }
+
+  /**
+   * Order uploads round robin across their prefixes.
+   * Within a prefix, the existing order is kept; in each round the
+   * prefixes are taken in the order in which they first appear.
+   * @param uploads table of uploads
+   * @param order indices of the uploads, in their order of preference
+   * @return the indices of the uploads, interleaved
+   */
+  int[] interleave(UploadTable uploads, int[] order) {
+    int n = order.length;
+    // map each directory to a prefix number
+    int[] directoryPrefix = new int[uploads.getDirectoryCount()];
+    Arrays.fill(directoryPrefix, -1);
+    Map<String, Integer> prefixes = new HashMap<>();
+    int[] keys = new int[n];
+    for (int i = 0; i < n; i++) {
+      int dir = uploads.getDestDirectory(order[i]);
+      int p = directoryPrefix[dir];
+      if (p < 0) {
+        String prefix = prefixOf(uploads.getDirectory(dir));
+        Integer known = prefixes.get(prefix);
+        p = known != null ? known : prefixes.size();
+        if (known == null) {
+          prefixes.put(prefix, p);
+        }
+        directoryPrefix[dir] = p;
+      }
+      keys[i] = p;
+    }
+    return roundRobin(order, keys, prefixes.size());
+  }
+
+  /**
+   * Order runs of uploads round robin across their prefixes.
+   * The order is cut into runs of consecutive uploads from the same
+   * source directory, of at most {@code runLength} uploads; the runs
+   * are then interleaved across the destination prefix of their first
+   * upload. This keeps most consecutive reads within one directory,
+   * while still moving between prefixes every run.
+   * @param uploads table of uploads
+   * @param order indices of the uploads, in their order of preference
+   * @param runLength maximum uploads in a run
+   * @return the indices of the uploads, interleaved
+   */
+  int[] interleaveRuns(UploadTable uploads, int[] order, int runLength) {
+    int n = order.length;
+    // the first position in the order of each run, and its prefix
+    int[] runStart = new int[n + 1];
+    int[] runKeys = new int[n];
+    int runs = 0;
+    Map<String, Integer> prefixes = new HashMap<>();
+    for (int i = 0; i < n; i++) {
+      if (runs == 0 || i - runStart[runs - 1] >= runLength
+          || uploads.getSourceDirectory(order[i])
+              != uploads.getSourceDirectory(order[i - 1])) {
+        String prefix = prefixOf(uploads.getDirectory(
+            uploads.getDestDirectory(order[i])));
+        Integer known = prefixes.get(prefix);
+        if (known == null) {
+          known = prefixes.size();
+          prefixes.put(prefix, known);
+        }
+        runStart[runs] = i;
+        runKeys[runs] = known;
+        runs++;
+      }
+    }
+    runStart[runs] = n;
+    int[] runOrder = new int[runs];
+    for (int r = 0; r < runs; r++) {
+      runOrder[r] = r;
+    }
+    runOrder = roundRobin(runOrder, Arrays.copyOf(runKeys, runs),
+        prefixes.size());
+    int[] result = new int[n];
+    int next = 0;
+    for (int r : runOrder) {
+      for (int i = runStart[r]; i < runStart[r + 1]; i++) {
+        result[next++] = order[i];
+      }
+    }
+    return result;
+  }
+
+  /**
+   * Order entries round robin across keys.
+   * Within a key, the existing order is kept; in each round the
+   * keys are taken in the order in which they first appear.
+   * @param order entries in their order of preference
+   * @param keys key of each entry, from 0 to {@code keyCount - 1}
+   * @param keyCount number of distinct keys
+   * @return the entries, interleaved
+   */
+  static int[] roundRobin(int[] order, int[] keys, int keyCount) {
+    int n = order.length;
+    int[] counts = new int[keyCount];
+    // the round in which each entry is to be submitted
+    int[] rounds = new int[n];
+    int maxRound = 0;
+    for (int i = 0; i < n; i++) {
+      rounds[i] = counts[keys[i]]++;
+      maxRound = Math.max(maxRound, rounds[i]);
+    }
+    // stable counting sort by round
+    int[] start = new int[maxRound + 2];
+    for (int i = 0; i < n; i++) {
+      start[rounds[i] + 1]++;
+    }
+    for (int r = 1; r < start.length; r++) {
+      start[r] += start[r - 1];
+    }
+    int[] result = new int[n];
+    for (int i = 0; i < n; i++) {
+      result[start[rounds[i]]++] = order[i];
+    }
+    return result;
+  }
+
+  /**
+   * Admit an upload under a prefix, or hold it back if the prefix is at
+   * its limit; it will be returned by {@link #release(String)} once there
+   * is room for it.
+   * @param prefix prefix of the upload
+   * @param operation the upload operation
+   * @return true if the operation may be executed now
+   */
+  synchronized boolean admit(String prefix, Runnable operation) {
+    Slot slot = slots.get(prefix);
+    if (slot == null) {
+      slot = new Slot();
+      slots.put(prefix, slot);
+    }
+    if (limit > 0 && slot.active >= limit) {
+      slot.waiting.add(operation);
+      deferred++;
+      return false;
+    }
+    slot.active++;
+    if (slot.active > peakActive) {
+      peakActive = slot.active;
+      peakPrefix = prefix;
+    }
+    return true;
+  }
+
+  /**
+   * Note the completion of an upload under a prefix.
+   * @param prefix prefix of the upload
+   * @return an upload held back under the same prefix, which is now
+   * admitted and must be executed; null if there is none.
+   */
+  synchronized Runnable release(String prefix) {
+    Slot slot = slots.get(prefix);
+    Runnable next = slot.waiting.poll();
+    if (next == null) {
+      slot.active--;
+      if (slot.active == 0) {
+        slots.remove(prefix);
+      }
+    }
+    return next;
+  }
+
+  @Override
+  public synchronized String toString() {
+    return String.format("PrefixLimiter{depth=%d; limit=%s;"
+            + " peak uploads under one prefix=%d (%s); uploads deferred=%,d}",
+        depth, limit > 0 ? Integer.toString(limit) : "none",
+        peakActive, peakPrefix, deferred);
+  }
+
+  /**
+   * Uploads in flight and waiting under one prefix.
+   */
+  private static final class Slot {
+
+    private int active;
+
+    private final Queue<Runnable> waiting = new ArrayDeque<>();
+  }
+}
@@ -0,0 +1,315 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.apache.hadoop.tools.cloudup;
+
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Tracks the progress of an upload, and logs it at a fixed interval.
+ * <p>
+ * Workers update {@link StripedCounter}s, so recording progress adds
+ * no lock or contended atomic to the upload path. The reporter thread
+ * sums the counters each interval and keeps the samples of the last
+ * minute, from which it derives rolling rates over 10 seconds and a
+ * minute, and an estimate of the time remaining. The estimate is only
+ * made once the listing is complete, as until then the total to upload
+ * is not known.
+ */
+final class Progress implements Runnable {
+
+  private static final Logger LOG = LoggerFactory.getLogger(Progress.class);
+
+  private static final long SHORT_WINDOW_MILLIS = 10 * 1000;
+
+  private static final long LONG_WINDOW_MILLIS = 60 * 1000;
+
+  private final StripedCounter submittedFiles = new StripedCounter();
+
+  private final StripedCounter submittedBytes = new StripedCounter();
+
+  private final StripedCounter finishedFiles = new StripedCounter();
+
+  private final StripedCounter finishedBytes = new StripedCounter();
+
+  private final StripedCounter failedFiles = new StripedCounter();
+
+  /** Bytes sent, counted as each file or part is uploaded. */
+  private final StripedCounter transferredBytes = new StripedCounter();
+
+  /** Requests throttled by the destination. */
+  private final StripedCounter throttledRequests = new StripedCounter();
+
+  /** Files and bytes expected; only written by the submitter. */
+  private volatile long expectedFiles;
+
+  private volatile long expectedBytes;
+
+  private volatile boolean listed;
+
+  /** Samples of the last minute, oldest first; guarded by this. */
+  private final Deque<Sample> samples = new ArrayDeque<>();
+
+  private ScheduledExecutorService reporter;
+
+  /**
+   * Note files to be uploaded.
+   * @param files number of files
+   * @param bytes total size
+   */
+  void expect(long files, long bytes) {
+    expectedFiles += files;
+    expectedBytes += bytes;
+  }
+
+  /**
+   * Note that the listing is complete, so every file to be uploaded
+   * has been passed to {@link #expect(long, long)}.
+   */
+  void listed() {
+    listed = true;
+  }
+
+  /**
+   * Note the submission of a file.
+   * @param bytes size of the file
+   */
+  void submitted(long bytes) {
+    submittedFiles.increment();
+    submittedBytes.add(bytes);
+  }
+
+  /**
+   * Note data sent to the destination.
+   * @param bytes bytes sent
+   */
+  void transferred(long bytes) {
+    transferredBytes.add(bytes);
+  }
+
+  /**
+   * Note the completion of a file.
+   * @param bytes size of the file
+   * @param failed did the upload fail?
+   */
+  void finished(long bytes, boolean failed) {
+    finishedFiles.increment();
+    finishedBytes.add(bytes);
+    if (failed) {
+      failedFiles.increment();
+    }
+  }
+
+  /**
+   * Note a request throttled by the destination.
+   */
+  void throttled() {
+    throttledRequests.increment();
+  }
+
+  long getExpectedFiles() {
+    return expectedFiles;
+  }
+
+  long getExpectedBytes() {
+    return expectedBytes;
+  }
+
+  long getSubmittedFiles() {
+    return submittedFiles.sum();
+  }
+
+  long getSubmittedBytes() {
+    return submittedBytes.sum();
+  }
+
+  long getFinishedFiles() {
+    return finishedFiles.sum();
+  }
+
+  long getFinishedBytes() {
+    return finishedBytes.sum();
+  }
+
+  long getFailedFiles() {
+    return failedFiles.sum();
+  }
+
+  long getTransferredBytes() {
+    return transferredBytes.sum();
+  }
+
+  long getThrottledRequests() {
+    return throttledRequests.sum();
+  }
+
+  /**
+   * Start logging progress at a fixed interval.
+   * @param intervalMillis interval between reports
+   */
+  void start(long intervalMillis) {
+    reporter = Executors.newSingleThreadScheduledExecutor(
+        new ThreadFactory() {
+          @Override
+          public Thread newThread(Runnable r) {
+            Thread t = new Thread(r, "progress");
+            t.setDaemon(true);
+            return t;
+          }
+        });
+    sample(System.currentTimeMillis());
+    reporter.scheduleAtFixedRate(this, intervalMillis, intervalMillis,
+        TimeUnit.MILLISECONDS);
+  }
+
+  /**
+   * Stop logging progress.
+   */
+  void stop() {
+    if (reporter != null) {
+      reporter.shutdownNow();
+    }
+  }
+
+  @Override
+  public void run() {
+    LOG.info("Progress: {}", report(System.currentTimeMillis()));
+  }
+
+  /**
+   * Take a sample of the counters, and drop those no longer needed.
+   * @param now current time
+   * @return the sample
+   */
+  private synchronized Sample sample(long now) {
+    Sample sample = new Sample(now, transferredBytes.sum(),
+        finishedFiles.sum());
+    samples.addLast(sample);
+    // keep the newest sample at least a minute old, for the 1m rate
+    while (samples.size() > 2) {
+      Sample oldest = samples.removeFirst();
+      if (samples.peekFirst().time > now - LONG_WINDOW_MILLIS) {
+        samples.addFirst(oldest);
+        break;
+      }
+    }
+    return sample;
+  }
+
+  /**
+   * Find the newest sample at least a window older than a sample,
+   * or failing that the oldest.
+   * @param latest latest sample
+   * @param window length of the window
+   * @return a sample; may be the latest if it is the only one
+   */
+  private synchronized Sample since(Sample latest, long window) {
+    Sample found = samples.peekFirst();
+    for (Sample s : samples) {
+      if (s.time <= latest.time - window) {
+        found = s;
+      }
+    }
+    return found;
+  }
+
+  /**
+   * Take a sample and describe the progress.
+   * @param now current time
+   * @return a string for logging
+   */
+  String report(long now) {
+    Sample latest = sample(now);
+    Sample shortAgo = since(latest, SHORT_WINDOW_MILLIS);
+    Sample longAgo = since(latest, LONG_WINDOW_MILLIS);
+    long files = finishedFiles.sum();
+    long bytes = finishedBytes.sum();
+    long inflightFiles = submittedFiles.sum() - files;
+    long inflightBytes = submittedBytes.sum() - bytes;
+    double shortRate = latest.bytesPerSecond(shortAgo);
+    double longRate = latest.bytesPerSecond(longAgo);
+    StringBuilder sb = new StringBuilder();
+    sb.append(String.format("%,d", files));
+    if (expectedFiles > 0) {
+      sb.append(String.format("/%,d", expectedFiles));
+    }
+    sb.append(" files");
+    long failed = failedFiles.sum();
+    if (failed > 0) {
+      sb.append(String.format(" (%,d failed)", failed));
+    }
+    sb.append(String.format(", %s", megabytes(bytes)));
+    if (expectedBytes > 0) {
+      sb.append(String.format("/%s (%.1f%%)", megabytes(expectedBytes),
+          100.0 * bytes / expectedBytes));
+    }
+    sb.append(String.format("; in flight %,d files, %s",
+        inflightFiles, megabytes(inflightBytes)));
+    sb.append(String.format("; %.2f MB/s (10s), %.2f MB/s (1m), %.1f files/s",
+        shortRate / 1.0e6, longRate / 1.0e6,
+        latest.filesPerSecond(longAgo)));
+    if (!listed) {
+      sb.append("; ETA unknown until listed");
+    } else if (longRate > 0) {
+      long remaining = Math.max(0, expectedBytes - bytes);
+      sb.append("; ETA ").append(
+          Duration.humanTime((long) (remaining * 1000 / longRate)));
+    }
+    return sb.toString();
+  }
+
+  private static String megabytes(long bytes) {
+    return String.format("%,.1f MB", bytes / 1.0e6);
+  }
+
+  /**
+   * Counters at a point in time.
+   */
+  private static final class Sample {
+
+    private final long time;
+
+    private final long bytes;
+
+    private final long files;
+
+    private Sample(long time, long bytes, long files) {
+      this.time = time;
+      this.bytes = bytes;
+      this.files = files;
+    }
+
+    private double bytesPerSecond(Sample earlier) {
+      long millis = time - earlier.time;
+      return millis > 0 ? (bytes - earlier.bytes) * 1000.0 / millis : 0;
+    }
+
+    private double filesPerSecond(Sample earlier) {
+      long millis = time - earlier.time;
+      return millis > 0 ? (files - earlier.files) * 1000.0 / millis : 0;
+    }
+  }
+}
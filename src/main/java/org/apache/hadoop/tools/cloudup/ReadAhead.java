@@ -0,0 +1,363 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.apache.hadoop.tools.cloudup;
+
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import com.google.common.base.Preconditions;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import org.apache.hadoop.fs.FSDataInputStream;
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.Path;
+
+/**
+ * Reads files into memory ahead of their upload, so that reading the
+ * source overlaps with sending data to the destination, rather than
+ * each worker waiting on the disk then on the network in turn.
+ * <p>
+ * Files are queued for reading as they are submitted; a small pool of
+ * reader threads reads them, in order, into buffers whose total size
+ * is bounded. When a worker comes to upload a file it takes its
+ * buffer, waiting if the read is in progress. If the read has not
+ * started, as the readers are behind or out of memory, the worker
+ * takes the file back and reads it itself. A worker therefore never
+ * waits for memory to be freed, which, as buffers are only freed by
+ * workers, could deadlock.
+ * <p>
+ * The time readers wait for memory is time the upload stage is the
+ * bottleneck; the time workers wait for a read in progress is time
+ * the source is. Both are reported.
+ */
+final class ReadAhead {
+
+  private static final Logger LOG = LoggerFactory.getLogger(ReadAhead.class);
+
+  /** Number of reader threads. */
+  static final int DEFAULT_READERS = 4;
+
+  /** Maximum share of the memory one file may take. */
+  private static final int MAX_FILE_SHARE = 4;
+
+  private final FileSystem sourceFS;
+
+  /** Maximum bytes held in buffers. */
+  private final long capacity;
+
+  private final ExecutorService readers;
+
+  /** Files queued or read, by source. */
+  private final Map<Path, Slot> slots = new HashMap<>();
+
+  /** Bytes held in buffers, or reserved for reads in progress. */
+  private long used;
+
+  private long peak;
+
+  private long queued;
+
+  private long read;
+
+  private long bytesRead;
+
+  private long taken;
+
+  private long takenBack;
+
+  private long failed;
+
+  private long readerWaits;
+
+  private long readerWaitNanos;
+
+  private long workerWaits;
+
+  private long workerWaitNanos;
+
+  /**
+   * Create the read-ahead stage.
+   * @param sourceFS source filesystem
+   * @param capacity maximum bytes to hold in buffers
+   * @param threads number of reader threads
+   */
+  ReadAhead(FileSystem sourceFS, long capacity, int threads) {
+    Preconditions.checkArgument(capacity > 0, "Invalid capacity: %s",
+        capacity);
+    this.sourceFS = sourceFS;
+    this.capacity = capacity;
+    final AtomicInteger count = new AtomicInteger();
+    this.readers = Executors.newFixedThreadPool(Math.max(1, threads),
+        new ThreadFactory() {
+          @Override
+          public Thread newThread(Runnable r) {
+            Thread t = new Thread(r, "read-ahead-" + count.getAndIncrement());
+            t.setDaemon(true);
+            return t;
+          }
+        });
+  }
+
+  /**
+   * Maximum size of a file which will be read ahead.
+   * @return a size in bytes
+   */
+  long getMaxFileSize() {
+    return Math.min(capacity / MAX_FILE_SHARE, Integer.MAX_VALUE);
+  }
+
+  /**
+   * Bytes held in buffers, or reserved for reads in progress.
+   * @return a size in bytes
+   */
+  synchronized long getUsed() {
+    return used;
+  }
+
+  /**
+   * Queue a file to be read. Files larger than
+   * {@link #getMaxFileSize()} are ignored.
+   * @param source source file
+   * @param size size of the file
+   */
+  void prefetch(final Path source, long size) {
+    if (size > getMaxFileSize()) {
+      return;
+    }
+    final Slot slot = new Slot((int) size);
+    synchronized (this) {
+      if (slots.containsKey(source)) {
+        return;
+      }
+      slots.put(source, slot);
+      queued++;
+    }
+    readers.execute(new Runnable() {
+      @Override
+      public void run() {
+        read(source, slot);
+      }
+    });
+  }
+
+  /**
+   * Read a file into its slot, once there is the memory for it,
+   * unless a worker has taken it back first.
+   * @param source source file
+   * @param slot slot of the file
+   */
+  private void read(Path source, Slot slot) {
+    synchronized (this) {
+      if (!reserve(slot)) {
+        return;
+      }
+    }
+    byte[] data = new byte[slot.size];
+    try (FSDataInputStream in = sourceFS.open(source)) {
+      in.readFully(0, data);
+    } catch (IOException e) {
+      // the worker will read the file itself, and report the failure
+      LOG.debug("Failed to read ahead {}: {}", source, e.toString());
+      data = null;
+    }
+    synchronized (this) {
+      if (data != null) {
+        read++;
+        bytesRead += data.length;
+      } else {
+        failed++;
+        used -= slot.size;
+      }
+      if (slot.state == SlotState.discarded) {
+        if (data != null) {
+          used -= data.length;
+        }
+      } else {
+        slot.data = data;
+        slot.state = SlotState.read;
+      }
+      notifyAll();
+    }
+  }
+
+  /**
+   * Wait for the memory for a read, then reserve it.
+   * @param slot slot to read into
+   * @return false if the slot was taken back, or interrupted, first
+   */
+  private boolean reserve(Slot slot) {
+    if (slot.state == SlotState.queued && !fits(slot.size)) {
+      readerWaits++;
+      long started = System.nanoTime();
+      try {
+        while (slot.state == SlotState.queued && !fits(slot.size)) {
+          wait();
+        }
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+        return false;
+      } finally {
+        readerWaitNanos += System.nanoTime() - started;
+      }
+    }
+    if (slot.state != SlotState.queued) {
+      return false;
+    }
+    slot.state = SlotState.reading;
+    used += slot.size;
+    peak = Math.max(peak, used);
+    return true;
+  }
+
+  private boolean fits(int size) {
+    return used + size <= capacity;
+  }
+
+  /**
+   * Take the contents of a file read ahead, waiting for any read in
+   * progress. The caller must {@link #release(byte[])} the data once
+   * it has been uploaded.
+   * @param source source file
+   * @return the contents, or null if the file was not read ahead; the
+   * caller must then read it itself.
+   * @throws InterruptedException interrupted while waiting
+   */
+  synchronized byte[] take(Path source) throws InterruptedException {
+    Slot slot = slots.remove(source);
+    if (slot == null) {
+      return null;
+    }
+    switch (slot.state) {
+    case queued:
+      // the reader may be waiting for memory on this slot
+      slot.state = SlotState.taken;
+      takenBack++;
+      notifyAll();
+      return null;
+    case reading:
+      workerWaits++;
+      long started = System.nanoTime();
+      try {
+        while (slot.state == SlotState.reading) {
+          wait();
+        }
+      } catch (InterruptedException e) {
+        // the reader releases the memory when it finishes
+        slot.state = SlotState.discarded;
+        throw e;
+      } finally {
+        workerWaitNanos += System.nanoTime() - started;
+      }
+      break;
+    default:
+      break;
+    }
+    slot.state = SlotState.taken;
+    if (slot.data != null) {
+      taken++;
+    }
+    return slot.data;
+  }
+
+  /**
+   * Release the memory of data returned by {@link #take(Path)}.
+   * @param data data
+   */
+  synchronized void release(byte[] data) {
+    used -= data.length;
+    notifyAll();
+  }
+
+  /**
+   * Discard a file which will not be taken, such as one uploaded in
+   * parts, or abandoned; its memory is released once any read in
+   * progress completes. Does nothing if the file is not queued.
+   * @param source source file
+   */
+  synchronized void discard(Path source) {
+    Slot slot = slots.remove(source);
+    if (slot == null) {
+      return;
+    }
+    if (slot.state == SlotState.read && slot.data != null) {
+      used -= slot.data.length;
+      slot.data = null;
+    }
+    slot.state = SlotState.discarded;
+    notifyAll();
+  }
+
+  /**
+   * Stop the readers, discarding any files read but not taken.
+   */
+  void close() {
+    readers.shutdownNow();
+    try {
+      readers.awaitTermination(1, TimeUnit.MINUTES);
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    }
+    synchronized (this) {
+      slots.clear();
+    }
+  }
+
+  @Override
+  public synchronized String toString() {
+    return String.format("ReadAhead{capacity=%,d, peak=%,d;"
+            + " queued %,d, read %,d (%,d bytes), taken %,d,"
+            + " read by workers %,d, failed %,d;"
+            + " readers waited for memory %,d times for %.3fs;"
+            + " workers waited for reads %,d times for %.3fs}",
+        capacity, peak, queued, read, bytesRead, taken, takenBack, failed,
+        readerWaits, readerWaitNanos / 1.0e9,
+        workerWaits, workerWaitNanos / 1.0e9);
+  }
+
+  /**
+   * States of a slot.
+   */
+  private enum SlotState {
+    queued, reading, read, taken, discarded
+  }
+
+  /**
+   * A file to be read ahead.
+   */
+  private static final class Slot {
+
+    private final int size;
+
+    private SlotState state = SlotState.queued;
+
+    /** Contents once read; null if the read failed. */
+    private byte[] data;
+
+    private Slot(int size) {
+      this.size = size;
+    }
+  }
+}
@@ -0,0 +1,116 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.apache.hadoop.tools.cloudup;
+
+import java.lang.management.GarbageCollectorMXBean;
+import java.lang.management.ManagementFactory;
+import java.lang.management.OperatingSystemMXBean;
+import java.lang.management.ThreadMXBean;
+import java.lang.reflect.Method;
+
+/**
+ * Snapshot of the CPU and garbage collection time of this process,
+ * so that the cost of an operation can be measured as the difference
+ * between two snapshots.
+ * <p>
+ * The CPU time of the process is only available from the JVM-specific
+ * {@code com.sun.management.OperatingSystemMXBean}, which is looked up
+ * by reflection; if it is absent, the CPU time of the live threads is
+ * used instead.
+ */
+final class ResourceUsage {
+
+  /** CPU time in nanos; -1 if unknown. */
+  private final long cpuNanos;
+
+  private final long gcCount;
+
+  private final long gcMillis;
+
+  private final long wallNanos;
+
+  private ResourceUsage(long cpuNanos, long gcCount, long gcMillis,
+      long wallNanos) {
+    this.cpuNanos = cpuNanos;
+    this.gcCount = gcCount;
+    this.gcMillis = gcMillis;
+    this.wallNanos = wallNanos;
+  }
+
+  /**
+   * Take a snapshot.
+   * @return the usage so far
+   */
+  static ResourceUsage snapshot() {
+    long count = 0;
+    long millis = 0;
+    for (GarbageCollectorMXBean gc
+        : ManagementFactory.getGarbageCollectorMXBeans()) {
+      count += Math.max(0, gc.getCollectionCount());
+      millis += Math.max(0, gc.getCollectionTime());
+    }
+    return new ResourceUsage(cpuTime(), count, millis, System.nanoTime());
+  }
+
+  /**
+   * Get the CPU time of the process.
+   * @return the time in nanos, or -1 if it cannot be determined.
+   */
+  private static long cpuTime() {
+    OperatingSystemMXBean os = ManagementFactory.getOperatingSystemMXBean();
+    try {
+      Class<?> extended = Class.forName(
+          "com.sun.management.OperatingSystemMXBean");
+      if (extended.isInstance(os)) {
+        Method method = extended.getMethod("getProcessCpuTime");
+        return (Long) method.invoke(os);
+      }
+    } catch (Exception | LinkageError e) {
+      // fall back to the sum of the live threads
+    }
+    ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+    if (!threads.isThreadCpuTimeSupported()) {
+      return -1;
+    }
+    long total = 0;
+    for (long id : threads.getAllThreadIds()) {
+      total += Math.max(0, threads.getThreadCpuTime(id));
+    }
+    return total;
+  }
+
+  /**
+   * Describe the usage since an earlier snapshot.
+   * @param start the earlier snapshot
+   * @return a string for logging
+   */
+  String describeSince(ResourceUsage start) {
+    double wall = Math.max(1, wallNanos - start.wallNanos) / 1.0e9;
+    String cpu;
+    if (cpuNanos >= 0 && start.cpuNanos >= 0) {
+      double seconds = (cpuNanos - start.cpuNanos) / 1.0e9;
+      cpu = String.format("CPU %.3fs (%.2f cores)", seconds, seconds / wall);
+    } else {
+      cpu = "CPU unknown";
+    }
+    return String.format("%s; GC %d collections, %.3fs; elapsed %.3fs",
+        cpu, gcCount - start.gcCount, (gcMillis - start.gcMillis) / 1000.0,
+        wall);
+  }
+}
@@ -0,0 +1,286 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package org.apache.hadoop.tools.cloudup;
+
+import java.io.Closeable;
+import java.io.EOFException;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.nio.file.AccessDeniedException;
+import java.util.Random;
+import java.util.concurrent.DelayQueue;
+import java.util.concurrent.Delayed;
+import java.util.concurrent.Executor;
+import java.util.concurrent.TimeUnit;
+
+import com.google.common.base.Preconditions;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import org.apache.hadoop.fs.FileAlreadyExistsException;
+import org.apache.hadoop.security.AccessControlException;
+
+/**
+ * Schedules the retry of failed operations after a backoff, without
+ * blocking the workers: an operation to retry is put in a delay queue,
+ * and a single background thread passes it back to the executor once
+ * its delay has expired.
+ * <p>
+ * The delay of a retry is chosen at random between zero and an
+ * exponentially increasing ceiling ("full jitter"), so that operations
+ * which failed together do not retry together.
+ * <p>
+ * All retries draw on a global budget of tokens: a retry takes a whole
+ * token and every success returns a tenth of one. A store which fails
+ * most requests, typically because it is throttling them, soon uses up
+ * the budget, after which failures are final instead of adding to its
+ * load. Thread safe.
+ */
+final class RetryScheduler implements Closeable {
+
+  private static final Logger LOG =
+      LoggerFactory.getLogger(RetryScheduler.class);
+
+  /** Tenths of a token returned to the budget by each success. */
+  private static final int REFUND = 1;
+
+  /** Tenths of a token taken by each retry. */
+  private static final int COST = 10;
+
+  private final Executor executor;
+
+  private final int maxRetries;
+
+  private final long baseDelayMillis;
+
+  private final long maxDelayMillis;
+
+  private final Random random;
+
+  private final DelayQueue<Retry> queue = new DelayQueue<>();
+
+  private final Thread dispatcher;
+
+  /** Capacity of the budget, in tenths of a token. */
+  private final int capacity;
+
+  /** Tokens left, in tenths; guarded by this. */
+  private int tokens;
+
+  private long retries;
+
+  private long refused;
+
+  private long exhausted;
+
+  private long backoffMillis;
+
+  private volatile boolean closed;
+
+  /**
+   * Create a scheduler and start its dispatcher thread.
+   * @param executor executor to run the retries
+   * @param maxRetries maximum retries of one operation
+   * @param budget retry budget, in tokens
+   * @param baseDelayMillis ceiling of the delay of the first retry
+   * @param maxDelayMillis maximum delay of any retry
+   * @param random source of jitter
+   */
+  RetryScheduler(Executor executor, int maxRetries, int budget,
+      long baseDelayMillis, long maxDelayMillis, Random random) {
+    Preconditions.checkArgument(maxRetries >= 0 && budget >= 0,
+        "Invalid retries %s or retry budget %s", maxRetries, budget);
+    Preconditions.checkArgument(
+        baseDelayMillis > 0 && maxDelayMillis >= baseDelayMillis,
+        "Invalid retry delays %s-%s", baseDelayMillis, maxDelayMillis);
+    this.executor = executor;
+    this.maxRetries = maxRetries;
+    this.capacity = budget * COST;
+    this.tokens = capacity;
+    this.baseDelayMillis = baseDelayMillis;
+    this.maxDelayMillis = maxDelayMillis;
+    this.random = random;
+    dispatcher = new Thread(new Runnable() {
+      @Override
+      public void run() {
+        dispatch();
+      }
+    }, "retry-scheduler");
+    dispatcher.setDaemon(true);
+    dispatcher.start();
+  }
+
+  /**
+   * Can a failure be fixed by trying again? Failures due to the state of
+   * the source or destination, rather than of the store, cannot.
+   * @param e failure
+   * @return true if the operation may be retried
+   */
+  static boolean isRetryable(IOException e) {
+    return !(e instanceof FileNotFoundException
+        || e instanceof FileAlreadyExistsException
+        || e instanceof EOFException
+        || e instanceof AccessDeniedException
+        || e instanceof AccessControlException
+        || e instanceof InterruptedIOException);
+  }
+
+  /**
+   * Schedule the retry of a failed operation, if it may be retried
+   * and there is budget left.
+   * @param operation operation to run again
+   * @param attempt number of times the operation has been retried
+   * already
+   * @param e failure
+   * @return the delay before the retry, in millis; -1 if the operation
+   * is not to be retried
+   */
+  long retry(Runnable operation, int attempt, IOException e) {
+    if (closed) {
+      return -1;
+    }
+    long delay;
+    synchronized (this) {
+      if (attempt >= maxRetries || !isRetryable(e)) {
+        refused++;
+        return -1;
+      }
+      if (tokens < COST) {
+        refused++;
+        exhausted++;
+        return -1;
+      }
+      tokens -= COST;
+      delay = delay(attempt);
+      retries++;
+      backoffMillis += delay;
+    }
+    queue.add(new Retry(operation, delay));
+    return delay;
+  }
+
+  /**
+   * Choose the delay before a retry.
+   * @param attempt number of retries made already
+   * @return a delay between 0 and the ceiling for the attempt
+   */
+  synchronized long delay(int attempt) {
+    long ceiling = baseDelayMillis << Math.min(attempt, 30);
+    if (ceiling <= 0 || ceiling > maxDelayMillis) {
+      ceiling = maxDelayMillis;
+    }
+    return (long) (random.nextDouble() * ceiling);
+  }
+
+  /**
+   * Note a successful operation, which returns a little to the budget.
+   */
+  synchronized void succeeded() {
+    tokens = Math.min(capacity, tokens + REFUND);
+  }
+
+  /**
+   * Run all pending retries now, without waiting for their delays;
+   * used when abandoning an upload, so that the operations can
+   * complete.
+   */
+  void expedite() {
+    for (Retry retry : queue.toArray(new Retry[0])) {
+      // whoever removes it runs it, so it is never run twice
+      if (queue.remove(retry)) {
+        executor.execute(retry.operation);
+      }
+    }
+  }
+
+  /**
+   * Dispatcher thread: pass retries to the executor once their delay
+   * has expired.
+   */
+  private void dispatch() {
+    try {
+      while (!closed) {
+        Retry retry = queue.poll(100, TimeUnit.MILLISECONDS);
+        if (retry != null) {
+          executor.execute(retry.operation);
+        }
+      }
+    } catch (InterruptedException e) {
+      LOG.debug("Retry dispatcher interrupted");
+    } catch (RuntimeException e) {
+      LOG.error("Retry dispatcher failed", e);
+    }
+  }
+
+  synchronized long getRetries() {
+    return retries;
+  }
+
+  synchronized long getBackoffMillis() {
+    return backoffMillis;
+  }
+
+  /**
+   * Stop the dispatcher; any retries still pending are dropped.
+   */
+  @Override
+  public void close() {
+    closed = true;
+    dispatcher.interrupt();
+    queue.clear();
+  }
+
+  @Override
+  public synchronized String toString() {
+    return String.format("%,d retries, total backoff %s;"
+            + " %,d failures not retried, %,d of them for lack of budget;"
+            + " budget left %.1f of %d",
+        retries, Duration.humanTime(backoffMillis),
+        refused, exhausted, tokens / (double) COST, capacity / COST);
+  }
+
+  /**
+   * An operation waiting to be retried.
+   */
+  private static final class Retry implements Delayed {
+
+    private final Runnable operation;
+
+    private final long due;
+
+    private Retry(Runnable operation, long delayMillis) {
+      this.operation = operation;
+      this.due = System.nanoTime()
+          + TimeUnit.MILLISECONDS.toNanos(delayMillis);
+    }
+
+    @Override
+    public long getDelay(TimeUnit unit) {
+      return unit.convert(due - System.nanoTime(), TimeUnit.NANOSECONDS);
+    }
+
+    @Override
+    public int compareTo(Delayed o) {
+      return Long.compare(getDelay(TimeUnit.NANOSECONDS),
+          o.getDelay(TimeUnit.NANOSECONDS));
+    }
+  }
+}
@@ -0,0 +1,68 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.apache.hadoop.tools.cloudup;
+
+import java.util.Arrays;
+import java.util.Locale;
+
+/**
+ * Policies for the order in which uploads are submitted.
+ */
+enum SchedulingPolicy {
+
+  /**
+   * The largest few files first, then the rest in a random order.
+   */
+  largest,
+
+  /**
+   * Minimize the makespan: longest estimated upload first, so that
+   * the small files fill in the gaps at the end.
+   */
+  makespan,
+
+  /**
+   * Interleave uploads across the prefixes of the destination,
+   * largest first within each prefix.
+   */
+  prefix,
+
+  /**
+   * Read the source in order of locality: grouped by source directory,
+   * in runs which are interleaved across the destination prefixes.
+   * For sources on spinning disks, where a random order seeks.
+   */
+  locality;
+
+  /**
+   * Parse a policy name, case insensitively.
+   * @param name name of the policy
+   * @return the policy
+   * @throws IllegalArgumentException if there is no such policy
+   */
+  static SchedulingPolicy parse(String name) {
+    try {
+      return valueOf(name.trim().toLowerCase(Locale.ENGLISH));
+    } catch (IllegalArgumentException e) {
+      throw new IllegalArgumentException(String.format(
+          "Unknown scheduling policy \"%s\"; valid policies are %s",
+          name, Arrays.toString(values())), e);
+    }
+  }
+}
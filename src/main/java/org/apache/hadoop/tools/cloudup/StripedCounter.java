@@ -0,0 +1,101 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.apache.hadoop.tools.cloudup;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * A counter which many threads can update without contending,
+ * in the manner of the Java 8 {@code LongAdder}, which is not
+ * available on Java 7.
+ * <p>
+ * The count is split across cells, and each thread adds to the cell
+ * selected by its thread ID, so that worker threads, which have
+ * consecutive IDs, mostly update different cells. The cells are spaced
+ * a cache line apart so that updates of different cells do not
+ * invalidate each other's cache lines. Reading the count sums the
+ * cells; it is not an atomic snapshot of concurrent updates, which is
+ * fine for reporting.
+ */
+final class StripedCounter {
+
+  /** Longs between cells: 128 bytes, a cache line or two. */
+  private static final int SPACING = 16;
+
+  /** Maximum number of cells. */
+  private static final int MAX_CELLS = 64;
+
+  private final AtomicLongArray cells;
+
+  private final int mask;
+
+  /**
+   * Create a counter with a cell for each of up to twice as many
+   * threads as there are processors.
+   */
+  StripedCounter() {
+    this(2 * Runtime.getRuntime().availableProcessors());
+  }
+
+  /**
+   * Create a counter.
+   * @param stripes number of cells; rounded up to a power of two
+   */
+  StripedCounter(int stripes) {
+    int n = 1;
+    while (n < stripes && n < MAX_CELLS) {
+      n <<= 1;
+    }
+    this.mask = n - 1;
+    this.cells = new AtomicLongArray(n * SPACING);
+  }
+
+  /**
+   * Add to the count.
+   * @param x value to add
+   */
+  void add(long x) {
+    int cell = (int) Thread.currentThread().getId() & mask;
+    cells.getAndAdd(cell * SPACING, x);
+  }
+
+  /**
+   * Add one to the count.
+   */
+  void increment() {
+    add(1);
+  }
+
+  /**
+   * Get the count.
+   * @return the sum of the cells
+   */
+  long sum() {
+    long sum = 0;
+    for (int cell = 0; cell <= mask; cell++) {
+      sum += cells.get(cell * SPACING);
+    }
+    return sum;
+  }
+
+  @Override
+  public String toString() {
+    return Long.toString(sum());
+  }
+}
@@ -0,0 +1,218 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.apache.hadoop.tools.cloudup;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import org.apache.hadoop.fs.FileStatus;
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.Path;
+
+/**
+ * Parallel walk of a directory tree.
+ * Each directory is listed in its own fork-join task; subdirectories
+ * are forked so that idle threads can steal them. Files are passed
+ * to a listener as they are found, so that callers can act on them
+ * before the walk completes.
+ */
+final class TreeWalker {
+
+  private static final Logger LOG = LoggerFactory.getLogger(TreeWalker.class);
+
+  private final FileSystem fs;
+
+  private final int parallelism;
+
+  private final AtomicLong directories = new AtomicLong(0);
+
+  private final AtomicLong files = new AtomicLong(0);
+
+  private NanoTimer timer;
+
+  /**
+   * Create a walker.
+   * @param fs filesystem to list
+   * @param parallelism number of threads in the fork-join pool
+   */
+  TreeWalker(FileSystem fs, int parallelism) {
+    this.fs = fs;
+    this.parallelism = Math.max(1, parallelism);
+  }
+
+  /**
+   * Walk the tree under a path, passing the status of every file
+   * found to the listener as soon as its parent directory is listed.
+   * If the path refers to a file, that is the only entry passed on.
+   * The listener will be invoked from multiple threads.
+   * @param root root path
+   * @param listener listener for files
+   * @throws IOException failure to list any directory, or raised
+   * by the listener
+   */
+  void walk(Path root, Listener listener) throws IOException {
+    FileStatus rootStatus = fs.getFileStatus(root);
+    timer = new NanoTimer();
+    if (!rootStatus.isDirectory()) {
+      try {
+        files.incrementAndGet();
+        listener.found(rootStatus);
+      } finally {
+        timer.end();
+      }
+      return;
+    }
+    ForkJoinPool pool = new ForkJoinPool(parallelism);
+    try {
+      pool.invoke(new ListDirectory(root, listener));
+    } catch (RuntimeException e) {
+      throw unwrap(e);
+    } finally {
+      timer.end();
+      pool.shutdown();
+    }
+  }
+
+  /**
+   * Extract any IOException from a failure raised in a walk; fork-join
+   * may have wrapped the original in a new instance on the way out.
+   * @param e exception raised
+   * @return the IOException at the root of the failure
+   * @throws RuntimeException if there is no IOException in the chain
+   */
+  private static IOException unwrap(RuntimeException e) {
+    for (Throwable t = e; t != null; t = t.getCause()) {
+      if (t instanceof IOException) {
+        return (IOException) t;
+      }
+    }
+    throw e;
+  }
+
+  long getDirectories() {
+    return directories.get();
+  }
+
+  long getFiles() {
+    return files.get();
+  }
+
+  /**
+   * Describe the listing throughput; only valid after a walk.
+   * @return a string for logging
+   */
+  String throughput() {
+    return describeThroughput(directories.get(), files.get(),
+        timer.duration());
+  }
+
+  /**
+   * Describe the throughput of a listing, in directories and files/second.
+   * @param dirs directories listed; -1 if unknown
+   * @param fileCount files found
+   * @param durationNS duration in nanos
+   * @return a string for logging
+   */
+  static String describeThroughput(long dirs, long fileCount,
+      long durationNS) {
+    double seconds = Math.max(durationNS, 1) / 1.0e9;
+    String fileRate = String.format("%,d files in %.3fs: %,.1f files/s",
+        fileCount, seconds, fileCount / seconds);
+    if (dirs < 0) {
+      return fileRate;
+    }
+    return String.format("%,d directories, %,.1f directories/s; %s",
+        dirs, dirs / seconds, fileRate);
+  }
+
+  /**
+   * Callback for files found in a walk.
+   */
+  interface Listener {
+
+    /**
+     * A file has been found.
+     * @param status status of the file
+     * @throws IOException failure; this will stop the walk
+     */
+    void found(FileStatus status) throws IOException;
+  }
+
+  /**
+   * List one directory, forking a task for every subdirectory.
+   */
+  private final class ListDirectory extends RecursiveAction {
+
+    private static final long serialVersionUID = 1L;
+
+    private final Path dir;
+
+    private final Listener listener;
+
+    private ListDirectory(Path dir, Listener listener) {
+      this.dir = dir;
+      this.listener = listener;
+    }
+
+    @Override
+    protected void compute() {
+      List<ListDirectory> children = new ArrayList<>();
+      try {
+        FileStatus[] statuses = fs.listStatus(dir);
+        directories.incrementAndGet();
+        LOG.debug("Listed {}: {} entries", dir, statuses.length);
+        for (FileStatus status : statuses) {
+          if (status.isDirectory()) {
+            ListDirectory child = new ListDirectory(status.getPath(),
+                listener);
+            child.fork();
+            children.add(child);
+          } else {
+            files.incrementAndGet();
+            listener.found(status);
+          }
+        }
+      } catch (IOException e) {
+        throw new WalkException(e);
+      }
+      for (ListDirectory child : children) {
+        child.join();
+      }
+    }
+  }
+
+  /**
+   * Carries an IOException out of a fork-join task.
+   */
+  private static final class WalkException extends RuntimeException {
+
+    private static final long serialVersionUID = 1L;
+
+    private WalkException(IOException cause) {
+      super(cause);
+    }
+  }
+}
@@ -50,6 +50,9 @@ final class UploadEntry implements Serializable, Comparable<UploadEntry> {
   /** Size in bytes. */
   private long size;
 
+  /** Modification time of the source; 0 if unknown. */
+  private long modificationTime;
+
   /**
    * Destination path. Need not be qualified for dest FS, but
    * must be absolute.
@@ -71,13 +74,33 @@ final class UploadEntry implements Serializable, Comparable<UploadEntry> {
    */
   private IOException exception;
 
+  /**
+   * Checksums of the uploaded data; null if not calculated.
+   */
+  private String digest;
+
+  /**
+   * Table which this entry was materialized from; null if none.
+   * State and time changes are written back to it.
+   */
+  private transient UploadTable table;
+
+  /** Index in the table. */
+  private int index = -1;
+
   public UploadEntry(Path source) {
     this.source = source;
   }
 
+  public UploadEntry(Path source, long size) {
+    this.source = source;
+    this.size = size;
+  }
+
   public UploadEntry(FileStatus status) {
     source = status.getPath();
     size = status.getLen();
+    modificationTime = status.getModificationTime();
   }
 
   /**
@@ -102,6 +125,9 @@ final class UploadEntry implements Serializable, Comparable<UploadEntry> {
 
   public void setState(State state) {
     this.state = state;
+    if (table != null) {
+      table.setState(index, state);
+    }
   }
 
   public boolean inState(State state) {
@@ -124,12 +150,19 @@ final class UploadEntry implements Serializable, Comparable<UploadEntry> {
     return size;
   }
 
+  public long getModificationTime() {
+    return modificationTime;
+  }
+
   public long getStartTime() {
     return startTime;
   }
 
   public void setStartTime(long startTime) {
     this.startTime = startTime;
+    if (table != null) {
+      table.setStartTime(index, startTime);
+    }
   }
 
   public long getEndTime() {
@@ -138,6 +171,35 @@ final class UploadEntry implements Serializable, Comparable<UploadEntry> {
 
   public void setEndTime(long endTime) {
     this.endTime = endTime;
+    if (table != null) {
+      table.setEndTime(index, endTime);
+    }
+  }
+
+  /**
+   * Bind this entry to the table it was materialized from.
+   * @param uploadTable table
+   * @param tableIndex index in the table
+   */
+  void bind(UploadTable uploadTable, int tableIndex) {
+    this.table = uploadTable;
+    this.index = tableIndex;
+  }
+
+  /**
+   * Index of the entry in its table.
+   * @return the index or -1 if it is not bound to a table.
+   */
+  public int getIndex() {
+    return index;
+  }
+
+  public String getDigest() {
+    return digest;
+  }
+
+  public void setDigest(String digest) {
+    this.digest = digest;
   }
 
   public IOException getException() {
@@ -0,0 +1,265 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.apache.hadoop.tools.cloudup;
+
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import org.apache.hadoop.fs.Path;
+
+/**
+ * An append-only journal of upload state transitions, from which
+ * an interrupted upload can be resumed.
+ * <p>
+ * Each record is one line of tab separated fields:
+ * <pre>
+ *   state size time source
+ * </pre>
+ * Records are queued by the workers and written by a single background
+ * thread, which writes all the records queued since its last pass and
+ * then syncs the file once. Under load this commits many records per
+ * sync, and the workers never wait for the disk.
+ */
+final class UploadJournal implements Closeable {
+
+  private static final Logger LOG =
+      LoggerFactory.getLogger(UploadJournal.class);
+
+  private static final Charset UTF8 = Charset.forName("UTF-8");
+
+  /** Maximum number of records to write between syncs. */
+  private static final int MAX_BATCH = 10000;
+
+  private static final String SUCCEEDED = UploadEntry.State.succeeded.name();
+
+  /** Marker to stop the writer; compared by reference. */
+  private static final String END = new String("");
+
+  private final File file;
+
+  private final FileOutputStream fileOut;
+
+  private final OutputStream out;
+
+  private final BlockingQueue<String> queue = new LinkedBlockingQueue<>();
+
+  private final Thread writer;
+
+  private volatile IOException failure;
+
+  private long records;
+
+  private long syncs;
+
+  private boolean closed;
+
+  /**
+   * Open a journal for appending, and start the writer thread.
+   * A record left partially written by a crash is ended first, so that
+   * the next record is not appended to it.
+   * @param file journal file
+   * @throws IOException failure to open the file
+   */
+  UploadJournal(File file) throws IOException {
+    this.file = file;
+    boolean torn = endsInPartialRecord(file);
+    fileOut = new FileOutputStream(file, true);
+    if (torn) {
+      LOG.warn("Ending a partially written record at the end of {}", file);
+      fileOut.write('\n');
+    }
+    out = new BufferedOutputStream(fileOut, 64 * 1024);
+    writer = new Thread(new Runnable() {
+      @Override
+      public void run() {
+        writeRecords();
+      }
+    }, "journal-writer");
+    writer.setDaemon(true);
+    writer.start();
+  }
+
+  /**
+   * Does a journal end in a partially written record?
+   * @param file journal file
+   * @return true if the file is not empty and does not end in a newline
+   * @throws IOException failure to read the file
+   */
+  private static boolean endsInPartialRecord(File file) throws IOException {
+    if (!file.isFile() || file.length() == 0) {
+      return false;
+    }
+    try (RandomAccessFile in = new RandomAccessFile(file, "r")) {
+      in.seek(in.length() - 1);
+      return in.read() != '\n';
+    }
+  }
+
+  /**
+   * Record the state of an entry. Does not block.
+   * @param entry upload entry
+   * @param state state to record
+   */
+  void record(UploadEntry entry, UploadEntry.State state) {
+    if (failure == null) {
+      queue.add(state.name() + '\t' + entry.getSize()
+          + '\t' + System.currentTimeMillis()
+          + '\t' + entry.getSource() + '\n');
+    }
+  }
+
+  /**
+   * Writer thread: write and sync all queued records, until the end
+   * marker is read.
+   */
+  private void writeRecords() {
+    List<String> batch = new ArrayList<>();
+    boolean done = false;
+    try {
+      while (!done) {
+        batch.add(queue.take());
+        queue.drainTo(batch, MAX_BATCH);
+        for (String record : batch) {
+          if (record == END) {
+            done = true;
+          } else {
+            out.write(record.getBytes(UTF8));
+            records++;
+          }
+        }
+        out.flush();
+        fileOut.getChannel().force(false);
+        syncs++;
+        batch.clear();
+      }
+    } catch (IOException e) {
+      LOG.error("Failed to write to journal {}", file, e);
+      failure = e;
+    } catch (InterruptedException e) {
+      failure = (IOException)
+          new InterruptedIOException("Interrupted").initCause(e);
+    }
+  }
+
+  /**
+   * Stop the writer once it has written all queued records,
+   * then close the file.
+   * @throws IOException any failure to write the journal.
+   */
+  @Override
+  public synchronized void close() throws IOException {
+    if (closed) {
+      return;
+    }
+    closed = true;
+    queue.add(END);
+    try {
+      writer.join();
+    } catch (InterruptedException e) {
+      throw (InterruptedIOException)
+          new InterruptedIOException("Interrupted").initCause(e);
+    } finally {
+      out.close();
+    }
+    LOG.info("Journal {}: {} records written in {} syncs",
+        file, records, syncs);
+    if (failure != null) {
+      throw failure;
+    }
+  }
+
+  /**
+   * Replay a journal.
+   * @param file journal file
+   * @return the replayed state
+   * @throws IOException failure to read the file
+   */
+  static Replay replay(File file) throws IOException {
+    NanoTimer timer = new NanoTimer();
+    Replay replay = new Replay();
+    try (ManifestReader reader = new ManifestReader(file,
+        ManifestReader.DEFAULT_BUFFER_SIZE)) {
+      String line;
+      while ((line = reader.readLine()) != null) {
+        // only the state and the source are needed; find the separators
+        // rather than splitting the whole line
+        int stateEnd = line.indexOf('\t');
+        int sizeEnd = stateEnd < 0 ? -1 : line.indexOf('\t', stateEnd + 1);
+        int timeEnd = sizeEnd < 0 ? -1 : line.indexOf('\t', sizeEnd + 1);
+        if (timeEnd < 0) {
+          // most likely a partially written record
+          LOG.warn("Ignoring invalid record at {}:{}: {}",
+              file, reader.getLineNumber(), line);
+          continue;
+        }
+        replay.records++;
+        if (line.startsWith(SUCCEEDED) && stateEnd == SUCCEEDED.length()) {
+          replay.succeeded.add(line.substring(timeEnd + 1));
+        }
+      }
+    }
+    timer.end();
+    LOG.info("Replayed {} records from {} in {}s: {} completed uploads",
+        replay.records, file,
+        String.format("%.3f", timer.duration() / 1.0e9),
+        replay.succeeded.size());
+    return replay;
+  }
+
+  /**
+   * The state of an upload rebuilt from a journal.
+   */
+  static final class Replay {
+
+    private final FingerprintSet succeeded = new FingerprintSet();
+
+    private long records;
+
+    /**
+     * Was the upload of a file completed?
+     * @param source source path
+     * @return true if the journal records a successful upload
+     */
+    boolean isCompleted(Path source) {
+      return succeeded.contains(source.toString());
+    }
+
+    long getRecords() {
+      return records;
+    }
+
+    int getCompleted() {
+      return succeeded.size();
+    }
+  }
+}
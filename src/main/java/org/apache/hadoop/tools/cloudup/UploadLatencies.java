@@ -0,0 +1,178 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.apache.hadoop.tools.cloudup;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.PrintWriter;
+import java.nio.charset.Charset;
+
+/**
+ * Histograms of the latency of uploads, one for each range of file
+ * sizes, and one of all uploads.
+ * <p>
+ * The per-request overhead of an object store dominates the upload of
+ * small files, bandwidth that of large ones; an average over all files
+ * shows neither, nor the tail latencies which decide how long an
+ * upload takes to finish. Thread safe.
+ */
+final class UploadLatencies {
+
+  private static final Charset UTF8 = Charset.forName("UTF-8");
+
+  /** Upper bounds of the size ranges, exclusive; the last is open. */
+  private static final long[] SIZE_LIMITS = {
+      64L << 10, 1L << 20, 16L << 20, 256L << 20
+  };
+
+  private static final String[] SIZE_NAMES = {
+      "0-64K", "64K-1M", "1M-16M", "16M-256M", "256M+"
+  };
+
+  /** Percentiles reported. */
+  private static final double[] PERCENTILES = {50, 90, 99, 99.9};
+
+  private final LatencyHistogram[] bySize =
+      new LatencyHistogram[SIZE_NAMES.length];
+
+  private final LatencyHistogram all = new LatencyHistogram();
+
+  UploadLatencies() {
+    for (int i = 0; i < bySize.length; i++) {
+      bySize[i] = new LatencyHistogram();
+    }
+  }
+
+  /**
+   * Get the size range of a file.
+   * @param size size of the file
+   * @return the index of its range
+   */
+  static int sizeRangeOf(long size) {
+    int range = 0;
+    while (range < SIZE_LIMITS.length && size >= SIZE_LIMITS[range]) {
+      range++;
+    }
+    return range;
+  }
+
+  /**
+   * Record the latency of an upload.
+   * @param size size of the file
+   * @param nanos time taken, in nanoseconds
+   */
+  void record(long size, long nanos) {
+    long micros = nanos / 1000;
+    bySize[sizeRangeOf(size)].record(micros);
+    all.record(micros);
+  }
+
+  /**
+   * Get the histogram of a size range.
+   * @param size any size in the range
+   * @return the histogram
+   */
+  LatencyHistogram getHistogram(long size) {
+    return bySize[sizeRangeOf(size)];
+  }
+
+  /**
+   * Describe one histogram.
+   * @param name name of the size range
+   * @param h histogram
+   * @return a line for logging
+   */
+  private static String describe(String name, LatencyHistogram h) {
+    StringBuilder sb = new StringBuilder(String.format(
+        "%-9s count=%,d mean=%s", name, h.getCount(), millis(h.getMean())));
+    for (double p : PERCENTILES) {
+      sb.append(String.format(" p%s=%s", percentileName(p),
+          millis(h.getValueAtPercentile(p))));
+    }
+    sb.append(" max=").append(millis(h.getMax()));
+    return sb.toString();
+  }
+
+  private static String percentileName(double p) {
+    // 99.9 -> "999", as is conventional
+    return p == Math.rint(p)
+        ? Long.toString((long) p)
+        : Double.toString(p).replace(".", "");
+  }
+
+  private static String millis(double micros) {
+    return String.format("%.3fms", micros / 1000);
+  }
+
+  /**
+   * Write the percentiles of every size range with any uploads,
+   * and of all uploads, as tab separated values with a header;
+   * latencies are in milliseconds.
+   * @param file file to write
+   * @throws IOException failure
+   */
+  void export(File file) throws IOException {
+    try (PrintWriter out = new PrintWriter(new OutputStreamWriter(
+        new FileOutputStream(file), UTF8))) {
+      StringBuilder header = new StringBuilder("size\tcount\tmean");
+      for (double p : PERCENTILES) {
+        header.append("\tp").append(percentileName(p));
+      }
+      out.println(header.append("\tmax"));
+      for (int i = 0; i < bySize.length; i++) {
+        if (bySize[i].getCount() > 0) {
+          out.println(row(SIZE_NAMES[i], bySize[i]));
+        }
+      }
+      out.println(row("all", all));
+      if (out.checkError()) {
+        throw new IOException("Failed to write " + file);
+      }
+    }
+  }
+
+  private static String row(String name, LatencyHistogram h) {
+    StringBuilder sb = new StringBuilder(name);
+    sb.append('\t').append(h.getCount());
+    sb.append(String.format("\t%.3f", h.getMean() / 1000));
+    for (double p : PERCENTILES) {
+      sb.append(String.format("\t%.3f", h.getValueAtPercentile(p) / 1000.0));
+    }
+    sb.append(String.format("\t%.3f", h.getMax() / 1000.0));
+    return sb.toString();
+  }
+
+  /**
+   * Describe the latencies of each size range with any uploads, one
+   * line each, then of all uploads.
+   * @return a string for logging
+   */
+  @Override
+  public String toString() {
+    StringBuilder sb = new StringBuilder();
+    for (int i = 0; i < bySize.length; i++) {
+      if (bySize[i].getCount() > 0) {
+        sb.append('\n').append(describe(SIZE_NAMES[i], bySize[i]));
+      }
+    }
+    return sb.append('\n').append(describe("all", all)).toString();
+  }
+}
@@ -0,0 +1,312 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.apache.hadoop.tools.cloudup;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.PrintWriter;
+import java.nio.charset.Charset;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import javax.management.ObjectName;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import org.apache.hadoop.metrics2.util.MBeans;
+
+/**
+ * Exposes the live state of an upload: the depth of the work queue,
+ * the uploads active and in flight, and the counts of files, bytes,
+ * failures, retries and throttled requests.
+ * <p>
+ * The state is registered as a JMX MXBean, {@code Hadoop:service=Cloudup,
+ * name=Upload-N}, for as long as the upload runs, and can be written to
+ * a file in the Prometheus text format at a fixed interval, for the
+ * textfile collector of the node exporter. The file is written to a
+ * temporary file and renamed, so a scrape never reads half of it; it
+ * holds the time it was written and whether the upload is running, so
+ * that a run which has stalled or died can be alerted on.
+ * <p>
+ * Nothing is counted here: every value is read from the structures
+ * which already track it, so the metrics add no work to the uploads.
+ */
+final class UploadMetrics implements UploadMetricsMXBean, Runnable {
+
+  private static final Logger LOG =
+      LoggerFactory.getLogger(UploadMetrics.class);
+
+  private static final Charset UTF8 = Charset.forName("UTF-8");
+
+  /** Uploads in this process, for unique MBean names. */
+  private static final AtomicInteger UPLOADS = new AtomicInteger();
+
+  private final Progress progress;
+
+  private final InflightWindow inflight;
+
+  private final ThreadPoolExecutor workers;
+
+  private final RetryScheduler retryScheduler;
+
+  private ObjectName mbeanName;
+
+  private File file;
+
+  private ScheduledExecutorService exporter;
+
+  private volatile boolean running = true;
+
+  /**
+   * Create the metrics of an upload.
+   * @param progress progress counters
+   * @param inflight in-flight window
+   * @param workers worker pool
+   * @param retryScheduler retry scheduler
+   */
+  UploadMetrics(Progress progress, InflightWindow inflight,
+      ThreadPoolExecutor workers, RetryScheduler retryScheduler) {
+    this.progress = progress;
+    this.inflight = inflight;
+    this.workers = workers;
+    this.retryScheduler = retryScheduler;
+  }
+
+  /**
+   * Register the MXBean. {@link MBeans} logs any failure rather than
+   * raising it, and the upload continues without the MXBean.
+   */
+  void register() {
+    mbeanName = MBeans.register("Cloudup",
+        "Upload-" + UPLOADS.incrementAndGet(), this);
+    LOG.debug("Registered {}", mbeanName);
+  }
+
+  ObjectName getMBeanName() {
+    return mbeanName;
+  }
+
+  /**
+   * Start writing the metrics to a file at a fixed interval.
+   * @param metricsFile file to write
+   * @param intervalMillis interval between writes
+   */
+  void start(File metricsFile, long intervalMillis) {
+    this.file = metricsFile;
+    exporter = Executors.newSingleThreadScheduledExecutor(
+        new ThreadFactory() {
+          @Override
+          public Thread newThread(Runnable r) {
+            Thread t = new Thread(r, "metrics");
+            t.setDaemon(true);
+            return t;
+          }
+        });
+    exporter.scheduleAtFixedRate(this, 0, intervalMillis,
+        TimeUnit.MILLISECONDS);
+  }
+
+  /**
+   * Stop writing the metrics and unregister the MXBean. Any metrics
+   * file is written a final time, marked as no longer running.
+   * @throws IOException failure to write the metrics file
+   */
+  void stop() throws IOException {
+    running = false;
+    if (mbeanName != null) {
+      MBeans.unregister(mbeanName);
+      mbeanName = null;
+    }
+    if (exporter != null) {
+      exporter.shutdownNow();
+      try {
+        exporter.awaitTermination(1, TimeUnit.SECONDS);
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+      }
+      export(file);
+    }
+  }
+
+  @Override
+  public void run() {
+    try {
+      export(file);
+    } catch (IOException e) {
+      LOG.warn("Failed to write metrics to {}: {}", file, e.toString());
+    }
+  }
+
+  /**
+   * Write the metrics in the Prometheus text format.
+   * @param dest file to write
+   * @throws IOException failure
+   */
+  void export(File dest) throws IOException {
+    File temp = new File(dest.getAbsoluteFile().getParentFile(),
+        "." + dest.getName() + ".tmp");
+    try (PrintWriter out = new PrintWriter(new OutputStreamWriter(
+        new FileOutputStream(temp), UTF8))) {
+      gauge(out, "cloudup_running",
+          "1 while the upload is running, 0 once it has finished",
+          running ? 1 : 0);
+      gauge(out, "cloudup_last_update_timestamp_seconds",
+          "Time these metrics were written",
+          System.currentTimeMillis() / 1000);
+      gauge(out, "cloudup_queued_uploads",
+          "Uploads queued for a worker", getQueuedUploads());
+      gauge(out, "cloudup_active_uploads",
+          "Workers uploading", getActiveUploads());
+      gauge(out, "cloudup_worker_threads",
+          "Size of the worker pool", getWorkerThreads());
+      gauge(out, "cloudup_inflight_files",
+          "Files submitted and not yet completed", getInflightFiles());
+      gauge(out, "cloudup_inflight_bytes",
+          "Bytes of the files in flight", getInflightBytes());
+      gauge(out, "cloudup_expected_files",
+          "Files listed for upload so far", getExpectedFiles());
+      gauge(out, "cloudup_expected_bytes",
+          "Bytes listed for upload so far", getExpectedBytes());
+      counter(out, "cloudup_submitted_files_total",
+          "Files submitted for upload", getSubmittedFiles());
+      counter(out, "cloudup_submitted_bytes_total",
+          "Bytes submitted for upload", getSubmittedBytes());
+      counter(out, "cloudup_completed_files_total",
+          "Files whose upload succeeded or failed", getCompletedFiles());
+      counter(out, "cloudup_completed_bytes_total",
+          "Bytes of the completed files", getCompletedBytes());
+      counter(out, "cloudup_failed_files_total",
+          "Files whose upload failed", getFailedFiles());
+      counter(out, "cloudup_transferred_bytes_total",
+          "Bytes sent to the destination", getTransferredBytes());
+      counter(out, "cloudup_retries_total",
+          "Retries of failed uploads", getRetries());
+      counter(out, "cloudup_throttled_requests_total",
+          "Failures due to throttling by the destination",
+          getThrottledRequests());
+      if (out.checkError()) {
+        throw new IOException("Failed to write " + temp);
+      }
+    }
+    if (!temp.renameTo(dest)) {
+      // not atomic, but better than no metrics
+      if (!dest.delete() || !temp.renameTo(dest)) {
+        throw new IOException("Failed to rename " + temp + " to " + dest);
+      }
+    }
+  }
+
+  private static void gauge(PrintWriter out, String name, String help,
+      long value) {
+    metric(out, name, "gauge", help, value);
+  }
+
+  private static void counter(PrintWriter out, String name, String help,
+      long value) {
+    metric(out, name, "counter", help, value);
+  }
+
+  private static void metric(PrintWriter out, String name, String type,
+      String help, long value) {
+    out.print("# HELP " + name + " " + help + "\n");
+    out.print("# TYPE " + name + " " + type + "\n");
+    out.print(name + " " + value + "\n");
+  }
+
+  @Override
+  public int getQueuedUploads() {
+    return workers.getQueue().size();
+  }
+
+  @Override
+  public int getActiveUploads() {
+    return workers.getActiveCount();
+  }
+
+  @Override
+  public int getWorkerThreads() {
+    return workers.getCorePoolSize();
+  }
+
+  @Override
+  public int getInflightFiles() {
+    return inflight.getFiles();
+  }
+
+  @Override
+  public long getInflightBytes() {
+    return inflight.getBytes();
+  }
+
+  @Override
+  public long getExpectedFiles() {
+    return progress.getExpectedFiles();
+  }
+
+  @Override
+  public long getExpectedBytes() {
+    return progress.getExpectedBytes();
+  }
+
+  @Override
+  public long getSubmittedFiles() {
+    return progress.getSubmittedFiles();
+  }
+
+  @Override
+  public long getSubmittedBytes() {
+    return progress.getSubmittedBytes();
+  }
+
+  @Override
+  public long getCompletedFiles() {
+    return progress.getFinishedFiles();
+  }
+
+  @Override
+  public long getCompletedBytes() {
+    return progress.getFinishedBytes();
+  }
+
+  @Override
+  public long getFailedFiles() {
+    return progress.getFailedFiles();
+  }
+
+  @Override
+  public long getTransferredBytes() {
+    return progress.getTransferredBytes();
+  }
+
+  @Override
+  public long getRetries() {
+    return retryScheduler.getRetries();
+  }
+
+  @Override
+  public long getThrottledRequests() {
+    return progress.getThrottledRequests();
+  }
+}
@@ -0,0 +1,71 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.apache.hadoop.tools.cloudup;
+
+/**
+ * The live state of an upload, as JMX attributes.
+ * Public only because JMX requires MXBean interfaces to be.
+ */
+public interface UploadMetricsMXBean {
+
+  /** @return uploads queued for a worker */
+  int getQueuedUploads();
+
+  /** @return workers uploading */
+  int getActiveUploads();
+
+  /** @return size of the worker pool */
+  int getWorkerThreads();
+
+  /** @return files submitted and not yet completed */
+  int getInflightFiles();
+
+  /** @return bytes of the files in flight */
+  long getInflightBytes();
+
+  /** @return files listed for upload so far */
+  long getExpectedFiles();
+
+  /** @return bytes listed for upload so far */
+  long getExpectedBytes();
+
+  /** @return files submitted for upload */
+  long getSubmittedFiles();
+
+  /** @return bytes submitted for upload */
+  long getSubmittedBytes();
+
+  /** @return files whose upload succeeded or failed */
+  long getCompletedFiles();
+
+  /** @return bytes of the completed files */
+  long getCompletedBytes();
+
+  /** @return files whose upload failed */
+  long getFailedFiles();
+
+  /** @return bytes sent, counted as each file, part or pack is sent */
+  long getTransferredBytes();
+
+  /** @return retries of failed uploads */
+  long getRetries();
+
+  /** @return failures due to throttling by the destination */
+  long getThrottledRequests();
+}
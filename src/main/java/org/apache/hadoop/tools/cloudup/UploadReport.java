@@ -0,0 +1,536 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.apache.hadoop.tools.cloudup;
+
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+
+import org.apache.avro.Schema;
+import org.apache.avro.file.DataFileWriter;
+import org.apache.avro.generic.GenericData;
+import org.apache.avro.generic.GenericDatumWriter;
+import org.apache.avro.generic.GenericRecord;
+import org.codehaus.jackson.JsonEncoding;
+import org.codehaus.jackson.JsonFactory;
+import org.codehaus.jackson.JsonGenerator;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import org.apache.hadoop.fs.Path;
+
+/**
+ * A machine-readable report of an upload: a record of every file
+ * uploaded or failed, and a summary record of the whole run at the end,
+ * as CSV, JSON lines or Avro.
+ * <p>
+ * Every record has the same fields, so all three formats share one
+ * schema:
+ * <pre>
+ *   type source dest state size files failed start end digest error
+ * </pre>
+ * The type is {@code file} or {@code summary}; times are in
+ * milliseconds since the epoch. A file record is of one file, so
+ * {@code files} is 1 and {@code failed} 0 or 1; the summary adds up the
+ * file records, with the size that of the files uploaded, and the
+ * start and end those of the report.
+ * <p>
+ * As with the {@link UploadJournal}, the workers only queue records;
+ * a single background thread formats and writes them, in batches of
+ * all the records queued since its last pass. Nothing is kept once
+ * written, so a report may have any number of records. The queue is
+ * bounded, so that a writer which falls far behind holds back the
+ * workers rather than filling the heap.
+ */
+final class UploadReport implements Closeable {
+
+  private static final Logger LOG =
+      LoggerFactory.getLogger(UploadReport.class);
+
+  private static final Charset UTF8 = Charset.forName("UTF-8");
+
+  /** Maximum number of records to write between flushes. */
+  private static final int MAX_BATCH = 10000;
+
+  /** Maximum number of records queued for the writer. */
+  private static final int MAX_QUEUED = 100000;
+
+  static final String FILE = "file";
+
+  static final String SUMMARY = "summary";
+
+  /** Names of the fields, in order. */
+  static final String[] FIELDS = {
+      "type", "source", "dest", "state", "size", "files", "failed",
+      "start", "end", "digest", "error"
+  };
+
+  /** Schema of the Avro records. */
+  static final Schema SCHEMA = new Schema.Parser().parse(
+      "{\"type\": \"record\", \"name\": \"UploadRecord\","
+      + " \"namespace\": \"org.apache.hadoop.tools.cloudup\","
+      + " \"fields\": ["
+      + "{\"name\": \"type\", \"type\": \"string\"},"
+      + "{\"name\": \"source\", \"type\": \"string\"},"
+      + "{\"name\": \"dest\", \"type\": [\"null\", \"string\"]},"
+      + "{\"name\": \"state\", \"type\": \"string\"},"
+      + "{\"name\": \"size\", \"type\": \"long\"},"
+      + "{\"name\": \"files\", \"type\": \"long\"},"
+      + "{\"name\": \"failed\", \"type\": \"long\"},"
+      + "{\"name\": \"start\", \"type\": \"long\"},"
+      + "{\"name\": \"end\", \"type\": \"long\"},"
+      + "{\"name\": \"digest\", \"type\": [\"null\", \"string\"]},"
+      + "{\"name\": \"error\", \"type\": [\"null\", \"string\"]}"
+      + "]}");
+
+  /** Marker to stop the writer; compared by reference. */
+  private static final Record END = new Record(SUMMARY, "", null,
+      "", 0, 0, 0, 0, 0, null, null);
+
+  /**
+   * Formats of the report.
+   */
+  enum Format {
+    csv,
+    json,
+    avro;
+
+    /**
+     * Parse a format name, case insensitively.
+     * @param name name of the format
+     * @return the format
+     * @throws IllegalArgumentException if there is no such format
+     */
+    static Format parse(String name) {
+      try {
+        return valueOf(name.trim().toLowerCase(Locale.ENGLISH));
+      } catch (IllegalArgumentException e) {
+        throw new IllegalArgumentException(String.format(
+            "Unknown report format \"%s\"; valid formats are %s",
+            name, Arrays.toString(values())), e);
+      }
+    }
+  }
+
+  private final File file;
+
+  private final Format format;
+
+  private final Path source;
+
+  private final Path dest;
+
+  private final long started;
+
+  private final RecordWriter out;
+
+  private final BlockingQueue<Record> queue =
+      new LinkedBlockingQueue<>(MAX_QUEUED);
+
+  private final Thread writer;
+
+  private volatile IOException failure;
+
+  /** Totals of the records written; only used by the writer. */
+  private long records;
+
+  private long batches;
+
+  private long files;
+
+  private long failed;
+
+  private long bytes;
+
+  private boolean closed;
+
+  /**
+   * Create a report, and start the writer thread.
+   * @param file file to write
+   * @param format format of the report
+   * @param source source of the upload
+   * @param dest destination of the upload
+   * @throws IOException failure to create the file
+   */
+  UploadReport(File file, Format format, Path source, Path dest)
+      throws IOException {
+    this.file = file;
+    this.format = format;
+    this.source = source;
+    this.dest = dest;
+    this.started = System.currentTimeMillis();
+    OutputStream stream = new BufferedOutputStream(
+        new FileOutputStream(file), 64 * 1024);
+    try {
+      switch (format) {
+      case json:
+        out = new JsonRecordWriter(stream);
+        break;
+      case avro:
+        out = new AvroRecordWriter(stream);
+        break;
+      default:
+        out = new CsvRecordWriter(stream);
+      }
+    } catch (IOException | RuntimeException e) {
+      stream.close();
+      throw e;
+    }
+    writer = new Thread(new Runnable() {
+      @Override
+      public void run() {
+        writeRecords();
+      }
+    }, "report-writer");
+    writer.setDaemon(true);
+    writer.start();
+  }
+
+  /**
+   * Record the outcome of an upload. Only waits if the writer is
+   * {@link #MAX_QUEUED} records behind.
+   * @param upload upload, which has succeeded or failed
+   * @param uploadedTo destination written to; a container for a
+   * packed file
+   */
+  void record(UploadEntry upload, Path uploadedTo) {
+    if (failure != null) {
+      return;
+    }
+    boolean succeeded = upload.inState(UploadEntry.State.succeeded);
+    IOException e = upload.getException();
+    Record r = new Record(FILE, upload.getSource().toString(),
+        uploadedTo != null ? uploadedTo.toString() : null,
+        upload.getState().name(), upload.getSize(), 1, succeeded ? 0 : 1,
+        upload.getStartTime(), upload.getEndTime(), upload.getDigest(),
+        succeeded || e == null ? null : e.toString());
+    try {
+      queue.put(r);
+    } catch (InterruptedException ex) {
+      Thread.currentThread().interrupt();
+      LOG.warn("Interrupted: not reporting {}", upload.getSource());
+    }
+  }
+
+  /**
+   * Writer thread: write and flush all queued records, until the end
+   * marker is read. After a failure, records are discarded, so that
+   * workers are never held back by a writer which has stopped writing.
+   */
+  private void writeRecords() {
+    List<Record> batch = new ArrayList<>();
+    boolean done = false;
+    while (!done) {
+      try {
+        batch.add(queue.take());
+      } catch (InterruptedException e) {
+        failure = (IOException)
+            new InterruptedIOException("Interrupted").initCause(e);
+        return;
+      }
+      queue.drainTo(batch, MAX_BATCH);
+      try {
+        for (Record record : batch) {
+          if (record == END) {
+            done = true;
+          } else if (failure == null) {
+            write(record);
+          }
+        }
+        if (failure == null) {
+          out.flush();
+          batches++;
+        }
+      } catch (IOException e) {
+        LOG.error("Failed to write to report {}", file, e);
+        failure = e;
+      }
+      batch.clear();
+    }
+  }
+
+  /**
+   * Write a file record, and add it to the totals.
+   * @param record record
+   * @throws IOException failure to write
+   */
+  private void write(Record record) throws IOException {
+    out.write(record);
+    records++;
+    files += record.files;
+    failed += record.failed;
+    if (record.failed == 0) {
+      bytes += record.size;
+    }
+  }
+
+  /**
+   * Stop the writer once it has written all queued records,
+   * then write the summary and close the file.
+   * @throws IOException any failure to write the report.
+   */
+  @Override
+  public synchronized void close() throws IOException {
+    if (closed) {
+      return;
+    }
+    closed = true;
+    try {
+      queue.put(END);
+      writer.join();
+      if (failure == null) {
+        out.write(new Record(SUMMARY, source.toString(), dest.toString(),
+            failed == 0 ? UploadEntry.State.succeeded.name()
+                : UploadEntry.State.failed.name(),
+            bytes, files, failed, started, System.currentTimeMillis(),
+            null, null));
+      }
+    } catch (InterruptedException e) {
+      throw (InterruptedIOException)
+          new InterruptedIOException("Interrupted").initCause(e);
+    } finally {
+      out.close();
+    }
+    LOG.info("Report {}: {} records of {} files ({} failed) written"
+            + " as {} in {} batches",
+        file, records, files, failed, format, batches);
+    if (failure != null) {
+      throw failure;
+    }
+  }
+
+  /**
+   * One record of the report.
+   */
+  private static final class Record {
+
+    private final String type;
+
+    private final String source;
+
+    private final String dest;
+
+    private final String state;
+
+    private final long size;
+
+    private final long files;
+
+    private final long failed;
+
+    private final long start;
+
+    private final long end;
+
+    private final String digest;
+
+    private final String error;
+
+    private Record(String type, String source, String dest, String state,
+        long size, long files, long failed, long start, long end,
+        String digest, String error) {
+      this.type = type;
+      this.source = source;
+      this.dest = dest;
+      this.state = state;
+      this.size = size;
+      this.files = files;
+      this.failed = failed;
+      this.start = start;
+      this.end = end;
+      this.digest = digest;
+      this.error = error;
+    }
+
+    /**
+     * Get the values of the fields, in the order of {@link #FIELDS}.
+     * @return the values; null where a field has none
+     */
+    private Object[] values() {
+      return new Object[] {
+          type, source, dest, state, size, files, failed, start, end,
+          digest, error
+      };
+    }
+  }
+
+  /**
+   * Writes records in one format.
+   */
+  private interface RecordWriter extends Closeable {
+
+    void write(Record record) throws IOException;
+
+    void flush() throws IOException;
+  }
+
+  /**
+   * CSV, with a header line, quoted as in RFC 4180 where needed;
+   * fields without a value are empty.
+   */
+  private static final class CsvRecordWriter implements RecordWriter {
+
+    private final Writer out;
+
+    private CsvRecordWriter(OutputStream stream) throws IOException {
+      out = new OutputStreamWriter(stream, UTF8);
+      writeLine(FIELDS);
+    }
+
+    private void writeLine(Object[] values) throws IOException {
+      for (int i = 0; i < values.length; i++) {
+        if (i > 0) {
+          out.write(',');
+        }
+        if (values[i] != null) {
+          out.write(quote(values[i].toString()));
+        }
+      }
+      out.write("\r\n");
+    }
+
+    @Override
+    public void write(Record record) throws IOException {
+      writeLine(record.values());
+    }
+
+    @Override
+    public void flush() throws IOException {
+      out.flush();
+    }
+
+    @Override
+    public void close() throws IOException {
+      out.close();
+    }
+  }
+
+  /**
+   * Quote a CSV field if it contains a separator, quote or line break.
+   * @param value value of the field
+   * @return the field as written
+   */
+  static String quote(String value) {
+    for (int i = 0; i < value.length(); i++) {
+      char c = value.charAt(i);
+      if (c == ',' || c == '"' || c == '\r' || c == '\n') {
+        return '"' + value.replace("\"", "\"\"") + '"';
+      }
+    }
+    return value;
+  }
+
+  /**
+   * JSON lines: one object per line, without the fields which have
+   * no value.
+   */
+  private static final class JsonRecordWriter implements RecordWriter {
+
+    private final OutputStream stream;
+
+    private final JsonGenerator json;
+
+    private JsonRecordWriter(OutputStream stream) throws IOException {
+      this.stream = stream;
+      json = new JsonFactory().createJsonGenerator(stream,
+          JsonEncoding.UTF8);
+      json.disable(JsonGenerator.Feature.AUTO_CLOSE_TARGET);
+    }
+
+    @Override
+    public void write(Record record) throws IOException {
+      Object[] values = record.values();
+      json.writeStartObject();
+      for (int i = 0; i < values.length; i++) {
+        Object value = values[i];
+        if (value instanceof Long) {
+          json.writeNumberField(FIELDS[i], (Long) value);
+        } else if (value != null) {
+          json.writeStringField(FIELDS[i], (String) value);
+        }
+      }
+      json.writeEndObject();
+      json.flush();
+      stream.write('\n');
+    }
+
+    @Override
+    public void flush() throws IOException {
+      json.flush();
+      stream.flush();
+    }
+
+    @Override
+    public void close() throws IOException {
+      try {
+        json.close();
+      } finally {
+        stream.close();
+      }
+    }
+  }
+
+  /**
+   * An Avro data file of {@link #SCHEMA} records. The data file writer
+   * writes a block as each fills, so it is not flushed per batch, which
+   * would write a block per batch.
+   */
+  private static final class AvroRecordWriter implements RecordWriter {
+
+    private final DataFileWriter<GenericRecord> avro;
+
+    private AvroRecordWriter(OutputStream stream) throws IOException {
+      avro = new DataFileWriter<GenericRecord>(
+          new GenericDatumWriter<GenericRecord>(SCHEMA));
+      avro.create(SCHEMA, stream);
+    }
+
+    @Override
+    public void write(Record record) throws IOException {
+      Object[] values = record.values();
+      GenericRecord r = new GenericData.Record(SCHEMA);
+      for (int i = 0; i < values.length; i++) {
+        r.put(i, values[i]);
+      }
+      avro.append(r);
+    }
+
+    @Override
+    public void flush() {
+    }
+
+    @Override
+    public void close() throws IOException {
+      avro.close();
+    }
+  }
+}
@@ -0,0 +1,555 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.apache.hadoop.tools.cloudup;
+
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.Random;
+
+import com.google.common.base.Preconditions;
+
+import org.apache.hadoop.fs.Path;
+
+/**
+ * A compact table of uploads.
+ * <p>
+ * Rather than one {@link UploadEntry} per file, each holding two
+ * {@code Path} instances, the table keeps parallel primitive arrays of
+ * sizes, states and times. Paths are split into their parent directory,
+ * which is stored once and shared by every file in it, and their name,
+ * which is packed as UTF-8 into large byte pages.
+ * There are no per-file objects at all; an {@link UploadEntry} is
+ * only materialized when an upload is submitted, and any state and
+ * time changes of that entry are written back to the table.
+ * <p>
+ * Adding entries must be done from a single thread (or be externally
+ * synchronized); state updates of different entries may be made
+ * from different threads.
+ */
+final class UploadTable {
+
+  private static final Charset UTF8 = Charset.forName("UTF-8");
+
+  private static final int INITIAL_CAPACITY = 64;
+
+  /** Size of the first page of the name store. */
+  private static final int MIN_PAGE_SIZE = 4096;
+
+  /** Default (maximum) size of each page of the name store. */
+  static final int DEFAULT_PAGE_SIZE = 1024 * 1024;
+
+  /** Estimated heap overhead of a java object header. */
+  private static final int OBJECT_OVERHEAD = 16;
+
+  private static final UploadEntry.State[] STATES = UploadEntry.State.values();
+
+  private int count;
+
+  private long totalSize;
+
+  private long[] sizes = new long[INITIAL_CAPACITY];
+
+  private byte[] states = new byte[INITIAL_CAPACITY];
+
+  private long[] startTimes = new long[INITIAL_CAPACITY];
+
+  private long[] endTimes = new long[INITIAL_CAPACITY];
+
+  private int[] sourceDirs = new int[INITIAL_CAPACITY];
+
+  private long[] sourceNames = new long[INITIAL_CAPACITY];
+
+  private int[] destDirs = new int[INITIAL_CAPACITY];
+
+  private long[] destNames = new long[INITIAL_CAPACITY];
+
+  /** Directory prefixes, including the trailing "/". */
+  private final List<String> directories = new ArrayList<>();
+
+  private final Map<String, Integer> directoryIndex = new HashMap<>();
+
+  /**
+   * Pages of length-prefixed UTF-8 names.
+   * The address of a name is the page index in the upper 32 bits
+   * and the offset in the lower 32 bits.
+   */
+  private final List<byte[]> pages = new ArrayList<>();
+
+  private final int pageSize;
+
+  private byte[] page;
+
+  private int pageOffset;
+
+  /** Total size of all pages. */
+  private long pagesSize;
+
+  /**
+   * Create a table with the default page size.
+   */
+  UploadTable() {
+    this(DEFAULT_PAGE_SIZE);
+  }
+
+  /**
+   * Create a table.
+   * @param pageSize maximum size of the pages used to store names.
+   */
+  UploadTable(int pageSize) {
+    Preconditions.checkArgument(pageSize >= MIN_PAGE_SIZE,
+        "Page size too small: %s", pageSize);
+    this.pageSize = pageSize;
+  }
+
+  /**
+   * Add an entry.
+   * @param entry entry; source and dest must be set
+   * @return the index of the entry
+   */
+  int add(UploadEntry entry) {
+    return add(entry.getSource(), entry.getSize(), entry.getDest());
+  }
+
+  /**
+   * Add an entry.
+   * @param source source path
+   * @param size size of the source
+   * @param dest destination path
+   * @return the index of the entry
+   */
+  int add(Path source, long size, Path dest) {
+    ensureCapacity(count + 1);
+    int index = count;
+    String src = source.toString();
+    int split = src.lastIndexOf('/') + 1;
+    String name = src.substring(split);
+    sourceDirs[index] = directory(src.substring(0, split));
+    sourceNames[index] = storeName(name);
+
+    String dst = dest.toString();
+    int destSplit = dst.lastIndexOf('/') + 1;
+    destDirs[index] = directory(dst.substring(0, destSplit));
+    // share the stored name when the file is not renamed.
+    destNames[index] = dst.regionMatches(destSplit, name, 0, name.length())
+        && dst.length() - destSplit == name.length()
+        ? sourceNames[index]
+        : storeName(dst.substring(destSplit));
+
+    sizes[index] = size;
+    states[index] = (byte) UploadEntry.State.ready.ordinal();
+    totalSize += size;
+    count++;
+    return index;
+  }
+
+  /**
+   * Materialize an entry, bound to this table so that state and time
+   * changes are written back.
+   * @param index index of entry
+   * @return a new upload entry
+   */
+  UploadEntry get(int index) {
+    checkIndex(index);
+    UploadEntry entry = new UploadEntry(getSource(index), sizes[index]);
+    entry.setDest(getDest(index));
+    entry.bind(this, index);
+    return entry;
+  }
+
+  Path getSource(int index) {
+    checkIndex(index);
+    return new Path(directories.get(sourceDirs[index])
+        + readName(sourceNames[index]));
+  }
+
+  Path getDest(int index) {
+    checkIndex(index);
+    return new Path(directories.get(destDirs[index])
+        + readName(destNames[index]));
+  }
+
+  /**
+   * Get the source directory of an entry.
+   * @param index index of entry
+   * @return the directory number, for {@link #getDirectory(int)}
+   */
+  int getSourceDirectory(int index) {
+    checkIndex(index);
+    return sourceDirs[index];
+  }
+
+  /**
+   * Get the destination directory of an entry.
+   * @param index index of entry
+   * @return the directory number, for {@link #getDirectory(int)}
+   */
+  int getDestDirectory(int index) {
+    checkIndex(index);
+    return destDirs[index];
+  }
+
+  /**
+   * Get a directory.
+   * @param directory directory number
+   * @return the directory path, including the trailing "/"
+   */
+  String getDirectory(int directory) {
+    return directories.get(directory);
+  }
+
+  long getSize(int index) {
+    checkIndex(index);
+    return sizes[index];
+  }
+
+  UploadEntry.State getState(int index) {
+    checkIndex(index);
+    return STATES[states[index]];
+  }
+
+  void setState(int index, UploadEntry.State state) {
+    checkIndex(index);
+    states[index] = (byte) state.ordinal();
+  }
+
+  boolean inState(int index, UploadEntry.State state) {
+    return getState(index) == state;
+  }
+
+  long getStartTime(int index) {
+    checkIndex(index);
+    return startTimes[index];
+  }
+
+  void setStartTime(int index, long time) {
+    checkIndex(index);
+    startTimes[index] = time;
+  }
+
+  long getEndTime(int index) {
+    checkIndex(index);
+    return endTimes[index];
+  }
+
+  void setEndTime(int index, long time) {
+    checkIndex(index);
+    endTimes[index] = time;
+  }
+
+  int size() {
+    return count;
+  }
+
+  /**
+   * Total size of all entries.
+   * @return the sum of the entry sizes.
+   */
+  long getTotalSize() {
+    return totalSize;
+  }
+
+  int getDirectoryCount() {
+    return directories.size();
+  }
+
+  /**
+   * Find the indices of the largest entries.
+   * @param n number of entries to return
+   * @return the indices of up to n entries, largest first.
+   */
+  int[] largest(int n) {
+    int limit = Math.min(n, count);
+    if (limit <= 0) {
+      return new int[0];
+    }
+    // min-heap of the largest seen so far
+    PriorityQueue<long[]> heap = new PriorityQueue<>(limit,
+        new Comparator<long[]>() {
+          @Override
+          public int compare(long[] o1, long[] o2) {
+            return Long.compare(o1[0], o2[0]);
+          }
+        });
+    for (int i = 0; i < count; i++) {
+      if (heap.size() < limit) {
+        heap.add(new long[]{sizes[i], i});
+      } else if (sizes[i] > heap.peek()[0]) {
+        long[] smallest = heap.poll();
+        smallest[0] = sizes[i];
+        smallest[1] = i;
+        heap.add(smallest);
+      }
+    }
+    int[] result = new int[heap.size()];
+    for (int i = result.length - 1; i >= 0; i--) {
+      result[i] = (int) heap.poll()[1];
+    }
+    return result;
+  }
+
+  /**
+   * Create an array of all the indices of this table, largest first.
+   * This is a heap sort of the indices keyed on the sizes, so no
+   * objects are created per entry.
+   * @return the indices of all entries, in descending order of size.
+   */
+  int[] sortedBySize() {
+    int[] order = new int[count];
+    for (int i = 0; i < count; i++) {
+      order[i] = i;
+    }
+    // a min-heap: moving the root to the end of the array each time
+    // leaves it in descending order
+    for (int i = count / 2 - 1; i >= 0; i--) {
+      siftDown(order, i, count);
+    }
+    for (int end = count - 1; end > 0; end--) {
+      int t = order[0];
+      order[0] = order[end];
+      order[end] = t;
+      siftDown(order, 0, end);
+    }
+    return order;
+  }
+
+  /**
+   * Create an array of all the indices of this table, ordered by the
+   * path of their source directory, then in the order they were added,
+   * which for a listing is the order of the files in the directory.
+   * Only the directories are sorted; the entries are placed with a
+   * counting sort.
+   * @return the indices of all entries, grouped by source directory
+   */
+  int[] sortedBySourceDirectory() {
+    // rank the source directories by path
+    int dirs = directories.size();
+    boolean[] used = new boolean[dirs];
+    int usedCount = 0;
+    for (int i = 0; i < count; i++) {
+      if (!used[sourceDirs[i]]) {
+        used[sourceDirs[i]] = true;
+        usedCount++;
+      }
+    }
+    Integer[] sorted = new Integer[usedCount];
+    int n = 0;
+    for (int d = 0; d < dirs; d++) {
+      if (used[d]) {
+        sorted[n++] = d;
+      }
+    }
+    Arrays.sort(sorted, new Comparator<Integer>() {
+      @Override
+      public int compare(Integer a, Integer b) {
+        return directories.get(a).compareTo(directories.get(b));
+      }
+    });
+    int[] rank = new int[dirs];
+    for (int r = 0; r < usedCount; r++) {
+      rank[sorted[r]] = r;
+    }
+    // stable counting sort by rank
+    int[] start = new int[usedCount + 1];
+    for (int i = 0; i < count; i++) {
+      start[rank[sourceDirs[i]] + 1]++;
+    }
+    for (int r = 1; r < start.length; r++) {
+      start[r] += start[r - 1];
+    }
+    int[] order = new int[count];
+    for (int i = 0; i < count; i++) {
+      order[start[rank[sourceDirs[i]]]++] = i;
+    }
+    return order;
+  }
+
+  /**
+   * Restore the min-heap property of a heap of indices below a node.
+   * @param heap heap of indices
+   * @param node node to sift down
+   * @param length number of entries in the heap
+   */
+  private void siftDown(int[] heap, int node, int length) {
+    int i = node;
+    while (true) {
+      int child = 2 * i + 1;
+      if (child >= length) {
+        return;
+      }
+      if (child + 1 < length && sizes[heap[child + 1]] < sizes[heap[child]]) {
+        child++;
+      }
+      if (sizes[heap[i]] <= sizes[heap[child]]) {
+        return;
+      }
+      int t = heap[i];
+      heap[i] = heap[child];
+      heap[child] = t;
+      i = child;
+    }
+  }
+
+  /**
+   * Create an array of all the indices of this table, in a random order.
+   * @param random random number source
+   * @return a permutation of the table's indices
+   */
+  int[] shuffled(Random random) {
+    int[] order = new int[count];
+    for (int i = 0; i < count; i++) {
+      order[i] = i;
+    }
+    for (int i = count - 1; i > 0; i--) {
+      int j = random.nextInt(i + 1);
+      int t = order[i];
+      order[i] = order[j];
+      order[j] = t;
+    }
+    return order;
+  }
+
+  /**
+   * Estimate the heap consumed by this table.
+   * This covers the arrays at their current capacity, the name pages
+   * and the shared directory strings.
+   * @return an estimate of the heap used, in bytes.
+   */
+  long heapSize() {
+    int capacity = sizes.length;
+    // sizes, start, end, source names, dest names: 8 bytes each
+    // source dir, dest dir: 4 bytes; state: 1 byte.
+    long bytes = capacity * (5L * 8 + 2 * 4 + 1) + 8 * OBJECT_OVERHEAD;
+    bytes += pagesSize + (long) pages.size() * OBJECT_OVERHEAD;
+    for (String dir : directories) {
+      // string + hash map entry + boxed index
+      bytes += 2 * dir.length() + 5 * OBJECT_OVERHEAD + 16;
+    }
+    return bytes;
+  }
+
+  /**
+   * Estimate the heap consumed per entry.
+   * @return heap per entry or 0 if the table is empty
+   */
+  long heapPerEntry() {
+    return count > 0 ? heapSize() / count : 0;
+  }
+
+  @Override
+  public String toString() {
+    return String.format("UploadTable{entries=%,d, size=%,d,"
+            + " directories=%,d, heap=%,d bytes; %,d bytes/entry}",
+        count, totalSize, directories.size(), heapSize(), heapPerEntry());
+  }
+
+  private void checkIndex(int index) {
+    Preconditions.checkElementIndex(index, count);
+  }
+
+  /**
+   * Get the index of a directory, adding it if needed.
+   * @param dir directory prefix
+   * @return the index of the directory
+   */
+  private int directory(String dir) {
+    Integer index = directoryIndex.get(dir);
+    if (index == null) {
+      index = directories.size();
+      directories.add(dir);
+      directoryIndex.put(dir, index);
+    }
+    return index;
+  }
+
+  /**
+   * Store a name in the pages, prefixed by its varint-encoded length.
+   * @param name name to store
+   * @return the address of the name
+   */
+  private long storeName(String name) {
+    byte[] bytes = name.getBytes(UTF8);
+    int len = bytes.length;
+    int needed = len + 5;
+    Preconditions.checkArgument(needed <= pageSize,
+        "Name too long: %s", name);
+    if (page == null || pageOffset + needed > page.length) {
+      // pages start small and double in size up to the page size,
+      // so that small tables stay small.
+      int size = page == null ? MIN_PAGE_SIZE : page.length * 2;
+      page = new byte[Math.min(Math.max(size, needed), pageSize)];
+      pages.add(page);
+      pagesSize += page.length;
+      pageOffset = 0;
+    }
+    long address = ((long) (pages.size() - 1) << 32) | pageOffset;
+    int v = len;
+    while ((v & ~0x7f) != 0) {
+      page[pageOffset++] = (byte) ((v & 0x7f) | 0x80);
+      v >>>= 7;
+    }
+    page[pageOffset++] = (byte) v;
+    System.arraycopy(bytes, 0, page, pageOffset, len);
+    pageOffset += len;
+    return address;
+  }
+
+  /**
+   * Read a name.
+   * @param address address of the name
+   * @return the name
+   */
+  private String readName(long address) {
+    byte[] p = pages.get((int) (address >>> 32));
+    int offset = (int) address;
+    int len = 0;
+    int shift = 0;
+    byte b;
+    do {
+      b = p[offset++];
+      len |= (b & 0x7f) << shift;
+      shift += 7;
+    } while ((b & 0x80) != 0);
+    return new String(p, offset, len, UTF8);
+  }
+
+  /**
+   * Grow the arrays if needed.
+   * @param capacity minimum capacity
+   */
+  private void ensureCapacity(int capacity) {
+    if (capacity <= sizes.length) {
+      return;
+    }
+    int newCapacity = Math.max(capacity, sizes.length + (sizes.length >> 1));
+    sizes = Arrays.copyOf(sizes, newCapacity);
+    states = Arrays.copyOf(states, newCapacity);
+    startTimes = Arrays.copyOf(startTimes, newCapacity);
+    endTimes = Arrays.copyOf(endTimes, newCapacity);
+    sourceDirs = Arrays.copyOf(sourceDirs, newCapacity);
+    sourceNames = Arrays.copyOf(sourceNames, newCapacity);
+    destDirs = Arrays.copyOf(destDirs, newCapacity);
+    destNames = Arrays.copyOf(destNames, newCapacity);
+  }
+}
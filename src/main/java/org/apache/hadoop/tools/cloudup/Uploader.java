@@ -0,0 +1,113 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.apache.hadoop.tools.cloudup;
+
+import java.io.IOException;
+
+import org.apache.hadoop.fs.Path;
+
+/**
+ * The engine which transfers files to the destination.
+ * <p>
+ * A file may be uploaded in a single stream, or as a multipart upload:
+ * the file is split into ranges which are uploaded independently, in
+ * parallel, then committed as one file. Implementations are expected to
+ * be thread safe; the parts of one multipart upload are uploaded
+ * from different threads at the same time.
+ */
+interface Uploader {
+
+  /**
+   * Upload a file in a single stream.
+   * @param source source file
+   * @param dest destination file
+   * @param digest checksums to update with the data uploaded; null
+   * for none
+   * @throws IOException failure
+   */
+  void upload(Path source, Path dest, Checksums.Digest digest)
+      throws IOException;
+
+  /**
+   * Upload the contents of a source file which have already been
+   * read into memory.
+   * @param data contents of the file
+   * @param dest destination file
+   * @param digest checksums to update with the data uploaded; null
+   * for none
+   * @throws IOException failure
+   */
+  void upload(byte[] data, Path dest, Checksums.Digest digest)
+      throws IOException;
+
+  /**
+   * Copy a file already uploaded to another destination path, within
+   * the destination store.
+   * @param from destination of the uploaded file
+   * @param to destination path of the copy
+   * @return true if the file was copied; false if the store cannot copy
+   * a file without its data passing through this process, in which case
+   * the copy must be uploaded.
+   * @throws IOException failure
+   */
+  boolean copy(Path from, Path to) throws IOException;
+
+  /**
+   * Start a multipart upload of a file.
+   * @param source source file
+   * @param dest destination file
+   * @param parts number of parts the file will be uploaded in
+   * @return the upload
+   * @throws IOException failure, including the destination being
+   * unwritable.
+   */
+  MultipartUpload initiate(Path source, Path dest, int parts)
+      throws IOException;
+
+  /**
+   * An upload in progress of a file in parts.
+   */
+  interface MultipartUpload {
+
+    /**
+     * Upload one part. Parts may be uploaded in any order, and in
+     * parallel.
+     * @param part part number, starting at 0
+     * @param offset offset of the part in the source file
+     * @param length length of the part
+     * @param digest checksums to update with the data of the part;
+     * null for none
+     * @throws IOException failure
+     */
+    void uploadPart(int part, long offset, long length,
+        Checksums.Digest digest) throws IOException;
+
+    /**
+     * Commit all the parts, in order, as the destination file.
+     * Only to be called once all parts have been uploaded.
+     * @throws IOException failure
+     */
+    void complete() throws IOException;
+
+    /**
+     * Abandon the upload and delete any parts uploaded; does not fail.
+     */
+    void abort();
+  }
+}
@@ -0,0 +1,197 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.apache.hadoop.tools.cloudup;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import org.apache.commons.io.FileUtils;
+import org.apache.hadoop.fs.FileUtil;
+import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.util.StringUtils;
+
+import static org.apache.hadoop.tools.cloudup.CloudupTestUtils.*;
+
+/**
+ * Benchmark of reading a local source tree in a shuffled order, as the
+ * default scheduling policy does, against the order of the locality
+ * policy. Not run as part of the unit tests; run it with
+ * {@code mvn test -Dtest=ITestLocalityBenchmark}.
+ * <p>
+ * Each order reads its own copy of the tree, so neither is served from
+ * pages cached by the other; but both copies are written before either
+ * is read, and while they fit in memory the reads may come from the
+ * page cache, measuring nothing about the disk. For a meaningful result,
+ * put the tree on the disk to measure and make it larger than memory,
+ * or drop the page cache once the files are written:
+ * <ul>
+ *   <li>{@code cloudup.benchmark.dir}: directory for the trees.</li>
+ *   <li>{@code cloudup.benchmark.files}: files in each tree
+ *   (default 2000).</li>
+ *   <li>{@code cloudup.benchmark.size}: size of each file
+ *   (default 64k).</li>
+ *   <li>{@code cloudup.benchmark.threads}: reader threads
+ *   (default 4).</li>
+ *   <li>{@code cloudup.benchmark.pause}: seconds to wait between
+ *   writing the trees and reading them, so the cache can be dropped
+ *   (default 0).</li>
+ * </ul>
+ */
+public class ITestLocalityBenchmark extends Assert {
+
+  private static final Logger LOG =
+      LoggerFactory.getLogger(ITestLocalityBenchmark.class);
+
+  private static final int DIRECTORIES = 40;
+
+  private static final Path DEST = new Path("s3a://bucket/dest");
+
+  private File dir;
+
+  private int files;
+
+  private int size;
+
+  private int threads;
+
+  @Before
+  public void setup() throws Exception {
+    String benchmarkDir = System.getProperty("cloudup.benchmark.dir");
+    dir = benchmarkDir != null
+        ? new File(benchmarkDir, "ITestLocalityBenchmark")
+        : new File(createTestDir(), "locality");
+    FileUtil.fullyDelete(dir);
+    mkdirs(dir);
+    files = Integer.getInteger("cloudup.benchmark.files", 2000);
+    size = (int) StringUtils.TraditionalBinaryPrefix.string2long(
+        System.getProperty("cloudup.benchmark.size", "64k"));
+    threads = Integer.getInteger("cloudup.benchmark.threads", 4);
+  }
+
+  @After
+  public void teardown() throws Exception {
+    FileUtil.fullyDelete(dir);
+  }
+
+  /**
+   * Write a tree of files, one directory at a time, and build the
+   * table of their uploads.
+   * @param root root of the tree
+   * @param random source of the file contents
+   * @return the table
+   * @throws IOException failure
+   */
+  private UploadTable createTree(File root, Random random)
+      throws IOException {
+    UploadTable table = new UploadTable();
+    byte[] data = new byte[size];
+    for (int i = 0; i < files; i++) {
+      String child = String.format("dir-%03d/file-%05d",
+          i * DIRECTORIES / files, i);
+      File file = new File(root, child);
+      random.nextBytes(data);
+      FileUtils.writeByteArrayToFile(file, data);
+      table.add(new Path(file.toURI()), size, new Path(DEST, child));
+    }
+    return table;
+  }
+
+  /**
+   * Read every file of a table, in the given order, with a pool
+   * of threads.
+   * @param table table of files
+   * @param order order to read them in
+   * @return the bandwidth, in MB/s
+   * @throws Exception failure
+   */
+  private double read(final UploadTable table, int[] order)
+      throws Exception {
+    ExecutorService pool = Executors.newFixedThreadPool(threads);
+    try {
+      NanoTimer timer = new NanoTimer();
+      List<Future<Long>> reads = new ArrayList<>(order.length);
+      for (final int index : order) {
+        reads.add(pool.submit(new Callable<Long>() {
+          @Override
+          public Long call() throws IOException {
+            File file = new File(table.getSource(index).toUri().getPath());
+            byte[] buffer = new byte[64 * 1024];
+            long total = 0;
+            try (InputStream in = new FileInputStream(file)) {
+              int n;
+              while ((n = in.read(buffer)) > 0) {
+                total += n;
+              }
+            }
+            return total;
+          }
+        }));
+      }
+      long total = 0;
+      for (Future<Long> r : reads) {
+        total += r.get();
+      }
+      timer.end();
+      assertEquals("Bytes read", table.getTotalSize(), total);
+      return total / 1.0e6 / (Math.max(timer.duration(), 1) / 1.0e9);
+    } finally {
+      pool.shutdown();
+    }
+  }
+
+  @Test
+  public void testShuffledAgainstLocality() throws Throwable {
+    Random random = new Random(0);
+    UploadTable shuffled = createTree(new File(dir, "shuffled"), random);
+    UploadTable locality = createTree(new File(dir, "locality"), random);
+    int pause = Integer.getInteger("cloudup.benchmark.pause", 0);
+    if (pause > 0) {
+      LOG.info("Waiting {}s before reading the files", pause);
+      Thread.sleep(pause * 1000L);
+    }
+
+    double shuffledRate = read(shuffled, shuffled.shuffled(random));
+    int[] localityOrder = new PrefixLimiter(DEST, 1, 0).interleaveRuns(
+        locality, locality.sortedBySourceDirectory(),
+        Cloudup.LOCALITY_RUN_LENGTH);
+    double localityRate = read(locality, localityOrder);
+    LOG.info("Read {} files of {} bytes with {} threads:"
+            + " shuffled {} MB/s; locality {} MB/s; speedup {}",
+        files, size, threads,
+        String.format("%.1f", shuffledRate),
+        String.format("%.1f", localityRate),
+        String.format("%.2f", localityRate / shuffledRate));
+  }
+}
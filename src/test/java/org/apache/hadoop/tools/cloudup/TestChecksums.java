@@ -0,0 +1,120 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package org.apache.hadoop.tools.cloudup;
+
+import java.nio.ByteBuffer;
+import java.security.MessageDigest;
+import java.util.Random;
+import java.util.zip.CRC32;
+import java.util.zip.Checksum;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import org.apache.hadoop.util.PureJavaCrc32C;
+
+/**
+ * Test the checksums, and the combination of the checksums of parts.
+ */
+public class TestChecksums extends Assert {
+
+  private final byte[] data = new byte[100000];
+
+  public TestChecksums() {
+    new Random(0).nextBytes(data);
+  }
+
+  private static int crc(Checksum checksum, byte[] bytes, int offset,
+      int length) {
+    checksum.reset();
+    checksum.update(bytes, offset, length);
+    return (int) checksum.getValue();
+  }
+
+  @Test
+  public void testCombineCrc() throws Throwable {
+    Checksum[] checksums = {new CRC32(), new PureJavaCrc32C()};
+    int[] polys = {0xEDB88320, 0x82F63B78};
+    int[] splits = {0, 1, 7, 4096, 65537, data.length};
+    for (int c = 0; c < checksums.length; c++) {
+      Checksum checksum = checksums[c];
+      int whole = crc(checksum, data, 0, data.length);
+      for (int split : splits) {
+        int crc1 = crc(checksum, data, 0, split);
+        int crc2 = crc(checksum, data, split, data.length - split);
+        assertEquals("split at " + split + " of " + checksum, whole,
+            Checksums.combineCrc(crc1, crc2, data.length - split, polys[c]));
+      }
+    }
+  }
+
+  @Test
+  public void testCrc32cMatchesHadoop() throws Throwable {
+    assertEquals(crc(new PureJavaCrc32C(), data, 0, data.length),
+        crc(Checksums.newCrc32c(), data, 0, data.length));
+  }
+
+  @Test
+  public void testDigest() throws Throwable {
+    Checksums checksums = Checksums.parse("MD5, crc32c");
+    Checksums.Digest digest = checksums.start();
+    // half from an array, half from a direct buffer
+    digest.update(data, 0, 50000);
+    ByteBuffer direct = ByteBuffer.allocateDirect(50000);
+    direct.put(data, 50000, 50000);
+    direct.flip();
+    digest.update(direct);
+    assertEquals("buffer position", 0, direct.position());
+    assertEquals(data.length, digest.getLength());
+    String md5 = Checksums.hex(
+        MessageDigest.getInstance("MD5").digest(data));
+    String crc = Checksums.hex(
+        crc(new PureJavaCrc32C(), data, 0, data.length));
+    assertEquals("md5=" + md5 + " crc32c=" + crc, digest.toString());
+    // reading the digest does not reset it
+    assertEquals("md5=" + md5 + " crc32c=" + crc, digest.toString());
+  }
+
+  @Test
+  public void testCombineParts() throws Throwable {
+    Checksums checksums = Checksums.parse("md5,crc32c");
+    Checksums.Digest[] parts = new Checksums.Digest[3];
+    MessageDigest md5OfParts = MessageDigest.getInstance("MD5");
+    for (int i = 0; i < parts.length; i++) {
+      int offset = i * 40000;
+      int length = Math.min(40000, data.length - offset);
+      parts[i] = checksums.start();
+      parts[i].update(data, offset, length);
+      MessageDigest md5 = MessageDigest.getInstance("MD5");
+      md5.update(data, offset, length);
+      md5OfParts.update(md5.digest());
+    }
+    String crc = Checksums.hex(
+        crc(new PureJavaCrc32C(), data, 0, data.length));
+    assertEquals("md5-of-parts=" + Checksums.hex(md5OfParts.digest())
+            + "-3 crc32c=" + crc,
+        checksums.combine(parts));
+  }
+
+  @Test(expected = IllegalArgumentException.class)
+  public void testUnknownChecksum() throws Throwable {
+    Checksums.parse("md5,sha3");
+  }
+}
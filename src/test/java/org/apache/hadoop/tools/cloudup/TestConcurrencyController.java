@@ -0,0 +1,164 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.apache.hadoop.tools.cloudup;
+
+import java.io.EOFException;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Test the decisions of the adaptive concurrency controller.
+ */
+public class TestConcurrencyController extends Assert {
+
+  private static final long MB = 1024 * 1024;
+
+  private ThreadPoolExecutor pool;
+
+  private final CountDownLatch release = new CountDownLatch(1);
+
+  @Before
+  public void setup() {
+    pool = new ThreadPoolExecutor(4, 4, 0L, TimeUnit.MILLISECONDS,
+        new LinkedBlockingQueue<Runnable>());
+  }
+
+  @After
+  public void teardown() {
+    release.countDown();
+    pool.shutdownNow();
+  }
+
+  /**
+   * Keep every thread of the pool busy, however large it grows.
+   */
+  private void occupy() {
+    for (int i = 0; i < 32; i++) {
+      pool.execute(new Runnable() {
+        @Override
+        public void run() {
+          try {
+            release.await();
+          } catch (InterruptedException ignored) {
+            // exit
+          }
+        }
+      });
+    }
+  }
+
+  /**
+   * Wait for all the threads of the pool to be active.
+   */
+  private void awaitBusy() throws InterruptedException {
+    for (int i = 0; i < 100
+        && pool.getActiveCount() < pool.getCorePoolSize(); i++) {
+      Thread.sleep(50);
+    }
+  }
+
+  @Test
+  public void testGrowAndBackOff() throws Throwable {
+    ConcurrencyController controller = new ConcurrencyController(pool, 1, 16,
+        new CostModel());
+    occupy();
+    awaitBusy();
+    controller.completed(10 * MB, 1000);
+    assertEquals("first interval", 6, controller.adjust(1000));
+    awaitBusy();
+    controller.completed(20 * MB, 1000);
+    assertEquals("improving", 8, controller.adjust(1000));
+    awaitBusy();
+    controller.completed(20 * MB, 1000);
+    assertEquals("no improvement: undo", 6, controller.adjust(1000));
+    controller.completed(40 * MB, 1000);
+    assertEquals("holding", 6, controller.adjust(1000));
+    controller.throttled();
+    assertEquals("throttled", 4, controller.adjust(1000));
+    assertEquals(4, pool.getCorePoolSize());
+  }
+
+  @Test
+  public void testLatency() throws Throwable {
+    ConcurrencyController controller = new ConcurrencyController(pool, 1, 16,
+        new CostModel());
+    // estimate is the default overhead; these take ten times as long
+    controller.completed(0, 10 * (long) CostModel.DEFAULT_OVERHEAD_MILLIS);
+    assertEquals(3, controller.adjust(1000));
+  }
+
+  @Test
+  public void testBounds() throws Throwable {
+    ConcurrencyController controller = new ConcurrencyController(pool, 3, 16,
+        new CostModel());
+    controller.throttled();
+    assertEquals(3, controller.adjust(1000));
+    controller.throttled();
+    assertEquals("below minimum", 3, controller.adjust(1000));
+    // no data, no change
+    assertEquals(3, controller.adjust(1000));
+  }
+
+  @Test
+  public void testIdleThreads() throws Throwable {
+    ConcurrencyController controller = new ConcurrencyController(pool, 1, 16,
+        new CostModel());
+    controller.completed(10 * MB, 1000);
+    assertEquals("grew an idle pool", 4, controller.adjust(1000));
+  }
+
+  @Test
+  public void testIsThrottling() throws Throwable {
+    assertTrue(ConcurrencyController.isThrottling(
+        new IOException("upload failed",
+            new IOException("Status Code: 503; Error Code: SlowDown"))));
+    assertTrue(ConcurrencyController.isThrottling(
+        new IOException("Status Code: 429; Error Code: TooManyRequests")));
+    assertTrue(ConcurrencyController.isThrottling(
+        new IOException("HTTP/1.1 503 Service Unavailable")));
+    assertTrue(ConcurrencyController.isThrottling(
+        new IOException("statusCode=429")));
+    assertFalse(ConcurrencyController.isThrottling(
+        new IOException("No such file")));
+  }
+
+  @Test
+  public void testIsNotThrottling() throws Throwable {
+    assertFalse(ConcurrencyController.isThrottling(
+        new FileNotFoundException("/logs/20190503/part-0000 not found")));
+    assertFalse(ConcurrencyController.isThrottling(
+        new EOFException("Read 4290 bytes of 8192")));
+    assertFalse(ConcurrencyController.isThrottling(
+        new IOException("Status Code: 5030")));
+    assertFalse(ConcurrencyController.isThrottling(
+        new IOException("Status Code: 404; Error Code: 503NotAnError")));
+    assertFalse(ConcurrencyController.isThrottling(
+        new IOException("upload failed",
+            new IOException("s3a://bucket/429/file: Access Denied"))));
+  }
+}
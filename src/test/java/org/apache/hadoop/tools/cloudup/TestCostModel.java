@@ -0,0 +1,90 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.apache.hadoop.tools.cloudup;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import org.apache.hadoop.fs.Path;
+
+/**
+ * Test the fitting of the upload cost model and its makespan predictions.
+ */
+public class TestCostModel extends Assert {
+
+  private static final Path SOURCE = new Path("file:/data/source");
+
+  private static final Path DEST = new Path("s3a://bucket/dest");
+
+  @Test
+  public void testDefaults() throws Throwable {
+    CostModel model = new CostModel();
+    assertEquals(CostModel.DEFAULT_OVERHEAD_MILLIS, model.estimate(0), 0.001);
+    // too few samples to fit
+    model.add(1000, 5000);
+    assertEquals(CostModel.DEFAULT_OVERHEAD_MILLIS, model.estimate(0), 0.001);
+  }
+
+  @Test
+  public void testFit() throws Throwable {
+    CostModel model = new CostModel();
+    // 200ms per upload, 1 byte/ms
+    for (int i = 0; i < 100; i++) {
+      long size = 1000L * i;
+      model.add(size, 200 + size);
+    }
+    assertEquals(200, model.estimate(0), 0.001);
+    assertEquals(10200, model.estimate(10000), 0.001);
+  }
+
+  @Test
+  public void testFitLargeFiles() throws Throwable {
+    CostModel model = new CostModel();
+    // 100 ms overhead, 100 MB/s, files of up to 100 GB
+    long gb = 1L << 30;
+    for (int i = 1; i <= 100; i++) {
+      long size = gb * i;
+      model.add(size, 100 + size / 100000);
+    }
+    assertEquals(100, model.estimate(0), 1.0);
+  }
+
+  @Test
+  public void testPredictMakespan() throws Throwable {
+    CostModel model = new CostModel();
+    for (int i = 0; i < 100; i++) {
+      long size = 1000L * i;
+      model.add(size, size);
+    }
+    UploadTable table = new UploadTable();
+    // one file of 4000 bytes, four of 1000
+    table.add(new Path(SOURCE, "large"), 4000, new Path(DEST, "large"));
+    for (int i = 0; i < 4; i++) {
+      table.add(new Path(SOURCE, "f" + i), 1000, new Path(DEST, "f" + i));
+    }
+    // largest first on two workers: 4000 on one, the rest on the other
+    assertEquals(4000,
+        model.predictMakespan(table, table.sortedBySize(), 2));
+    // largest last: three small files on each, then the large one
+    assertEquals(6000,
+        model.predictMakespan(table, new int[]{1, 2, 3, 4, 0}, 2));
+    assertEquals(8000,
+        model.predictMakespan(table, table.sortedBySize(), 1));
+  }
+}
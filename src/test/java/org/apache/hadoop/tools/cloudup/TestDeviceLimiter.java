@@ -0,0 +1,78 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.apache.hadoop.tools.cloudup;
+
+import java.io.File;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import org.apache.hadoop.fs.FileUtil;
+import org.apache.hadoop.fs.Path;
+
+import static org.apache.hadoop.tools.cloudup.CloudupTestUtils.*;
+
+/**
+ * Test the mapping of source directories to devices, and the limit on
+ * uploads from each device.
+ */
+public class TestDeviceLimiter extends Assert {
+
+  private static final Runnable NOOP = new Runnable() {
+    @Override
+    public void run() {
+    }
+  };
+
+  @Test
+  public void testDeviceOf() throws Throwable {
+    File dir = createTestDir();
+    try {
+      File a = new File(dir, "a");
+      File b = new File(dir, "b");
+      mkdirs(a);
+      mkdirs(b);
+      DeviceLimiter limiter = new DeviceLimiter(1);
+      String device = limiter.deviceOf(new Path(new File(a, "file").toURI()));
+      assertNotEquals("Device of " + a, DeviceLimiter.UNKNOWN, device);
+      assertEquals("Device of " + b, device,
+          limiter.deviceOf(new Path(new File(b, "file").toURI())));
+      assertEquals(DeviceLimiter.UNKNOWN, limiter.deviceOf(
+          new Path(new File(dir, "missing/file").toURI())));
+    } finally {
+      FileUtil.fullyDelete(dir);
+    }
+  }
+
+  @Test
+  public void testLimit() throws Throwable {
+    DeviceLimiter limiter = new DeviceLimiter(1);
+    Runnable second = new Runnable() {
+      @Override
+      public void run() {
+      }
+    };
+    assertTrue(limiter.admit("sda", NOOP));
+    assertFalse("Admitted above the limit", limiter.admit("sda", second));
+    assertTrue("Other device blocked", limiter.admit("sdb", NOOP));
+    assertSame(second, limiter.release("sda"));
+    assertNull(limiter.release("sda"));
+    assertTrue(limiter.admit("sda", NOOP));
+  }
+}
@@ -0,0 +1,80 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.apache.hadoop.tools.cloudup;
+
+import java.io.File;
+import java.util.Map;
+import java.util.TreeMap;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.fs.FSDataOutputStream;
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.FileUtil;
+import org.apache.hadoop.fs.Path;
+
+import static org.apache.hadoop.tools.cloudup.CloudupTestUtils.*;
+
+/**
+ * Test the snapshots of filesystem statistics, and their changes.
+ */
+public class TestFileSystemStatistics extends Assert {
+
+  @Test
+  public void testSnapshots() throws Throwable {
+    File dir = createTestDir();
+    try {
+      FileSystem fs = FileSystem.getLocal(new Configuration());
+      Map<String, Long> before = FileSystemStatistics.snapshot(fs);
+      Map<String, Long> schemeBefore =
+          FileSystemStatistics.schemeStatistics(fs);
+      try (FSDataOutputStream out = fs.create(
+          new Path(new File(dir, "file").toURI()))) {
+        out.write(new byte[1000]);
+      }
+      Map<String, Long> after = FileSystemStatistics.snapshot(fs);
+      assertTrue("bytesWritten in " + after,
+          after.get("bytesWritten") - before.get("bytesWritten") >= 1000);
+      Map<String, Long> schemeAfter =
+          FileSystemStatistics.schemeStatistics(fs);
+      assertTrue("bytesWritten in " + schemeAfter,
+          schemeAfter.get("bytesWritten")
+              - schemeBefore.get("bytesWritten") >= 1000);
+    } finally {
+      FileUtil.fullyDelete(dir);
+    }
+  }
+
+  @Test
+  public void testDescribeChanges() throws Throwable {
+    Map<String, Long> before = new TreeMap<>();
+    before.put("object_put_requests", 10L);
+    before.put("store_io_throttled", 2L);
+    Map<String, Long> after = new TreeMap<>(before);
+    after.put("object_put_requests", 30L);
+    after.put("object_copy_requests", 5L);
+    assertEquals("object_copy_requests +5 (2.5/s),"
+            + " object_put_requests +20 (10.0/s)",
+        FileSystemStatistics.describeChanges(before, after, 2000));
+    assertEquals("no change",
+        FileSystemStatistics.describeChanges(before, before, 2000));
+  }
+}
@@ -0,0 +1,242 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.apache.hadoop.tools.cloudup;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.URI;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+import org.apache.commons.io.FileUtils;
+import org.apache.commons.io.IOUtils;
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.fs.FileAlreadyExistsException;
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.FileUtil;
+import org.apache.hadoop.fs.LocalFileSystem;
+import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.fs.RawLocalFileSystem;
+import org.apache.hadoop.fs.contract.ContractTestUtils;
+
+import static org.apache.hadoop.tools.cloudup.CloudupTestUtils.*;
+
+/**
+ * Test multipart uploads through the local filesystem, where the parts
+ * are written as files then concatenated.
+ */
+public class TestHadoopUploader extends Assert {
+
+  private File dir;
+
+  private FileSystem fs;
+
+  private File source;
+
+  private byte[] data;
+
+  @Before
+  public void setup() throws Exception {
+    dir = new File(createTestDir(), "uploader");
+    mkdirs(dir);
+    fs = FileSystem.getLocal(new Configuration());
+    source = new File(dir, "source");
+    data = ContractTestUtils.dataset(10000, 0, 255);
+    FileUtils.writeByteArrayToFile(source, data);
+  }
+
+  @After
+  public void teardown() throws Exception {
+    FileUtil.fullyDelete(dir);
+  }
+
+  private Path path(File file) {
+    return new Path(file.toURI());
+  }
+
+  private byte[] read(Path path) throws IOException {
+    try (InputStream in = fs.open(path)) {
+      return IOUtils.toByteArray(in);
+    }
+  }
+
+  private void assertNoParts() {
+    for (String name : dir.list()) {
+      assertFalse("Parts left behind: " + name, name.contains(".parts-"));
+    }
+  }
+
+  @Test
+  public void testPartsOutOfOrder() throws Throwable {
+    File dest = new File(dir, "dest");
+    Uploader uploader = new HadoopUploader(fs, fs, false);
+    Uploader.MultipartUpload upload =
+        uploader.initiate(path(source), path(dest), 3);
+    upload.uploadPart(2, 8000, 2000, null);
+    upload.uploadPart(0, 0, 4000, null);
+    upload.uploadPart(1, 4000, 4000, null);
+    upload.complete();
+    assertArrayEquals("content", data, FileUtils.readFileToByteArray(dest));
+    assertNoParts();
+  }
+
+  /**
+   * Checksums are calculated as the data is uploaded, and the CRCs
+   * of the parts of a file combine into that of the whole file,
+   * whichever the engine.
+   */
+  @Test
+  public void testChecksums() throws Throwable {
+    Checksums checksums = Checksums.parse("crc32c,crc32");
+    Checksums.Digest expected = checksums.start();
+    expected.update(data, 0, data.length);
+    Uploader[] uploaders = {
+        new HadoopUploader(fs, fs, false),
+        new NioUploader(fs, false)
+    };
+    for (Uploader uploader : uploaders) {
+      File whole = new File(dir, "whole-" + uploader);
+      Checksums.Digest digest = checksums.start();
+      uploader.upload(path(source), path(whole), digest);
+      assertEquals("digest of " + uploader, expected.toString(),
+          digest.toString());
+
+      File dest = new File(dir, "parts-" + uploader);
+      Uploader.MultipartUpload upload =
+          uploader.initiate(path(source), path(dest), 3);
+      Checksums.Digest[] parts = new Checksums.Digest[3];
+      for (int i = 2; i >= 0; i--) {
+        parts[i] = checksums.start();
+        upload.uploadPart(i, i * 4000, Math.min(4000, 10000 - i * 4000),
+            parts[i]);
+      }
+      upload.complete();
+      assertArrayEquals("content", data, FileUtils.readFileToByteArray(dest));
+      assertEquals("combined digest of " + uploader, expected.toString(),
+          checksums.combine(parts));
+    }
+  }
+
+  @Test
+  public void testAbort() throws Throwable {
+    File dest = new File(dir, "dest");
+    Uploader.MultipartUpload upload = new HadoopUploader(fs, fs, false)
+        .initiate(path(source), path(dest), 2);
+    upload.uploadPart(0, 0, 5000, null);
+    upload.abort();
+    assertFalse("Destination created", dest.exists());
+    assertNoParts();
+  }
+
+  @Test
+  public void testNoOverwrite() throws Throwable {
+    Uploader uploader = new HadoopUploader(fs, fs, false);
+    try {
+      uploader.upload(path(source), path(source), null);
+      fail("Expected a FileAlreadyExistsException");
+    } catch (FileAlreadyExistsException expected) {
+      assertFalse("Retryable: " + expected,
+          RetryScheduler.isRetryable(expected));
+    }
+    try {
+      new HadoopUploader(fs, fs, false).initiate(path(source), path(source),
+          2);
+      fail("Expected a FileAlreadyExistsException");
+    } catch (FileAlreadyExistsException expected) {
+      // expected
+    }
+  }
+
+  /**
+   * Only a failed upload probes for an existing destination.
+   */
+  @Test
+  public void testProbeOnlyOnFailure() throws Throwable {
+    final AtomicInteger probes = new AtomicInteger();
+    FileSystem counting = new LocalFileSystem() {
+      @Override
+      public boolean exists(Path f) throws IOException {
+        probes.incrementAndGet();
+        return super.exists(f);
+      }
+    };
+    counting.initialize(fs.getUri(), fs.getConf());
+    Uploader uploader = new HadoopUploader(fs, counting, false);
+    uploader.upload(path(source), path(new File(dir, "dest")), null);
+    assertEquals("probes of a new file", 0, probes.get());
+    try {
+      uploader.upload(path(source), path(source), null);
+      fail("Expected a FileAlreadyExistsException");
+    } catch (FileAlreadyExistsException expected) {
+      // expected
+    }
+  }
+
+  /**
+   * A multipart upload to a local file only replaces an existing file
+   * when it completes: if it is aborted, the old file is still there.
+   */
+  @Test
+  public void testOverwriteOnComplete() throws Throwable {
+    Path dest = new Path(new File(dir, "dest").toURI());
+    byte[] old = ContractTestUtils.dataset(100, 'a', 26);
+    try (OutputStream out = fs.create(dest)) {
+      out.write(old);
+    }
+    Uploader uploader = new NioUploader(fs, true);
+
+    Uploader.MultipartUpload upload = uploader.initiate(path(source), dest,
+        2);
+    upload.uploadPart(0, 0, 5000, null);
+    assertArrayEquals("before completion", old, read(dest));
+    upload.abort();
+    assertArrayEquals("after abort", old, read(dest));
+    assertNoParts();
+
+    upload = uploader.initiate(path(source), dest, 2);
+    upload.uploadPart(1, 5000, 5000, null);
+    upload.uploadPart(0, 0, 5000, null);
+    assertArrayEquals("before completion", old, read(dest));
+    upload.complete();
+    // read through the checksummed filesystem: no stale checksum is left
+    assertArrayEquals("content", data, read(dest));
+    assertNoParts();
+  }
+
+  @Test
+  public void testCanJoinInPlace() throws Throwable {
+    assertTrue("local", HadoopUploader.canJoinInPlace(fs));
+    // a store without concat(), as S3A and WASB are
+    FileSystem store = new RawLocalFileSystem() {
+      @Override
+      public URI getUri() {
+        return URI.create("store://bucket");
+      }
+    };
+    assertFalse("store", HadoopUploader.canJoinInPlace(store));
+    assertTrue("copy within local", HadoopUploader.canCopy(fs));
+    assertFalse("copy within store", HadoopUploader.canCopy(store));
+  }
+}
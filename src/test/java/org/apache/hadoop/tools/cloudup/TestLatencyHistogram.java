@@ -0,0 +1,93 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.apache.hadoop.tools.cloudup;
+
+import java.util.Random;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+/**
+ * Test the latency histograms: bucketing, precision and percentiles.
+ */
+public class TestLatencyHistogram extends Assert {
+
+  @Test
+  public void testBuckets() throws Throwable {
+    int last = -1;
+    Random random = new Random(0);
+    for (long value = 0; value < Long.MAX_VALUE / 3;
+         value = value * 2 + random.nextInt(3)) {
+      int bucket = LatencyHistogram.bucketOf(value);
+      assertTrue("Bucket of " + value, bucket >= last);
+      long highest = LatencyHistogram.highestOf(bucket);
+      assertTrue("Highest of bucket of " + value, highest >= value);
+      assertEquals("Bucket of highest of " + value, bucket,
+          LatencyHistogram.bucketOf(highest));
+      assertTrue("Precision at " + value,
+          highest - value <= value / LatencyHistogram.SUB_BUCKETS);
+      last = bucket;
+    }
+    assertEquals(0, LatencyHistogram.bucketOf(0));
+    assertEquals(63, LatencyHistogram.bucketOf(63));
+    assertEquals(64, LatencyHistogram.bucketOf(64));
+    assertEquals(Long.MAX_VALUE, LatencyHistogram.highestOf(
+        LatencyHistogram.bucketOf(Long.MAX_VALUE)));
+  }
+
+  @Test
+  public void testPercentiles() throws Throwable {
+    LatencyHistogram h = new LatencyHistogram();
+    assertEquals(0, h.getValueAtPercentile(99));
+    for (int i = 1; i <= 1000; i++) {
+      h.record(i * 1000);
+    }
+    assertEquals(1000, h.getCount());
+    assertEquals(1000000, h.getMax());
+    assertEquals(500500, h.getMean(), 0.001);
+    assertWithin(500000, h.getValueAtPercentile(50));
+    assertWithin(990000, h.getValueAtPercentile(99));
+    assertEquals(1000000, h.getValueAtPercentile(99.9), 1000000 / 64);
+    assertEquals(1000000, h.getValueAtPercentile(100));
+  }
+
+  private static void assertWithin(long expected, long actual) {
+    assertTrue("Expected " + expected + " got " + actual,
+        actual >= expected
+            && actual <= expected + expected / LatencyHistogram.SUB_BUCKETS);
+  }
+
+  @Test
+  public void testSizeRanges() throws Throwable {
+    assertEquals(0, UploadLatencies.sizeRangeOf(0));
+    assertEquals(0, UploadLatencies.sizeRangeOf(65535));
+    assertEquals(1, UploadLatencies.sizeRangeOf(65536));
+    assertEquals(4, UploadLatencies.sizeRangeOf(1L << 40));
+    UploadLatencies latencies = new UploadLatencies();
+    latencies.record(100, 2000000);
+    latencies.record(1 << 20, 5000000);
+    assertEquals(1, latencies.getHistogram(0).getCount());
+    assertEquals(2000, latencies.getHistogram(0).getMax());
+    assertEquals(1, latencies.getHistogram(2 << 20).getCount());
+    String text = latencies.toString();
+    assertTrue(text, text.contains("0-64K"));
+    assertTrue(text, text.contains("p999="));
+    assertFalse(text, text.contains("256M+"));
+  }
+}
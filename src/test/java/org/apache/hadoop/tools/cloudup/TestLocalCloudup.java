@@ -19,10 +19,15 @@
 package org.apache.hadoop.tools.cloudup;
 
 import java.io.File;
+import java.io.FileInputStream;
 import java.io.FileNotFoundException;
+import java.io.FilenameFilter;
 import java.io.IOException;
-import java.util.Set;
-import java.util.TreeSet;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.zip.GZIPInputStream;
 
 import org.junit.After;
 import org.junit.Assert;
@@ -36,13 +41,19 @@ import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import org.apache.commons.io.FileUtils;
+import org.apache.commons.io.IOUtils;
 import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.fs.FileAlreadyExistsException;
 import org.apache.hadoop.fs.FileSystem;
 import org.apache.hadoop.fs.FileUtil;
 import org.apache.hadoop.fs.LocalFileSystem;
 import org.apache.hadoop.fs.LocatedFileStatus;
 import org.apache.hadoop.fs.Path;
 import org.apache.hadoop.fs.RemoteIterator;
+import org.apache.hadoop.fs.contract.ContractTestUtils;
+import org.apache.hadoop.io.BytesWritable;
+import org.apache.hadoop.io.SequenceFile;
+import org.apache.hadoop.io.Text;
 
 import static org.apache.hadoop.tools.cloudup.CloudupTestUtils.*;
 
@@ -160,19 +171,552 @@ public class TestLocalCloudup extends Assert {
         "-t", "4",
         "-l", "3");
 
+    assertEquals("Mismatch in files found", expected, countFiles(destDir));
+
+  }
+
+  @Test
+  public void testCopyRecursiveSerialListing() throws Throwable {
+    int expected = createTestFiles(sourceDir, 16);
+
+    expectSuccess(
+        "-s", sourceDir.toURI().toString(),
+        "-d", destDir.toURI().toString(),
+        "-t", "4",
+        "-w", "0");
+    assertEquals("Mismatch in files found", expected, countFiles(destDir));
+  }
+
+  @Test
+  public void testCopyStreaming() throws Throwable {
+    int expected = createTestFiles(sourceDir, 64);
+
+    expectSuccess(
+        "-s", sourceDir.toURI().toString(),
+        "-d", destDir.toURI().toString(),
+        "-t", "4",
+        "-S",
+        "-W", "8");
+    assertEquals("Mismatch in files found", expected, countFiles(destDir));
+  }
+
+  @Test
+  public void testInflightWindow() throws Throwable {
+    int expected = createTestFiles(sourceDir, 32);
+
+    // a single thread, and a window smaller than any file, so every
+    // submission has to wait for the previous upload to complete
+    expectSuccess(
+        "-s", sourceDir.toURI().toString(),
+        "-d", destDir.toURI().toString(),
+        "-t", "1",
+        "-S",
+        "-W", "4",
+        "-f", "2",
+        "-b", "1");
+    assertEquals("Mismatch in files found", expected, countFiles(destDir));
+  }
+
+  @Test
+  public void testMakespanPolicy() throws Throwable {
+    int expected = createTestFiles(sourceDir, 32);
+
+    expectSuccess(
+        "-s", sourceDir.toURI().toString(),
+        "-d", destDir.toURI().toString(),
+        "-t", "4",
+        "-P", "makespan");
+    assertEquals("Mismatch in files found", expected, countFiles(destDir));
+  }
+
+  @Test
+  public void testPrefixPolicy() throws Throwable {
+    int expected = createTestFiles(sourceDir, 32);
+
+    expectSuccess(
+        "-s", sourceDir.toURI().toString(),
+        "-d", destDir.toURI().toString(),
+        "-t", "4",
+        "-P", "prefix",
+        "-X", "1");
+    assertEquals("Mismatch in files found", expected, countFiles(destDir));
+  }
+
+  @Test
+  public void testLocalityPolicy() throws Throwable {
+    int expected = createTestFiles(sourceDir, 32);
+
+    expectSuccess(
+        "-s", sourceDir.toURI().toString(),
+        "-d", destDir.toURI().toString(),
+        "-t", "4",
+        "-P", "locality");
+    assertEquals("Mismatch in files found", expected, countFiles(destDir));
+  }
+
+  @Test
+  public void testProgress() throws Throwable {
+    int expected = createTestFiles(sourceDir, 16);
+
+    expectSuccess(
+        "-s", sourceDir.toURI().toString(),
+        "-d", destDir.toURI().toString(),
+        "-t", "4",
+        "-S",
+        "-p", "1",
+        "-Z", "1");
+    assertEquals("Mismatch in files found", expected, countFiles(destDir));
+  }
+
+  @Test
+  public void testReport() throws Throwable {
+    int expected = createTestFiles(sourceDir, 16);
+    File report = new File(methodDir, "report.csv");
+
+    expectSuccess(
+        "-s", sourceDir.toURI().toString(),
+        "-d", destDir.toURI().toString(),
+        "-t", "4",
+        "-k", "1k",
+        "-F", report.getAbsolutePath());
+    List<String> lines = FileUtils.readLines(report, "UTF-8");
+    // header, one record per file, and the summary
+    assertEquals("Records in " + report, expected + 2, lines.size());
+    String summary = lines.get(lines.size() - 1);
+    assertTrue(summary, summary.startsWith(UploadReport.SUMMARY + ","));
+    assertTrue(summary, summary.contains(
+        ",succeeded," + FileUtils.sizeOfDirectory(sourceDir) + "," + expected + ",0,"));
+  }
+
+  @Test
+  public void testHistograms() throws Throwable {
+    int expected = createTestFiles(sourceDir, 16);
+    File histograms = new File(methodDir, "latencies.tsv");
+    File metrics = new File(methodDir, "cloudup.prom");
+
+    expectSuccess(
+        "-s", sourceDir.toURI().toString(),
+        "-d", destDir.toURI().toString(),
+        "-t", "4",
+        "-H", histograms.getAbsolutePath(),
+        "-M", metrics.getAbsolutePath());
+    assertEquals("Mismatch in files found", expected, countFiles(destDir));
+    List<String> lines = FileUtils.readLines(histograms, "UTF-8");
+    assertEquals("size\tcount\tmean\tp50\tp90\tp99\tp999\tmax",
+        lines.get(0));
+    String all = lines.get(lines.size() - 1);
+    assertTrue(all, all.startsWith("all\t" + expected + "\t"));
+    List<String> prometheus = FileUtils.readLines(metrics, "UTF-8");
+    assertTrue(prometheus.toString(),
+        prometheus.contains("cloudup_completed_files_total " + expected));
+  }
+
+  @Test
+  public void testMultipart() throws Throwable {
+    int expected = createTestFiles(sourceDir, 8);
+    File huge = new File(sourceDir, "subdir/huge");
+    FileUtils.writeByteArrayToFile(huge,
+        ContractTestUtils.dataset(100000, 0, 255));
+    expected++;
+
+    // "largest" and "huge" are above the threshold
+    expectSuccess(
+        "-s", sourceDir.toURI().toString(),
+        "-d", destDir.toURI().toString(),
+        "-t", "4",
+        "-T", "8k",
+        "-B", "3000");
+    // no parts are left behind
+    assertEquals("Mismatch in files found", expected, countFiles(destDir));
+    assertTrue("Content of " + huge, FileUtils.contentEquals(huge,
+        new File(destDir, "subdir/huge")));
+    assertTrue("Content of largest", FileUtils.contentEquals(
+        new File(sourceDir, "subdir/largest"),
+        new File(destDir, "subdir/largest")));
+  }
+
+  @Test
+  public void testNioEngine() throws Throwable {
+    int expected = createTestFiles(sourceDir, 8);
+    File huge = new File(sourceDir, "subdir/huge");
+    FileUtils.writeByteArrayToFile(huge,
+        ContractTestUtils.dataset(100000, 0, 255));
+    expected++;
+
+    expectSuccess(
+        "-s", sourceDir.toURI().toString(),
+        "-d", destDir.toURI().toString(),
+        "-e", "nio",
+        "-t", "4",
+        "-T", "8k",
+        "-B", "3000");
+    assertEquals("Mismatch in files found", expected, countFiles(destDir));
+    assertTrue("Content of " + huge, FileUtils.contentEquals(huge,
+        new File(destDir, "subdir/huge")));
+
+    // a second upload must not overwrite the files
+    expectException(IOException.class,
+        "-s", sourceDir.toURI().toString(),
+        "-d", destDir.toURI().toString(),
+        "-e", "nio");
+    expectSuccess(
+        "-s", sourceDir.toURI().toString(),
+        "-d", destDir.toURI().toString(),
+        "-e", "nio",
+        "-o");
+    assertEquals("Mismatch in files found", expected, countFiles(destDir));
+    assertTrue("Content of largest", FileUtils.contentEquals(
+        new File(sourceDir, "subdir/largest"),
+        new File(destDir, "subdir/largest")));
+  }
+
+  @Test
+  public void testNoOverwriteHadoopEngine() throws Throwable {
+    int expected = createTestFiles(sourceDir, 8);
+    expectSuccess(
+        "-s", sourceDir.toURI().toString(),
+        "-d", destDir.toURI().toString(),
+        "-t", "4",
+        "-T", "8k",
+        "-B", "3000");
+
+    // existing files fail at once, whole or in parts: they are not retried
+    expectException(FileAlreadyExistsException.class,
+        "-s", sourceDir.toURI().toString(),
+        "-d", destDir.toURI().toString(),
+        "-t", "4",
+        "-T", "8k",
+        "-B", "3000");
+    expectException(FileAlreadyExistsException.class,
+        "-s", sourceDir.toURI().toString(),
+        "-d", destDir.toURI().toString(),
+        "-t", "4");
+    assertEquals("Mismatch in files found", expected, countFiles(destDir));
+  }
+
+  @Test
+  public void testUnknownEngine() throws Throwable {
+    expectException(IllegalArgumentException.class,
+        "-s", sourceDir.toURI().toString(),
+        "-d", destDir.toURI().toString(),
+        "-e", "unknown");
+  }
+
+  @Test
+  public void testPacking() throws Throwable {
+    int expected = createTestFiles(sourceDir, 32);
+
+    // everything but "largest" is packed, five files per container
+    expectSuccess(
+        "-s", sourceDir.toURI().toString(),
+        "-d", destDir.toURI().toString(),
+        "-t", "4",
+        "-k", "1k",
+        "-K", "200");
+    assertTrue("Not uploaded: largest", FileUtils.contentEquals(
+        new File(sourceDir, "subdir/largest"),
+        new File(destDir, "subdir/largest")));
+    assertFalse("Small file not packed",
+        new File(destDir, "subdir/file-00").exists());
+
+    // every container has an index, listing only its own files
+    File packed = new File(destDir, Packer.PACK_DIR);
+    File[] indices = packed.listFiles(new FilenameFilter() {
+      @Override
+      public boolean accept(File dir, String name) {
+        return name.endsWith(".tsv");
+      }
+    });
+    List<String> lines = new ArrayList<>();
+    for (File index : indices) {
+      String name = index.getName();
+      assertTrue("Index name " + name,
+          name.matches("pack-\\d{8}-\\d{6}-[0-9a-f]{8}-\\d{5}\\.tsv"));
+      String container = name.replace(".tsv", ".seq");
+      assertTrue("No container " + container,
+          new File(packed, container).exists());
+      for (String line : FileUtils.readLines(index, "UTF-8")) {
+        assertTrue("Line of " + name + ": " + line,
+            line.startsWith(container + "\t"));
+        lines.add(line);
+      }
+    }
+    assertEquals("Files in indices", expected - 1, lines.size());
+    assertEquals("Containers", indices.length,
+        packed.listFiles(new FilenameFilter() {
+          @Override
+          public boolean accept(File dir, String name) {
+            return name.endsWith(".seq");
+          }
+        }).length);
+
+    // every file can be read from its container at the indexed offset
+    Configuration conf = new Configuration();
+    LocalFileSystem local = FileSystem.getLocal(conf);
+    for (String line : lines) {
+      String[] fields = line.split("\t");
+      assertEquals("Fields in " + line, 5, fields.length);
+      Path container = new Path(new Path(packed.toURI()), fields[0]);
+      try (SequenceFile.Reader reader = new SequenceFile.Reader(conf,
+          SequenceFile.Reader.file(local.makeQualified(container)))) {
+        reader.seek(Long.parseLong(fields[1]));
+        Text key = new Text();
+        BytesWritable value = new BytesWritable();
+        assertTrue("No record at " + line, reader.next(key, value));
+        assertEquals("Key at " + line, fields[4], key.toString());
+        byte[] data = FileUtils.readFileToByteArray(
+            new File(sourceDir, fields[4]));
+        assertEquals("Size of " + line, Integer.parseInt(fields[2]),
+            value.getLength());
+        assertArrayEquals("Content of " + line, data,
+            Arrays.copyOf(value.getBytes(), value.getLength()));
+      }
+    }
+  }
+
+  @Test
+  public void testPackThresholdLimits() throws Throwable {
+    // a file over 2 GB cannot be held in a pack's buffer
+    expectException(IllegalArgumentException.class,
+        "-s", sourceDir.toURI().toString(),
+        "-d", destDir.toURI().toString(),
+        "-k", "3g",
+        "-K", "4g");
+    expectException(IllegalArgumentException.class,
+        "-s", sourceDir.toURI().toString(),
+        "-d", destDir.toURI().toString(),
+        "-k", "300m");
+  }
+
+  @Test
+  public void testChecksums() throws Throwable {
+    int expected = createTestFiles(sourceDir, 4);
+    File huge = new File(sourceDir, "subdir/huge");
+    FileUtils.writeByteArrayToFile(huge,
+        ContractTestUtils.dataset(100000, 0, 255));
+
+    // whole files, parts and packed files are all checksummed
+    expectSuccess(
+        "-s", sourceDir.toURI().toString(),
+        "-d", destDir.toURI().toString(),
+        "-C", "md5,crc32c",
+        "-T", "64k",
+        "-B", "30000",
+        "-k", "16");
+    assertTrue("Content of " + huge, FileUtils.contentEquals(huge,
+        new File(destDir, "subdir/huge")));
+    assertFalse("Not packed: top", new File(destDir, "top").exists());
+    // "huge" is added; "top" is replaced by its container and the index
+    assertEquals("Mismatch in files found", expected + 2,
+        countFiles(destDir));
+  }
+
+  @Test
+  public void testCompression() throws Throwable {
+    int expected = createTestFiles(sourceDir, 4);
+    File log = new File(sourceDir, "subdir/log");
+    StringBuilder text = new StringBuilder();
+    for (int i = 0; i < 10000; i++) {
+      text.append("line ").append(i).append('\n');
+    }
+    FileUtils.write(log, text);
+    expected++;
+
+    // the log is compressed in four blocks, which are concatenated
+    expectSuccess(
+        "-s", sourceDir.toURI().toString(),
+        "-d", destDir.toURI().toString(),
+        "-t", "4",
+        "-z", "gzip",
+        "-B", "30000");
+    assertEquals("Mismatch in files found", expected, countFiles(destDir));
+    File compressed = new File(destDir, "subdir/log.gz");
+    assertTrue("Not compressed: " + compressed,
+        compressed.length() < log.length() / 2);
+    try (InputStream in = new GZIPInputStream(
+        new FileInputStream(compressed))) {
+      assertEquals("Content of " + compressed, text.toString(),
+          IOUtils.toString(in, "UTF-8"));
+    }
+    try (InputStream in = new GZIPInputStream(
+        new FileInputStream(new File(destDir, "top.gz")))) {
+      assertEquals("toplevel", IOUtils.toString(in, "UTF-8"));
+    }
+  }
+
+  @Test
+  public void testDeviceLimit() throws Throwable {
+    int expected = createTestFiles(sourceDir, 16);
+    expectSuccess(
+        "-s", sourceDir.toURI().toString(),
+        "-d", destDir.toURI().toString(),
+        "-t", "4",
+        "-v", "1");
+    assertEquals("Mismatch in files found", expected, countFiles(destDir));
+  }
+
+  @Test
+  public void testReadAhead() throws Throwable {
+    int expected = createTestFiles(sourceDir, 16);
+    File huge = new File(sourceDir, "subdir/huge");
+    FileUtils.writeByteArrayToFile(huge,
+        ContractTestUtils.dataset(100000, 0, 255));
+    expected++;
+
+    // with a tiny memory limit, most files are read by the workers;
+    // "huge" is too large to be read ahead at all
+    expectSuccess(
+        "-s", sourceDir.toURI().toString(),
+        "-d", destDir.toURI().toString(),
+        "-t", "4",
+        "-A", "1k",
+        "-C", "md5");
+    assertEquals("Mismatch in files found", expected, countFiles(destDir));
+    assertTrue("Content of " + huge, FileUtils.contentEquals(huge,
+        new File(destDir, "subdir/huge")));
+
+    expectSuccess(
+        "-s", sourceDir.toURI().toString(),
+        "-d", destDir.toURI().toString(),
+        "-t", "4",
+        "-A", "1m",
+        "-e", "nio",
+        "-o");
+    assertEquals("Mismatch in files found", expected, countFiles(destDir));
+    assertTrue("Content of largest", FileUtils.contentEquals(
+        new File(sourceDir, "subdir/largest"),
+        new File(destDir, "subdir/largest")));
+  }
+
+  @Test
+  public void testDedup() throws Throwable {
+    int expected = createTestFiles(sourceDir, 4);
+    byte[] data = ContractTestUtils.dataset(100000, 0, 255);
+    String[] copies = {"copy1", "subdir/copy2", "subdir/copy3"};
+    for (String copy : copies) {
+      FileUtils.writeByteArrayToFile(new File(sourceDir, copy), data);
+      expected++;
+    }
+    // same size, different content
+    FileUtils.writeByteArrayToFile(new File(sourceDir, "other"),
+        ContractTestUtils.dataset(100000, 1, 255));
+    expected++;
+
+    expectSuccess(
+        "-s", sourceDir.toURI().toString(),
+        "-d", destDir.toURI().toString(),
+        "-t", "4",
+        "-G");
+    assertEquals("Mismatch in files found", expected, countFiles(destDir));
+    for (String copy : copies) {
+      assertTrue("Content of " + copy, FileUtils.contentEquals(
+          new File(sourceDir, copy), new File(destDir, copy)));
+    }
+    assertTrue("Content of other", FileUtils.contentEquals(
+        new File(sourceDir, "other"), new File(destDir, "other")));
+  }
+
+  @Test
+  public void testManifest() throws Throwable {
+    createTestFiles(sourceDir, 4);
+    File manifest = new File(methodDir, "manifest.csv");
+    FileUtils.write(manifest,
+        "# manifest\n"
+        + "top\n"
+        + "subdir/file-01,7\r\n"
+        + "\n"
+        + "\"subdir/file-02\",,renamed\n"
+        + new File(sourceDir, "subdir/largest").getAbsolutePath() + ",8192");
+
+    expectSuccess(
+        "-s", sourceDir.toURI().toString(),
+        "-d", destDir.toURI().toString(),
+        "-m", manifest.getAbsolutePath(),
+        "-t", "2");
+    assertEquals("Mismatch in files found", 4, countFiles(destDir));
+    assertTrue("Not uploaded: top", new File(destDir, "top").isFile());
+    assertTrue("Not renamed", new File(destDir, "renamed").isFile());
+    assertFalse("Uploaded an unlisted file",
+        new File(destDir, "subdir/file-00").exists());
+  }
+
+  @Test
+  public void testUpdate() throws Throwable {
+    int expected = createTestFiles(sourceDir, 16);
+    String[] args = {
+        "-s", sourceDir.toURI().toString(),
+        "-d", destDir.toURI().toString(),
+        "-t", "4",
+        "-u", "-U"};
+    expectSuccess(args);
+    assertEquals("Mismatch in files found", expected, countFiles(destDir));
+
+    // without overwrite, any upload of an existing file would fail
+    expectSuccess(args);
+
+    // change a file; now an upload is attempted, and fails
+    File changed = new File(sourceDir, "top");
+    FileUtils.write(changed, "changed content");
+    expectException(IOException.class, args);
+  }
+
+  @Test
+  public void testJournalAndResume() throws Throwable {
+    int expected = createTestFiles(sourceDir, 16);
+    File journal = new File(methodDir, "journal.txt");
+    expectSuccess(
+        "-s", sourceDir.toURI().toString(),
+        "-d", destDir.toURI().toString(),
+        "-t", "4",
+        "-j", journal.getAbsolutePath());
+    assertEquals("Mismatch in files found", expected, countFiles(destDir));
+    List<String> records = FileUtils.readLines(journal);
+    assertEquals("Records in " + journal, 2 * expected, records.size());
+
+    // simulate a failure before the upload of "top" completed
+    File top = new File(destDir, "top");
+    assertTrue("Failed to delete " + top, top.delete());
+    List<String> truncated = new ArrayList<>();
+    for (String record : records) {
+      if (!(record.startsWith("succeeded") && record.endsWith("/top"))) {
+        truncated.add(record);
+      }
+    }
+    assertEquals(2 * expected - 1, truncated.size());
+    FileUtils.writeLines(journal, truncated);
+    // and a record torn by a crash while it was written
+    FileUtils.write(journal, "succeeded\t1", true);
+
+    // without overwrite, the upload of any completed file would fail
+    expectSuccess(
+        "-s", sourceDir.toURI().toString(),
+        "-d", destDir.toURI().toString(),
+        "-t", "4",
+        "-r", journal.getAbsolutePath());
+    assertTrue("Not uploaded on resume: " + top, top.isFile());
+    records = FileUtils.readLines(journal);
+    assertEquals("Records in " + journal, 2 * expected + 2, records.size());
+    assertEquals("Torn record", "succeeded\t1",
+        records.get(2 * expected - 1));
+  }
+
+  /**
+   * List all files under a directory in the local FS.
+   * @param dir directory
+   * @return the number of files found
+   * @throws IOException listing failure
+   */
+  private int countFiles(File dir) throws IOException {
     LocalFileSystem local = FileSystem.getLocal(new Configuration());
-    Set<String> entries = new TreeSet<>();
     RemoteIterator<LocatedFileStatus> iterator
-        = local.listFiles(new Path(destDir.toURI()), true);
+        = local.listFiles(new Path(dir.toURI()), true);
     int count = 0;
     while (iterator.hasNext()) {
       LocatedFileStatus next = iterator.next();
-      entries.add(next.getPath().toUri().toString());
       LOG.info("Entry {} size = {}", next.getPath(), next.getLen());
       count++;
     }
-    assertEquals("Mismatch in files found", expected, count);
-
+    return count;
   }
 
 }
@@ -0,0 +1,105 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.apache.hadoop.tools.cloudup;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import org.apache.hadoop.fs.Path;
+
+/**
+ * Test the grouping, interleaving and limiting of destination prefixes.
+ */
+public class TestPrefixLimiter extends Assert {
+
+  private static final Path DEST = new Path("s3a://bucket/dest");
+
+  private static final Runnable NOOP = new Runnable() {
+    @Override
+    public void run() {
+    }
+  };
+
+  @Test
+  public void testPrefixOf() throws Throwable {
+    PrefixLimiter limiter = new PrefixLimiter(DEST, 2, 0);
+    assertEquals("a/b/", limiter.prefixOf("s3a://bucket/dest/a/b/c/d/"));
+    assertEquals("a/b/", limiter.prefixOf(new Path(DEST, "a/b/c/file")));
+    assertEquals("a/", limiter.prefixOf(new Path(DEST, "a/file")));
+    assertEquals("", limiter.prefixOf(new Path(DEST, "file")));
+    assertEquals("s3a://bucket/other/",
+        limiter.prefixOf(new Path("s3a://bucket/other/file")));
+    assertEquals("", new PrefixLimiter(DEST, 0, 0)
+        .prefixOf(new Path(DEST, "a/b/file")));
+  }
+
+  @Test
+  public void testInterleave() throws Throwable {
+    UploadTable table = new UploadTable();
+    // five files under "a", two under "b", one under "c"
+    String[] files = {"a/1", "a/2", "a/x/3", "b/1", "a/4", "b/2", "c/1",
+        "a/5"};
+    for (String file : files) {
+      table.add(new Path("file:/src/" + file), 1, new Path(DEST, file));
+    }
+    int[] order = new PrefixLimiter(DEST, 1, 0)
+        .interleave(table, new int[]{0, 1, 2, 3, 4, 5, 6, 7});
+    assertArrayEquals(new int[]{0, 3, 6, 1, 5, 2, 4, 7}, order);
+  }
+
+  @Test
+  public void testInterleaveRuns() throws Throwable {
+    UploadTable table = new UploadTable();
+    // four files under "a", in two directories, and two under "b"
+    String[] files = {"a/1", "a/2", "a/3", "a/x/4", "b/1", "b/2"};
+    for (String file : files) {
+      table.add(new Path("file:/src/" + file), 1, new Path(DEST, file));
+    }
+    int[] order = new PrefixLimiter(DEST, 1, 0)
+        .interleaveRuns(table, new int[]{0, 1, 2, 3, 4, 5}, 2);
+    // runs: a/1 a/2; a/3; a/x/4; b/1 b/2
+    assertArrayEquals(new int[]{0, 1, 4, 5, 2, 3}, order);
+  }
+
+  @Test
+  public void testRoundRobin() throws Throwable {
+    int[] order = {7, 6, 5, 4, 3, 2};
+    int[] keys = {0, 0, 0, 1, 2, 1};
+    assertArrayEquals(new int[]{7, 4, 3, 6, 2, 5},
+        PrefixLimiter.roundRobin(order, keys, 3));
+  }
+
+  @Test
+  public void testLimit() throws Throwable {
+    PrefixLimiter limiter = new PrefixLimiter(DEST, 1, 2);
+    Runnable third = new Runnable() {
+      @Override
+      public void run() {
+      }
+    };
+    assertTrue(limiter.admit("a/", NOOP));
+    assertTrue(limiter.admit("a/", NOOP));
+    assertFalse("Admitted above the limit", limiter.admit("a/", third));
+    assertTrue("Other prefix blocked", limiter.admit("b/", NOOP));
+    assertSame(third, limiter.release("a/"));
+    assertNull(limiter.release("a/"));
+    assertNull(limiter.release("a/"));
+    assertTrue(limiter.admit("a/", NOOP));
+  }
+}
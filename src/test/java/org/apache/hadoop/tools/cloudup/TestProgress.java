@@ -0,0 +1,78 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.apache.hadoop.tools.cloudup;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+/**
+ * Test the striped counters and the progress report built from them.
+ */
+public class TestProgress extends Assert {
+
+  @Test
+  public void testStripedCounter() throws Throwable {
+    final StripedCounter counter = new StripedCounter(4);
+    Thread[] threads = new Thread[8];
+    for (int t = 0; t < threads.length; t++) {
+      threads[t] = new Thread() {
+        @Override
+        public void run() {
+          for (int i = 0; i < 100000; i++) {
+            counter.increment();
+          }
+        }
+      };
+      threads[t].start();
+    }
+    for (Thread thread : threads) {
+      thread.join();
+    }
+    assertEquals(800000, counter.sum());
+    counter.add(-800000);
+    assertEquals(0, counter.sum());
+  }
+
+  @Test
+  public void testReport() throws Throwable {
+    Progress progress = new Progress();
+    progress.expect(4, 40000000);
+    long start = 1000000;
+    progress.report(start);
+    for (int i = 0; i < 3; i++) {
+      progress.submitted(10000000);
+    }
+    progress.transferred(20000000);
+    progress.finished(10000000, false);
+    progress.finished(10000000, true);
+    String report = progress.report(start + 10000);
+    assertTrue(report, report.startsWith(
+        "2/4 files (1 failed), 20.0 MB/40.0 MB (50.0%);"
+            + " in flight 1 files, 10.0 MB;"
+            + " 2.00 MB/s (10s), 2.00 MB/s (1m), 0.2 files/s"));
+    assertTrue(report, report.endsWith("ETA unknown until listed"));
+
+    progress.listed();
+    progress.transferred(20000000);
+    report = progress.report(start + 20000);
+    // 40MB in 20s; 20MB remaining
+    assertTrue(report, report.contains("2.00 MB/s (1m)"));
+    assertTrue(report, report.endsWith("ETA 0:10:000"));
+  }
+}
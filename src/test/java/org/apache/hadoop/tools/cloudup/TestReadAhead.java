@@ -0,0 +1,136 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.apache.hadoop.tools.cloudup;
+
+import java.io.File;
+import java.util.Arrays;
+
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+import org.apache.commons.io.FileUtils;
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.FileUtil;
+import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.fs.contract.ContractTestUtils;
+
+import static org.apache.hadoop.tools.cloudup.CloudupTestUtils.*;
+
+/**
+ * Test the read-ahead stage: files read in the background are handed
+ * over, files not yet read are taken back, and memory is bounded.
+ */
+public class TestReadAhead extends Assert {
+
+  private File dir;
+
+  private FileSystem fs;
+
+  private ReadAhead readAhead;
+
+  @Before
+  public void setup() throws Exception {
+    dir = new File(createTestDir(), "read-ahead");
+    mkdirs(dir);
+    fs = FileSystem.getLocal(new Configuration());
+  }
+
+  @After
+  public void teardown() throws Exception {
+    if (readAhead != null) {
+      readAhead.close();
+    }
+    FileUtil.fullyDelete(dir);
+  }
+
+  private Path createFile(String name, byte[] data) throws Exception {
+    File file = new File(dir, name);
+    FileUtils.writeByteArrayToFile(file, data);
+    return new Path(file.toURI());
+  }
+
+  /**
+   * Wait for the readers to have reserved a number of bytes.
+   */
+  private void awaitUsed(long used) throws InterruptedException {
+    for (int i = 0; i < 500 && readAhead.getUsed() != used; i++) {
+      Thread.sleep(10);
+    }
+    assertEquals("Memory used by " + readAhead, used, readAhead.getUsed());
+  }
+
+  @Test
+  public void testTake() throws Throwable {
+    byte[] data = ContractTestUtils.dataset(1000, 0, 255);
+    Path source = createFile("file", data);
+    readAhead = new ReadAhead(fs, 4096, 1);
+    readAhead.prefetch(source, data.length);
+    awaitUsed(data.length);
+    byte[] read = readAhead.take(source);
+    assertTrue("Not read ahead: " + readAhead, Arrays.equals(data, read));
+    readAhead.release(read);
+    assertEquals(0, readAhead.getUsed());
+    assertNull("Taken twice", readAhead.take(source));
+  }
+
+  @Test
+  public void testTooLarge() throws Throwable {
+    byte[] data = ContractTestUtils.dataset(2000, 0, 255);
+    Path source = createFile("file", data);
+    readAhead = new ReadAhead(fs, 4096, 1);
+    assertEquals(1024, readAhead.getMaxFileSize());
+    readAhead.prefetch(source, data.length);
+    assertNull("Read ahead", readAhead.take(source));
+  }
+
+  @Test
+  public void testMemoryBound() throws Throwable {
+    byte[] data = ContractTestUtils.dataset(1000, 0, 255);
+    Path[] sources = new Path[5];
+    readAhead = new ReadAhead(fs, 4000, 1);
+    for (int i = 0; i < sources.length; i++) {
+      sources[i] = createFile("file-" + i, data);
+      readAhead.prefetch(sources[i], data.length);
+    }
+    // four files fit; the reader waits for memory for the last
+    awaitUsed(4000);
+    assertNull("Not taken back", readAhead.take(sources[4]));
+    for (int i = 0; i < 4; i++) {
+      byte[] read = readAhead.take(sources[i]);
+      assertTrue("Not read ahead: " + sources[i], Arrays.equals(data, read));
+      readAhead.release(read);
+    }
+    assertEquals(0, readAhead.getUsed());
+  }
+
+  @Test
+  public void testDiscard() throws Throwable {
+    byte[] data = ContractTestUtils.dataset(1000, 0, 255);
+    Path source = createFile("file", data);
+    readAhead = new ReadAhead(fs, 4000, 1);
+    readAhead.prefetch(source, data.length);
+    awaitUsed(data.length);
+    readAhead.discard(source);
+    awaitUsed(0);
+    assertNull("Taken after discard", readAhead.take(source));
+  }
+}
@@ -0,0 +1,149 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package org.apache.hadoop.tools.cloudup;
+
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.util.Random;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executor;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Test;
+
+import org.apache.hadoop.fs.FileAlreadyExistsException;
+
+/**
+ * Test the retry scheduler: which failures are retried, the backoff,
+ * the budget and the dispatch of retries.
+ */
+public class TestRetryScheduler extends Assert {
+
+  private static final IOException FAILURE = new IOException("503");
+
+  /** Executor which runs operations in the calling thread. */
+  private final Executor direct = new Executor() {
+    @Override
+    public void execute(Runnable command) {
+      command.run();
+    }
+  };
+
+  private RetryScheduler scheduler;
+
+  @After
+  public void teardown() {
+    if (scheduler != null) {
+      scheduler.close();
+    }
+  }
+
+  private RetryScheduler create(int maxRetries, int budget,
+      long baseDelay) {
+    scheduler = new RetryScheduler(direct, maxRetries, budget, baseDelay,
+        60000, new Random(0));
+    return scheduler;
+  }
+
+  /**
+   * Operation which counts down a latch when run.
+   */
+  private static Runnable countDown(final CountDownLatch latch) {
+    return new Runnable() {
+      @Override
+      public void run() {
+        latch.countDown();
+      }
+    };
+  }
+
+  @Test
+  public void testRetryable() throws Throwable {
+    assertTrue(RetryScheduler.isRetryable(FAILURE));
+    assertFalse(RetryScheduler.isRetryable(new FileNotFoundException()));
+    assertFalse(RetryScheduler.isRetryable(
+        new FileAlreadyExistsException()));
+    RetryScheduler retries = create(3, 10, 60000);
+    Runnable op = countDown(new CountDownLatch(1));
+    assertEquals(-1, retries.retry(op, 0, new FileNotFoundException()));
+    assertTrue(retries.retry(op, 0, FAILURE) >= 0);
+    assertTrue(retries.retry(op, 2, FAILURE) >= 0);
+    assertEquals("no more retries", -1, retries.retry(op, 3, FAILURE));
+    assertEquals(2, retries.getRetries());
+  }
+
+  @Test
+  public void testBackoff() throws Throwable {
+    RetryScheduler retries = create(10, 10, 10);
+    long ceiling = 10;
+    for (int attempt = 0; attempt < 10; attempt++) {
+      long max = 0;
+      for (int i = 0; i < 100; i++) {
+        long delay = retries.delay(attempt);
+        assertTrue("delay " + delay + " above " + ceiling,
+            delay >= 0 && delay < ceiling);
+        max = Math.max(max, delay);
+      }
+      // the delays are spread up to the ceiling
+      assertTrue("max delay " + max + " of " + ceiling,
+          max >= ceiling / 2);
+      ceiling = Math.min(ceiling * 2, 60000);
+    }
+  }
+
+  @Test
+  public void testBudget() throws Throwable {
+    RetryScheduler retries = create(3, 2, 60000);
+    Runnable op = countDown(new CountDownLatch(1));
+    assertTrue(retries.retry(op, 0, FAILURE) >= 0);
+    assertTrue(retries.retry(op, 0, FAILURE) >= 0);
+    assertEquals("budget spent", -1, retries.retry(op, 0, FAILURE));
+    // ten successes earn one retry
+    for (int i = 0; i < 9; i++) {
+      retries.succeeded();
+    }
+    assertEquals(-1, retries.retry(op, 0, FAILURE));
+    retries.succeeded();
+    assertTrue(retries.retry(op, 0, FAILURE) >= 0);
+    assertEquals(-1, retries.retry(op, 0, FAILURE));
+  }
+
+  @Test
+  public void testDispatch() throws Throwable {
+    RetryScheduler retries = create(3, 10, 10);
+    CountDownLatch latch = new CountDownLatch(3);
+    for (int i = 0; i < 3; i++) {
+      assertTrue(retries.retry(countDown(latch), 0, FAILURE) >= 0);
+    }
+    assertTrue("retries not run", latch.await(10, TimeUnit.SECONDS));
+  }
+
+  @Test
+  public void testExpedite() throws Throwable {
+    RetryScheduler retries = create(3, 10, 1000);
+    CountDownLatch latch = new CountDownLatch(2);
+    assertTrue(retries.retry(countDown(latch), 0, FAILURE) >= 0);
+    assertTrue(retries.retry(countDown(latch), 2, FAILURE) >= 0);
+    retries.expedite();
+    assertEquals("retries not run", 0, latch.getCount());
+  }
+}
@@ -0,0 +1,110 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.apache.hadoop.tools.cloudup;
+
+import java.io.File;
+import java.lang.management.ManagementFactory;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+import org.apache.commons.io.FileUtils;
+import org.apache.hadoop.fs.FileUtil;
+
+import static org.apache.hadoop.tools.cloudup.CloudupTestUtils.*;
+
+/**
+ * Test the metrics of an upload, through JMX and the Prometheus file.
+ */
+public class TestUploadMetrics extends Assert {
+
+  private File dir;
+
+  private ThreadPoolExecutor pool;
+
+  private RetryScheduler retryScheduler;
+
+  private final Progress progress = new Progress();
+
+  private final InflightWindow inflight = new InflightWindow(10, 0);
+
+  private UploadMetrics metrics;
+
+  @Before
+  public void setup() throws Exception {
+    dir = createTestDir();
+    pool = new ThreadPoolExecutor(2, 2, 0L, TimeUnit.MILLISECONDS,
+        new LinkedBlockingQueue<Runnable>());
+    retryScheduler = new RetryScheduler(pool, 3, 100, 1, 1, new Random(0));
+    metrics = new UploadMetrics(progress, inflight, pool, retryScheduler);
+    inflight.acquire(100);
+    progress.expect(3, 300);
+    progress.submitted(100);
+    progress.finished(100, true);
+    progress.throttled();
+  }
+
+  @After
+  public void teardown() throws Exception {
+    metrics.stop();
+    retryScheduler.close();
+    pool.shutdown();
+    FileUtil.fullyDelete(dir);
+  }
+
+  @Test
+  public void testMXBean() throws Throwable {
+    metrics.register();
+    ObjectName name = metrics.getMBeanName();
+    assertNotNull("Not registered", name);
+    MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+    assertEquals(1, server.getAttribute(name, "InflightFiles"));
+    assertEquals(100L, server.getAttribute(name, "InflightBytes"));
+    assertEquals(1L, server.getAttribute(name, "FailedFiles"));
+    assertEquals(2, server.getAttribute(name, "WorkerThreads"));
+    metrics.stop();
+    assertFalse("Still registered", server.isRegistered(name));
+  }
+
+  @Test
+  public void testPrometheusFile() throws Throwable {
+    File file = new File(dir, "cloudup.prom");
+    metrics.start(file, 60000);
+    metrics.stop();
+    List<String> lines = FileUtils.readLines(file, "UTF-8");
+    assertTrue(lines.toString(), lines.contains("cloudup_running 0"));
+    assertTrue(lines.toString(), lines.contains(
+        "# TYPE cloudup_failed_files_total counter"));
+    assertTrue(lines.toString(), lines.contains(
+        "cloudup_failed_files_total 1"));
+    assertTrue(lines.toString(), lines.contains(
+        "cloudup_throttled_requests_total 1"));
+    assertTrue(lines.toString(), lines.contains("cloudup_expected_bytes 300"));
+    assertEquals("Files in " + dir, 1, dir.list().length);
+  }
+}
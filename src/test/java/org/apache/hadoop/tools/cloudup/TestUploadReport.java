@@ -0,0 +1,160 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.apache.hadoop.tools.cloudup;
+
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+
+import org.apache.avro.file.DataFileReader;
+import org.apache.avro.generic.GenericDatumReader;
+import org.apache.avro.generic.GenericRecord;
+import org.codehaus.jackson.map.ObjectMapper;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+import org.apache.commons.io.FileUtils;
+import org.apache.hadoop.fs.FileUtil;
+import org.apache.hadoop.fs.Path;
+
+import static org.apache.hadoop.tools.cloudup.CloudupTestUtils.*;
+
+/**
+ * Test the upload report in each of its formats.
+ */
+public class TestUploadReport extends Assert {
+
+  private static final Path SOURCE = new Path("file:/src");
+
+  private static final Path DEST = new Path("s3a://bucket/dest");
+
+  private File dir;
+
+  @Before
+  public void setup() throws Exception {
+    dir = createTestDir();
+  }
+
+  @After
+  public void teardown() throws Exception {
+    FileUtil.fullyDelete(dir);
+  }
+
+  /**
+   * Write a report of two successful uploads and a failed one.
+   * @param format format of the report
+   * @return the report file
+   * @throws Exception failure
+   */
+  private File writeReport(UploadReport.Format format) throws Exception {
+    File file = new File(dir, "report." + format);
+    UploadReport report = new UploadReport(file, format, SOURCE, DEST);
+    for (int i = 0; i < 2; i++) {
+      UploadEntry upload = new UploadEntry(new Path(SOURCE, "file" + i),
+          100);
+      upload.setState(UploadEntry.State.succeeded);
+      upload.setStartTime(1000);
+      upload.setEndTime(2000);
+      upload.setDigest("md5=abc");
+      report.record(upload, new Path(DEST, "file" + i));
+    }
+    UploadEntry failed = new UploadEntry(new Path(SOURCE, "a,\"b\""), 50);
+    failed.setState(UploadEntry.State.failed);
+    failed.setException(new FileNotFoundException("gone"));
+    report.record(failed, new Path(DEST, "a,\"b\""));
+    report.close();
+    return file;
+  }
+
+  @Test
+  public void testCsv() throws Throwable {
+    List<String> lines = FileUtils.readLines(
+        writeReport(UploadReport.Format.csv), "UTF-8");
+    assertEquals(5, lines.size());
+    assertEquals("type,source,dest,state,size,files,failed,start,end,"
+        + "digest,error", lines.get(0));
+    assertEquals("file,file:/src/file0,s3a://bucket/dest/file0,succeeded,"
+        + "100,1,0,1000,2000,md5=abc,", lines.get(1));
+    assertEquals("file,\"file:/src/a,\"\"b\"\"\","
+        + "\"s3a://bucket/dest/a,\"\"b\"\"\",failed,50,1,1,0,0,,"
+        + "java.io.FileNotFoundException: gone", lines.get(3));
+    assertTrue(lines.get(4),
+        lines.get(4).startsWith("summary,file:/src,s3a://bucket/dest,"
+            + "failed,200,3,1,"));
+  }
+
+  @Test
+  public void testJson() throws Throwable {
+    ObjectMapper mapper = new ObjectMapper();
+    List<Map<?, ?>> records = new ArrayList<>();
+    for (String line : FileUtils.readLines(
+        writeReport(UploadReport.Format.json), "UTF-8")) {
+      records.add(mapper.readValue(line, Map.class));
+    }
+    assertEquals(4, records.size());
+    Map<?, ?> first = records.get(0);
+    assertEquals(UploadReport.FILE, first.get("type"));
+    assertEquals("md5=abc", first.get("digest"));
+    assertEquals(100, ((Number) first.get("size")).intValue());
+    assertFalse("error in " + first, first.containsKey("error"));
+    Map<?, ?> summary = records.get(3);
+    assertEquals(UploadReport.SUMMARY, summary.get("type"));
+    assertEquals(3, ((Number) summary.get("files")).intValue());
+    assertEquals(1, ((Number) summary.get("failed")).intValue());
+  }
+
+  @Test
+  public void testAvro() throws Throwable {
+    List<GenericRecord> records = new ArrayList<>();
+    try (DataFileReader<GenericRecord> reader = new DataFileReader<>(
+        writeReport(UploadReport.Format.avro),
+        new GenericDatumReader<GenericRecord>())) {
+      for (GenericRecord r : reader) {
+        records.add(r);
+      }
+    }
+    assertEquals(4, records.size());
+    GenericRecord failed = records.get(2);
+    assertEquals("failed", failed.get("state").toString());
+    assertEquals("java.io.FileNotFoundException: gone",
+        failed.get("error").toString());
+    assertNull(failed.get("digest"));
+    GenericRecord summary = records.get(3);
+    assertEquals(UploadReport.SUMMARY, summary.get("type").toString());
+    assertEquals(200L, summary.get("size"));
+    assertEquals(3L, summary.get("files"));
+  }
+
+  @Test
+  public void testParseFormat() throws Throwable {
+    assertEquals(UploadReport.Format.avro,
+        UploadReport.Format.parse(" AVRO"));
+    try {
+      UploadReport.Format.parse("xml");
+      fail("Parsed xml");
+    } catch (IllegalArgumentException expected) {
+      assertTrue(expected.getMessage(),
+          expected.getMessage().contains("csv"));
+    }
+  }
+}
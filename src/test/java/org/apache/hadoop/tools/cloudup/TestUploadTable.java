@@ -0,0 +1,195 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.apache.hadoop.tools.cloudup;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryMXBean;
+import java.util.Arrays;
+import java.util.Random;
+
+import org.junit.Assert;
+import org.junit.Test;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import org.apache.hadoop.fs.Path;
+
+/**
+ * Test the compact upload table, including its heap consumption.
+ */
+public class TestUploadTable extends Assert {
+
+  private static final Logger LOG =
+      LoggerFactory.getLogger(TestUploadTable.class);
+
+  /**
+   * Maximum heap per entry, for file names of 10 characters in
+   * directories of 1000 files, including the unused capacity of the arrays.
+   * An {@link UploadEntry} with its two paths is over 500 bytes.
+   */
+  public static final int MAX_HEAP_PER_ENTRY = 100;
+
+  private static final Path SOURCE = new Path("file:/data/source");
+
+  private static final Path DEST = new Path("s3a://bucket/dest");
+
+  /**
+   * Build a table of entries in directories of 1000 files.
+   * @param entries number of entries
+   * @return the table
+   */
+  private UploadTable createTable(int entries) {
+    UploadTable table = new UploadTable();
+    for (int i = 0; i < entries; i++) {
+      String child = String.format("dir-%04d/file-%05d", i / 1000, i);
+      table.add(new Path(SOURCE, child), i, new Path(DEST, child));
+    }
+    return table;
+  }
+
+  @Test
+  public void testRoundTrip() throws Throwable {
+    UploadTable table = new UploadTable(4096);
+    Path src = new Path(SOURCE, "dir/file");
+    Path renamed = new Path(DEST, "other/\u00e9l\u00e8ve");
+    Path root = new Path("file:/top");
+    table.add(src, 10, new Path(DEST, "dir/file"));
+    table.add(src, 20, renamed);
+    table.add(root, 30, new Path(DEST, "top"));
+    for (int i = 0; i < 2000; i++) {
+      // force the use of multiple pages
+      table.add(new Path(SOURCE, "file-" + i), i, new Path(DEST, "f" + i));
+    }
+    assertEquals(src, table.getSource(0));
+    assertEquals(new Path(DEST, "dir/file"), table.getDest(0));
+    assertEquals(renamed, table.getDest(1));
+    assertEquals(root, table.getSource(2));
+    assertEquals(new Path(SOURCE, "file-1999"), table.getSource(2002));
+    assertEquals(new Path(DEST, "f1999"), table.getDest(2002));
+
+    UploadEntry entry = table.get(1);
+    assertEquals(src, entry.getSource());
+    assertEquals(renamed, entry.getDest());
+    assertEquals(20, entry.getSize());
+    assertEquals(1, entry.getIndex());
+    assertEquals(UploadEntry.State.ready, table.getState(1));
+    entry.setState(UploadEntry.State.succeeded);
+    entry.setStartTime(100);
+    entry.setEndTime(200);
+    assertEquals(UploadEntry.State.succeeded, table.getState(1));
+    assertEquals(100, table.getStartTime(1));
+    assertEquals(200, table.getEndTime(1));
+    assertEquals(UploadEntry.State.ready, table.getState(0));
+  }
+
+  @Test
+  public void testLargest() throws Throwable {
+    UploadTable table = createTable(1000);
+    assertArrayEquals("largest", new int[]{999, 998, 997},
+        table.largest(3));
+    assertEquals(1000, table.largest(2000).length);
+    assertEquals(0, new UploadTable().largest(3).length);
+  }
+
+  @Test
+  public void testSortedBySize() throws Throwable {
+    UploadTable table = new UploadTable();
+    Random random = new Random(0);
+    for (int i = 0; i < 1000; i++) {
+      table.add(new Path(SOURCE, "file-" + i), random.nextInt(100),
+          new Path(DEST, "file-" + i));
+    }
+    int[] order = table.sortedBySize();
+    assertEquals(1000, order.length);
+    for (int i = 1; i < order.length; i++) {
+      assertTrue("Out of order at " + i,
+          table.getSize(order[i - 1]) >= table.getSize(order[i]));
+    }
+    int[] sorted = Arrays.copyOf(order, order.length);
+    Arrays.sort(sorted);
+    for (int i = 0; i < sorted.length; i++) {
+      assertEquals("Not a permutation", i, sorted[i]);
+    }
+    assertEquals(0, new UploadTable().sortedBySize().length);
+  }
+
+  @Test
+  public void testSortedBySourceDirectory() throws Throwable {
+    UploadTable table = new UploadTable();
+    String[] files = {"b/1", "a/1", "b/2", "a/x/1", "a/2"};
+    for (String file : files) {
+      table.add(new Path(SOURCE, file), 1, new Path(DEST, file));
+    }
+    assertArrayEquals(new int[]{1, 4, 3, 0, 2},
+        table.sortedBySourceDirectory());
+  }
+
+  @Test
+  public void testShuffle() throws Throwable {
+    UploadTable table = createTable(1000);
+    int[] order = table.shuffled(new Random(0));
+    int[] sorted = Arrays.copyOf(order, order.length);
+    Arrays.sort(sorted);
+    for (int i = 0; i < sorted.length; i++) {
+      assertEquals("Not a permutation", i, sorted[i]);
+    }
+  }
+
+  /**
+   * Measure the heap retained by a large table: the growth in the heap
+   * in use, after collecting garbage, across building it.
+   * The estimate of {@link UploadTable#heapSize()} is only logged.
+   */
+  @Test
+  public void testHeapPerEntry() throws Throwable {
+    int entries = 200000;
+    MemoryMXBean memory = ManagementFactory.getMemoryMXBean();
+    long before = usedHeapAfterGC(memory);
+    UploadTable table = createTable(entries);
+    long after = usedHeapAfterGC(memory);
+    assertEquals(entries, table.size());
+    // 200 source and 200 destination directories
+    assertEquals(400, table.getDirectoryCount());
+    long perEntry = (after - before) / entries;
+    LOG.info("{}; measured {} bytes/entry", table, perEntry);
+    assertTrue("Heap per entry " + perEntry + " > " + MAX_HEAP_PER_ENTRY,
+        perEntry <= MAX_HEAP_PER_ENTRY);
+  }
+
+  /**
+   * Get the heap in use once garbage has been collected: collect until
+   * it stops shrinking.
+   * @param memory memory bean
+   * @return the bytes of heap in use
+   */
+  private static long usedHeapAfterGC(MemoryMXBean memory)
+      throws InterruptedException {
+    long used = Long.MAX_VALUE;
+    for (int i = 0; i < 10; i++) {
+      memory.gc();
+      Thread.sleep(50);
+      long now = memory.getHeapMemoryUsage().getUsed();
+      if (now >= used) {
+        return now;
+      }
+      used = now;
+    }
+    return used;
+  }
+}